@@ -0,0 +1,41 @@
+package com.sshfp.model
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.Index
+import androidx.room.PrimaryKey
+
+/**
+ * 一次连接的分阶段耗时（毫秒），未经历的阶段为 -1
+ *
+ * authMethod/authRoundTrips 只在 SESSION 记录中有值，往返次数按各认证方式的报文交换估算。
+ */
+@Entity(tableName = "connection_history", indices = [Index(value = ["hostId", "timestamp"])])
+data class ConnectionTiming(
+    @PrimaryKey(autoGenerate = true)
+    val id: Long = 0,
+    val hostId: Long,
+    val kind: Kind,
+    val success: Boolean,
+    val timestamp: Long = System.currentTimeMillis(),
+    val dnsMs: Long = -1,
+    val tcpMs: Long = -1,
+    val versionMs: Long = -1,
+    val kexMs: Long = -1,
+    val authMs: Long = -1,
+    val channelOpenMs: Long = -1,
+    val firstByteMs: Long = -1,
+    val totalMs: Long = -1,
+    val authMethod: String? = null,
+    @ColumnInfo(defaultValue = "-1")
+    val authRoundTrips: Int = -1
+) {
+    /**
+     * 记录类型：建立SSH会话、打开Shell通道、打开SFTP通道
+     */
+    enum class Kind {
+        SESSION,
+        SHELL,
+        SFTP
+    }
+}
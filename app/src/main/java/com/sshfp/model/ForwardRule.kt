@@ -0,0 +1,37 @@
+package com.sshfp.model
+
+import androidx.room.Entity
+import androidx.room.Index
+import androidx.room.PrimaryKey
+
+/**
+ * 端口转发规则
+ *
+ * LOCAL 对应 ssh -L：本机 bindAddress:bindPort 转发到服务器侧的 destHost:destPort；
+ * REMOTE 对应 ssh -R：服务器 bindAddress:bindPort 转发回本机侧的 destHost:destPort；
+ * DYNAMIC 对应 ssh -D：本机 bindAddress:bindPort 上的 SOCKS5 代理，目标由客户端指定，不使用 destHost/destPort。
+ */
+@Entity(tableName = "forward_rules", indices = [Index(value = ["hostId"])])
+data class ForwardRule(
+    @PrimaryKey(autoGenerate = true)
+    val id: Long = 0,
+    val hostId: Long,
+    var type: Type = Type.LOCAL,
+    var bindAddress: String = "127.0.0.1",
+    var bindPort: Int = 0,
+    var destHost: String = "",
+    var destPort: Int = 0,
+    var enabled: Boolean = true
+) {
+    enum class Type {
+        LOCAL,
+        REMOTE,
+        DYNAMIC
+    }
+
+    fun describe(): String = when (type) {
+        Type.LOCAL -> "L $bindPort → $destHost:$destPort"
+        Type.REMOTE -> "R $bindPort → $destHost:$destPort"
+        Type.DYNAMIC -> "D $bindPort (SOCKS5)"
+    }
+}
@@ -1,5 +1,6 @@
 package com.sshfp.model
 
+import androidx.room.ColumnInfo
 import androidx.room.Entity
 import androidx.room.PrimaryKey
 
@@ -21,12 +22,27 @@ data class Host(
     var initialDirectory: String = "/home/${username}",
     var createdAt: Long = System.currentTimeMillis(),
     var lastConnectedAt: Long = 0,
-    var sortOrder: Int = 0
+    var sortOrder: Int = 0,
+    @ColumnInfo(defaultValue = "OFF")
+    var compression: Compression = Compression.OFF,
+    var jumpHostId: Long? = null,
+    /** 上次认证成功的方式（JSch 方法名），下次连接优先尝试 */
+    @ColumnInfo(defaultValue = "")
+    var lastAuthMethod: String = ""
 ) {
     enum class AuthMethod {
         PASSWORD,
         KEY
     }
 
+    /**
+     * SSH压缩模式，AUTO 根据链路带宽和数据可压缩性自动决定
+     */
+    enum class Compression {
+        OFF,
+        ON,
+        AUTO
+    }
+
     fun displayName(): String = name.ifEmpty { "$username@$address:$port" }
 }
@@ -0,0 +1,18 @@
+package com.sshfp.model
+
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+/**
+ * 主机的SSH算法配置 - 加密算法/MAC的优先顺序，来自本机基准测试
+ */
+@Entity(tableName = "host_algorithm_profiles")
+data class HostAlgorithmProfile(
+    @PrimaryKey
+    val hostId: Long,
+    var cipherOrder: String = "",
+    var macOrder: String = "",
+    var cipherBytesPerSecond: Long = 0,
+    var macBytesPerSecond: Long = 0,
+    var benchmarkedAt: Long = 0
+)
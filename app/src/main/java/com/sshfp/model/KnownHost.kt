@@ -0,0 +1,16 @@
+package com.sshfp.model
+
+import androidx.room.Entity
+
+/**
+ * 已知主机公钥（对应 known_hosts 中的一行）
+ *
+ * host 与 JSch 的写法一致：22端口为地址本身，其他端口为 "[地址]:端口"。
+ */
+@Entity(tableName = "known_hosts", primaryKeys = ["host", "type"])
+data class KnownHost(
+    val host: String,
+    val type: String,
+    var key: String,
+    var addedAt: Long = System.currentTimeMillis()
+)
@@ -0,0 +1,59 @@
+package com.sshfp.model
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.Index
+import androidx.room.PrimaryKey
+
+/**
+ * 传输日志中的一条未完成传输，完成后删除
+ *
+ * size/mtime 是开始时源文件的大小和修改时间（毫秒），续传前源文件有变化则从头开始。
+ * verifiedOffset 是已确认写入目标的字节数；分段传输时 ranges 保存各段进度（逗号分隔），单流传输为空。
+ * recursive 为目录传输，续传时跳过目标中已传完的文件，size/mtime 不使用。
+ * priority/unmeteredOnly/requiresCharging 是加入传输队列时的选项，重新加入队列时沿用。
+ */
+@Entity(tableName = "transfer_journal", indices = [Index(value = ["hostId"])])
+data class TransferRecord(
+    @PrimaryKey(autoGenerate = true)
+    val id: Long = 0,
+    val hostId: Long,
+    val direction: Direction,
+    val source: String,
+    val destination: String,
+    val size: Long,
+    val mtime: Long,
+    @ColumnInfo(defaultValue = "0")
+    val recursive: Boolean = false,
+    /** [com.sshfp.ssh.TransferQueue.Priority] 的名称 */
+    @ColumnInfo(defaultValue = "NORMAL")
+    var priority: String = "NORMAL",
+    @ColumnInfo(defaultValue = "0")
+    var unmeteredOnly: Boolean = false,
+    @ColumnInfo(defaultValue = "0")
+    var requiresCharging: Boolean = false,
+    var verifiedOffset: Long = 0,
+    var ranges: String = "",
+    var state: State = State.RUNNING,
+    var error: String? = null,
+    val createdAt: Long = System.currentTimeMillis(),
+    var updatedAt: Long = System.currentTimeMillis()
+) {
+    enum class Direction {
+        DOWNLOAD,
+        UPLOAD
+    }
+
+    /**
+     * QUEUED：已加入传输队列，尚未开始；RUNNING：进行中（进程被杀后残留的也按中断处理）；
+     * INTERRUPTED：连接中断，可自动续传；FAILED：服务端拒绝等无法靠重试解决的错误，需要用户处理
+     */
+    enum class State {
+        QUEUED,
+        RUNNING,
+        INTERRUPTED,
+        FAILED
+    }
+
+    fun fileName(): String = source.substringAfterLast('/')
+}
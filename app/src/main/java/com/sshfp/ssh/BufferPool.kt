@@ -0,0 +1,30 @@
+package com.sshfp.ssh
+
+import java.nio.ByteBuffer
+
+/**
+ * 可复用的字节缓冲池，避免转发时每次读写都分配新数组
+ *
+ * 使用堆内缓冲：写入 JSch 通道需要 byte[]。
+ */
+class BufferPool(
+    private val bufferSize: Int = DEFAULT_BUFFER_SIZE,
+    private val maxPooled: Int = DEFAULT_MAX_POOLED
+) {
+
+    private val pool = ArrayDeque<ByteBuffer>()
+
+    fun acquire(): ByteBuffer = synchronized(pool) { pool.removeLastOrNull() } ?: ByteBuffer.allocate(bufferSize)
+
+    fun release(buffer: ByteBuffer) {
+        buffer.clear()
+        synchronized(pool) {
+            if (pool.size < maxPooled) pool.addLast(buffer)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_BUFFER_SIZE = 32 * 1024
+        private const val DEFAULT_MAX_POOLED = 64
+    }
+}
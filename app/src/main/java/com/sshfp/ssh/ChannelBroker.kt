@@ -0,0 +1,266 @@
+package com.sshfp.ssh
+
+import android.os.SystemClock
+import android.util.Log
+import com.jcraft.jsch.Channel
+import com.jcraft.jsch.ChannelSftp
+import com.jcraft.jsch.JSchException
+import com.jcraft.jsch.Session
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.withTimeoutOrNull
+import kotlin.coroutines.resume
+
+/**
+ * 通道调度器 - 在同一个 Session 上复用 shell、sftp、exec 通道
+ *
+ * 同时打开的会话类通道数受 [limit] 约束（对应服务端 MaxSessions），
+ * 超出时请求排队等待；服务端拒绝开通道时自动下调上限，之后每隔 [RAISE_INTERVAL_MS] 试探着上调一个，
+ * 最多回到初始值。开通道超时不视为拒绝，直接抛出。
+ * 归还的 SFTP 通道会暂存复用，空闲超过 [IDLE_TIMEOUT_MS] 后关闭。
+ * direct-tcpip 等转发通道不受 MaxSessions 限制，不经过本类。
+ */
+class ChannelBroker(
+    private val session: Session,
+    private val maxChannels: Int = DEFAULT_MAX_SESSIONS
+) {
+
+    private val lock = Any()
+    private var limit = maxChannels
+    private var refusedAt = 0L
+    private var inUse = 0
+    private var closed = false
+    private val leased = HashSet<Channel>()
+    private val idleSftp = ArrayDeque<IdleChannel>()
+    private val waiters = ArrayDeque<CancellableContinuation<Unit>>()
+
+    private class IdleChannel(val channel: ChannelSftp, val since: Long)
+
+    /**
+     * 打开一个新通道，达到上限时挂起等待
+     */
+    @Suppress("UNCHECKED_CAST")
+    suspend fun <T : Channel> open(
+        type: String,
+        connectTimeout: Int = CONNECT_TIMEOUT_MS,
+        configure: (T) -> Unit = {}
+    ): T {
+        while (true) {
+            acquireSlot()
+            val channel = try {
+                session.openChannel(type) as T
+            } catch (e: Exception) {
+                freeSlot()
+                throw e
+            }
+            try {
+                configure(channel)
+                channel.connect(connectTimeout)
+                synchronized(lock) { leased.add(channel) }
+                return channel
+            } catch (e: JSchException) {
+                closeQuietly(channel)
+                if (!lowerLimitOnRefusal(channel)) {
+                    freeSlot()
+                    throw e
+                }
+                // 服务端拒绝：上限已下调，释放名额后重新排队
+                freeSlot()
+            } catch (e: Exception) {
+                closeQuietly(channel)
+                freeSlot()
+                throw e
+            }
+        }
+    }
+
+    /**
+     * 获取SFTP通道，优先复用空闲通道
+     */
+    suspend fun acquireSftp(): ChannelSftp {
+        synchronized(lock) {
+            while (idleSftp.isNotEmpty()) {
+                val idle = idleSftp.removeFirst()
+                if (idle.channel.isConnected) {
+                    leased.add(idle.channel)
+                    return idle.channel
+                }
+                inUse--
+                wakeWaiterLocked()
+            }
+        }
+        return open("sftp")
+    }
+
+    /**
+     * 归还通道：已连接的SFTP通道暂存复用，其他通道直接关闭
+     */
+    fun release(channel: Channel) {
+        synchronized(lock) {
+            if (!leased.remove(channel)) return
+            if (!closed && channel is ChannelSftp && channel.isConnected) {
+                idleSftp.addLast(IdleChannel(channel, SystemClock.elapsedRealtime()))
+                wakeWaiterLocked()
+                return
+            }
+            inUse--
+            wakeWaiterLocked()
+        }
+        closeQuietly(channel)
+    }
+
+    /**
+     * 回收已被对端关闭的通道名额，并关闭空闲超时的SFTP通道
+     */
+    fun sweep() {
+        val expired = mutableListOf<Channel>()
+        synchronized(lock) {
+            sweepClosedLocked()
+            val now = SystemClock.elapsedRealtime()
+            while (idleSftp.isNotEmpty() && now - idleSftp.first().since > IDLE_TIMEOUT_MS) {
+                expired.add(idleSftp.removeFirst().channel)
+                inUse--
+            }
+            if (expired.isNotEmpty()) wakeWaiterLocked()
+        }
+        expired.forEach { closeQuietly(it) }
+    }
+
+    /**
+     * 当前占用的通道数
+     */
+    fun activeCount(): Int = synchronized(lock) { inUse }
+
+    /**
+     * 当前通道上限
+     */
+    fun limit(): Int = synchronized(lock) { limit }
+
+    /**
+     * 关闭所有通道
+     */
+    fun close() {
+        val all = synchronized(lock) {
+            closed = true
+            val list = leased.toList() + idleSftp.map { it.channel }
+            leased.clear()
+            idleSftp.clear()
+            inUse = 0
+            while (waiters.isNotEmpty()) waiters.removeFirst().resume(Unit)
+            list
+        }
+        all.forEach { closeQuietly(it) }
+    }
+
+    private suspend fun acquireSlot() {
+        while (true) {
+            var reclaimed: Channel? = null
+            synchronized(lock) {
+                if (closed) throw JSchException("Channel broker closed")
+                sweepClosedLocked()
+                if (inUse < limit) {
+                    inUse++
+                    return
+                }
+                if (raiseLimitLocked()) {
+                    inUse++
+                    return
+                }
+                if (idleSftp.isNotEmpty()) {
+                    // 名额被空闲SFTP通道占用，关闭最旧的一个让给新请求
+                    reclaimed = idleSftp.removeFirst().channel
+                }
+            }
+            reclaimed?.let {
+                closeQuietly(it)
+                return
+            }
+            // 对端关闭的通道不会主动归还，定期醒来重新检查
+            withTimeoutOrNull(WAIT_RECHECK_MS) {
+                suspendCancellableCoroutine<Unit> { cont ->
+                    cont.invokeOnCancellation {
+                        synchronized(lock) { waiters.remove(cont) }
+                    }
+                    synchronized(lock) {
+                        if (closed || inUse < limit || idleSftp.isNotEmpty()) {
+                            cont.resume(Unit)
+                        } else {
+                            waiters.addLast(cont)
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private fun freeSlot() {
+        synchronized(lock) {
+            inUse--
+            wakeWaiterLocked()
+        }
+    }
+
+    private fun sweepClosedLocked() {
+        val iterator = leased.iterator()
+        while (iterator.hasNext()) {
+            if (iterator.next().isClosed) {
+                iterator.remove()
+                inUse--
+            }
+        }
+    }
+
+    private fun wakeWaiterLocked() {
+        if (waiters.isNotEmpty()) waiters.removeFirst().resume(Unit)
+    }
+
+    /**
+     * 服务端达到 MaxSessions 时拒绝开通道，把上限下调到当前已占用数。
+     * JSch 0.1.55 在超时和被拒绝时抛出同样的 "channel is not opened."，只有收到
+     * SSH_MSG_CHANNEL_OPEN_FAILURE 时才会把原因码记为退出码，超时仍为 -1，据此区分
+     */
+    private fun lowerLimitOnRefusal(channel: Channel): Boolean {
+        if (channel.exitStatus == -1) return false
+        synchronized(lock) {
+            val others = inUse - 1
+            if (others < 1) return false
+            refusedAt = SystemClock.elapsedRealtime()
+            if (others < limit) {
+                limit = others
+                Log.w(TAG, "Server refused channel (reason ${channel.exitStatus}), lowering limit to $limit")
+            }
+        }
+        return true
+    }
+
+    /**
+     * 上限被下调过、且距上次被拒绝已足够久时上调一个试探，再被拒绝会重新下调
+     */
+    private fun raiseLimitLocked(): Boolean {
+        if (limit >= maxChannels || inUse < limit) return false
+        if (SystemClock.elapsedRealtime() - refusedAt < RAISE_INTERVAL_MS) return false
+        limit++
+        refusedAt = SystemClock.elapsedRealtime()
+        Log.d(TAG, "Probing channel limit $limit")
+        return true
+    }
+
+    private fun closeQuietly(channel: Channel) {
+        try {
+            channel.disconnect()
+        } catch (e: Exception) {
+            Log.e(TAG, "Channel close error", e)
+        }
+    }
+
+    companion object {
+        private const val TAG = "ChannelBroker"
+        private const val CONNECT_TIMEOUT_MS = 10000
+        private const val IDLE_TIMEOUT_MS = 60 * 1000L
+        private const val WAIT_RECHECK_MS = 1000L
+        private const val RAISE_INTERVAL_MS = 60 * 1000L
+
+        /** OpenSSH sshd_config 中 MaxSessions 的默认值 */
+        const val DEFAULT_MAX_SESSIONS = 10
+    }
+}
@@ -0,0 +1,152 @@
+package com.sshfp.ssh
+
+import android.os.SystemClock
+import android.util.Log
+import com.jcraft.jsch.JSch
+import com.sshfp.model.HostAlgorithmProfile
+
+/**
+ * 本机加密算法基准测试
+ *
+ * 逐个测量允许列表中的对称加密算法和MAC的批量吞吐量，按速度从快到慢排序。
+ * 只测量 CTR/GCM 模式的 AES 和 SHA-2 MAC：MD5、SHA-1、CBC 模式和 3DES/Blowfish 通常更快，
+ * 按速度排序会把它们排到前面，造成降级，因此不参与排序。配置只调整提案顺序，
+ * JSch 默认列表中的其余算法仍排在后面，是否禁用弱算法与测试结果无关。
+ * 结果与设备相关而与主机无关，进程内只测一次，再写入各主机的 [HostAlgorithmProfile]。
+ */
+object CipherBenchmark {
+
+    private const val TAG = "CipherBenchmark"
+    private const val PACKET_SIZE = 32 * 1024
+    private const val WARMUP_MS = 50L
+    private const val MEASURE_MS = 200L
+
+    /**
+     * 允许进入配置的算法。JSch 0.1.55 只实现了其中的 CTR 和 hmac-sha2-256/512，
+     * GCM 在升级 JSch 后才会被测量到，当前版本未配置的算法直接跳过
+     */
+    val ALLOWED_CIPHERS = listOf(
+        "aes128-ctr",
+        "aes192-ctr",
+        "aes256-ctr",
+        "aes128-gcm@openssh.com",
+        "aes256-gcm@openssh.com"
+    )
+    val ALLOWED_MACS = listOf(
+        "hmac-sha2-256",
+        "hmac-sha2-512"
+    )
+
+    /**
+     * 单个算法的测量结果
+     */
+    data class Measurement(val name: String, val bytesPerSecond: Long)
+
+    /**
+     * 一次完整测试的结果
+     */
+    data class Result(val ciphers: List<Measurement>, val macs: List<Measurement>) {
+        val cipherOrder: String get() = ciphers.joinToString(",") { it.name }
+        val macOrder: String get() = macs.joinToString(",") { it.name }
+    }
+
+    @Volatile
+    private var cached: Result? = null
+
+    /**
+     * 执行测试（耗时约一两秒，需在后台线程调用），同一进程内复用结果
+     */
+    fun run(): Result {
+        cached?.let { return it }
+        return synchronized(this) {
+            cached ?: measureAll().also { cached = it }
+        }
+    }
+
+    /**
+     * 根据测试结果生成主机算法配置
+     */
+    fun profileFor(hostId: Long): HostAlgorithmProfile {
+        val result = run()
+        return HostAlgorithmProfile(
+            hostId = hostId,
+            cipherOrder = result.cipherOrder,
+            macOrder = result.macOrder,
+            cipherBytesPerSecond = result.ciphers.firstOrNull()?.bytesPerSecond ?: 0,
+            macBytesPerSecond = result.macs.firstOrNull()?.bytesPerSecond ?: 0,
+            benchmarkedAt = System.currentTimeMillis()
+        )
+    }
+
+    private fun measureAll(): Result {
+        val cipherNames = ALLOWED_CIPHERS.filter { JSch.getConfig(it) != null }
+        val macNames = ALLOWED_MACS.filter { JSch.getConfig(it) != null }
+
+        val ciphers = cipherNames.mapNotNull { name -> measureCipher(name)?.let { Measurement(name, it) } }
+            .sortedByDescending { it.bytesPerSecond }
+        val macs = macNames.mapNotNull { name -> measureMac(name)?.let { Measurement(name, it) } }
+            .sortedByDescending { it.bytesPerSecond }
+
+        Log.d(TAG, "Ciphers: $ciphers")
+        Log.d(TAG, "MACs: $macs")
+        return Result(ciphers, macs)
+    }
+
+    /**
+     * 测量加密吞吐量（字节/秒），算法不可用时返回 null
+     */
+    private fun measureCipher(name: String): Long? {
+        return try {
+            val className = JSch.getConfig(name) ?: return null
+            val cipher = Class.forName(className).newInstance() as com.jcraft.jsch.Cipher
+            // JSch 中 getBlockSize() 返回的是密钥长度
+            cipher.init(com.jcraft.jsch.Cipher.ENCRYPT_MODE, ByteArray(cipher.blockSize), ByteArray(cipher.ivSize))
+            val buffer = ByteArray(PACKET_SIZE)
+            measure { cipher.update(buffer, 0, buffer.size, buffer, 0) }
+        } catch (e: Throwable) {
+            Log.d(TAG, "Cipher $name unavailable: ${e.message}")
+            null
+        }
+    }
+
+    /**
+     * 测量MAC吞吐量（字节/秒），按SSH包逐个计算，算法不可用时返回 null
+     */
+    private fun measureMac(name: String): Long? {
+        return try {
+            val className = JSch.getConfig(name) ?: return null
+            val mac = Class.forName(className).newInstance() as com.jcraft.jsch.MAC
+            mac.init(ByteArray(mac.blockSize))
+            val buffer = ByteArray(PACKET_SIZE)
+            val digest = ByteArray(mac.blockSize)
+            var sequence = 0
+            measure {
+                mac.update(sequence++)
+                mac.update(buffer, 0, buffer.size)
+                mac.doFinal(digest, 0)
+            }
+        } catch (e: Throwable) {
+            Log.d(TAG, "MAC $name unavailable: ${e.message}")
+            null
+        }
+    }
+
+    /**
+     * 预热后在固定时间内反复处理一个包，返回字节/秒
+     */
+    private inline fun measure(block: () -> Unit): Long {
+        val warmupEnd = SystemClock.elapsedRealtime() + WARMUP_MS
+        while (SystemClock.elapsedRealtime() < warmupEnd) block()
+
+        var bytes = 0L
+        val start = System.nanoTime()
+        val end = start + MEASURE_MS * 1_000_000
+        var now = start
+        while (now < end) {
+            block()
+            bytes += PACKET_SIZE
+            now = System.nanoTime()
+        }
+        return bytes * 1_000_000_000 / (now - start)
+    }
+}
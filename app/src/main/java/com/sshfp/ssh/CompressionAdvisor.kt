@@ -0,0 +1,113 @@
+package com.sshfp.ssh
+
+import android.content.Context
+import android.net.ConnectivityManager
+import android.net.NetworkCapabilities
+import android.util.Log
+import java.io.File
+import java.io.FileInputStream
+import java.util.zip.Deflater
+
+/**
+ * 自动压缩决策 - 按主机记录链路吞吐量和数据可压缩性
+ *
+ * 压缩后传输时间约为 B*r/L + B/D（r 压缩率，L 链路带宽，D 本机压缩速度），
+ * 只有 L < D*(1-r) 时压缩才划算：慢速链路开启，局域网上zlib的CPU开销反而成为瓶颈。
+ */
+class CompressionAdvisor(context: Context) {
+
+    private val prefs = context.applicationContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+    private val connectivityManager = context.applicationContext
+        .getSystemService(Context.CONNECTIVITY_SERVICE) as? ConnectivityManager
+
+    /**
+     * 记录一次传输：payload吞吐量折算回链路带宽，并从本地文件抽样测量可压缩性
+     *
+     * @param compressed 传输时会话是否已开启压缩
+     */
+    fun recordTransfer(hostId: Long, localFile: File, bytes: Long, elapsedMs: Long, compressed: Boolean) {
+        if (bytes < MIN_SAMPLE_BYTES || elapsedMs <= 0) return
+        val sample = sampleCompressibility(localFile)
+        val ratio = sample?.first ?: prefs.getFloat(KEY_RATIO + hostId, DEFAULT_RATIO)
+        val payloadBps = bytes * 1000f / elapsedMs
+        // 开启压缩时链路上实际只传了 ratio 倍的数据
+        val linkBps = if (compressed) payloadBps * ratio else payloadBps
+
+        prefs.edit().apply {
+            putFloat(KEY_LINK_BPS + hostId, smooth(prefs.getFloat(KEY_LINK_BPS + hostId, 0f), linkBps))
+            sample?.let { (r, deflateBps) ->
+                putFloat(KEY_RATIO + hostId, smooth(prefs.getFloat(KEY_RATIO + hostId, 0f), r))
+                putFloat(KEY_DEFLATE_BPS, smooth(prefs.getFloat(KEY_DEFLATE_BPS, 0f), deflateBps))
+            }
+        }.apply()
+        Log.d(TAG, "Host $hostId: link ${linkBps.toLong()} B/s, ratio ${sample?.first}")
+    }
+
+    /**
+     * 是否应当为主机开启压缩
+     */
+    fun shouldCompress(hostId: Long): Boolean {
+        val linkBps = prefs.getFloat(KEY_LINK_BPS + hostId, 0f)
+        if (linkBps <= 0f) {
+            // 尚无样本时按网络类型估计：蜂窝网络开启，Wi-Fi/以太网关闭
+            val capabilities = connectivityManager?.getNetworkCapabilities(connectivityManager.activeNetwork)
+            return capabilities?.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR) == true
+        }
+        val ratio = prefs.getFloat(KEY_RATIO + hostId, DEFAULT_RATIO)
+        val deflateBps = prefs.getFloat(KEY_DEFLATE_BPS, DEFAULT_DEFLATE_BPS)
+        return linkBps < deflateBps * (1 - ratio)
+    }
+
+    /**
+     * 用与 JSch 相同的压缩级别压缩文件开头一段，返回（压缩率, 压缩速度字节/秒）
+     */
+    private fun sampleCompressibility(file: File): Pair<Float, Float>? {
+        return try {
+            val buffer = ByteArray(SAMPLE_SIZE)
+            val read = FileInputStream(file).use { input ->
+                var total = 0
+                while (total < buffer.size) {
+                    val n = input.read(buffer, total, buffer.size - total)
+                    if (n < 0) break
+                    total += n
+                }
+                total
+            }
+            if (read < MIN_SAMPLE_SIZE) return null
+
+            val deflater = Deflater(ZLIB_LEVEL)
+            val out = ByteArray(SAMPLE_SIZE)
+            val start = System.nanoTime()
+            deflater.setInput(buffer, 0, read)
+            deflater.finish()
+            var compressed = 0
+            while (!deflater.finished()) compressed += deflater.deflate(out)
+            val elapsedNs = (System.nanoTime() - start).coerceAtLeast(1)
+            deflater.end()
+
+            Pair(compressed.toFloat() / read, read * 1_000_000_000f / elapsedNs)
+        } catch (e: Exception) {
+            Log.w(TAG, "Compressibility sample failed: ${e.message}")
+            null
+        }
+    }
+
+    private fun smooth(previous: Float, sample: Float): Float =
+        if (previous <= 0f) sample else previous * (1 - EWMA_WEIGHT) + sample * EWMA_WEIGHT
+
+    companion object {
+        private const val TAG = "CompressionAdvisor"
+        private const val PREFS_NAME = "compression_stats"
+        private const val KEY_LINK_BPS = "link_bps_"
+        private const val KEY_RATIO = "ratio_"
+        private const val KEY_DEFLATE_BPS = "deflate_bps"
+
+        private const val ZLIB_LEVEL = 6 // JSch 默认 compression_level
+        private const val SAMPLE_SIZE = 64 * 1024
+        private const val MIN_SAMPLE_SIZE = 4 * 1024
+        private const val MIN_SAMPLE_BYTES = 256 * 1024L
+        private const val EWMA_WEIGHT = 0.3f
+        private const val DEFAULT_RATIO = 0.5f
+        private const val DEFAULT_DEFLATE_BPS = 20f * 1024 * 1024
+    }
+}
@@ -0,0 +1,35 @@
+package com.sshfp.ssh
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.Query
+import com.sshfp.model.ConnectionTiming
+import kotlinx.coroutines.flow.Flow
+
+/**
+ * 连接耗时历史数据访问对象
+ */
+@Dao
+interface ConnectionHistoryDao {
+
+    @Insert
+    suspend fun insert(timing: ConnectionTiming): Long
+
+    @Query("SELECT * FROM connection_history WHERE hostId = :hostId ORDER BY timestamp DESC LIMIT :limit")
+    fun observeRecent(hostId: Long, limit: Int): Flow<List<ConnectionTiming>>
+
+    @Query(
+        "SELECT * FROM connection_history WHERE hostId = :hostId AND kind = :kind AND success = 1 " +
+            "ORDER BY timestamp DESC LIMIT :limit"
+    )
+    suspend fun getRecentSuccessful(hostId: Long, kind: ConnectionTiming.Kind, limit: Int): List<ConnectionTiming>
+
+    @Query(
+        "DELETE FROM connection_history WHERE hostId = :hostId AND id NOT IN " +
+            "(SELECT id FROM connection_history WHERE hostId = :hostId ORDER BY timestamp DESC LIMIT :keep)"
+    )
+    suspend fun prune(hostId: Long, keep: Int)
+
+    @Query("DELETE FROM connection_history WHERE hostId = :hostId")
+    suspend fun deleteForHost(hostId: Long)
+}
@@ -0,0 +1,110 @@
+package com.sshfp.ssh
+
+import android.content.Context
+import android.util.Log
+import com.sshfp.model.ConnectionTiming
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.asSharedFlow
+import kotlinx.coroutines.launch
+
+/**
+ * 连接耗时遥测 - 发布每次连接的分阶段耗时并写入 connection_history 表
+ */
+class ConnectionTelemetry private constructor(context: Context) {
+
+    private val dao = HostDatabase.getInstance(context).connectionHistoryDao()
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val _events = MutableSharedFlow<ConnectionTiming>(extraBufferCapacity = 16)
+
+    /** 实时的连接耗时记录 */
+    val events: SharedFlow<ConnectionTiming> = _events.asSharedFlow()
+
+    /**
+     * 记录一次连接，每台主机只保留最近 [HISTORY_LIMIT] 条
+     */
+    fun record(timing: ConnectionTiming) {
+        _events.tryEmit(timing)
+        Log.d(TAG, "Host ${timing.hostId} ${timing.kind}: dns=${timing.dnsMs} tcp=${timing.tcpMs} " +
+            "version=${timing.versionMs} kex=${timing.kexMs} auth=${timing.authMs} " +
+            "channel=${timing.channelOpenMs} firstByte=${timing.firstByteMs} total=${timing.totalMs} " +
+            "authMethod=${timing.authMethod} authRoundTrips=${timing.authRoundTrips}")
+        scope.launch {
+            try {
+                dao.insert(timing)
+                dao.prune(timing.hostId, HISTORY_LIMIT)
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to save connection timing", e)
+            }
+        }
+    }
+
+    /**
+     * 主机最近的连接记录
+     */
+    fun history(hostId: Long, limit: Int = HISTORY_LIMIT): Flow<List<ConnectionTiming>> =
+        dao.observeRecent(hostId, limit)
+
+    /**
+     * 计算主机某阶段耗时的百分位数（最近的成功记录），返回 百分位 -> 毫秒
+     */
+    suspend fun percentiles(
+        hostId: Long,
+        kind: ConnectionTiming.Kind,
+        phase: ConnectionTimeline.Phase?,
+        percentiles: List<Int> = DEFAULT_PERCENTILES
+    ): Map<Int, Long> {
+        val values = dao.getRecentSuccessful(hostId, kind, HISTORY_LIMIT)
+            .map { durationOf(it, phase) }
+            .filter { it >= 0 }
+            .sorted()
+        if (values.isEmpty()) return emptyMap()
+        return percentiles.associateWith { p ->
+            // 最近秩法
+            val rank = Math.ceil(p / 100.0 * values.size).toInt().coerceIn(1, values.size)
+            values[rank - 1]
+        }
+    }
+
+    /**
+     * 按认证方式统计最近成功会话的平均认证往返次数，用于验证认证顺序学习的效果
+     */
+    suspend fun authRoundTrips(hostId: Long): Map<String, Double> =
+        dao.getRecentSuccessful(hostId, ConnectionTiming.Kind.SESSION, HISTORY_LIMIT)
+            .filter { it.authMethod != null && it.authRoundTrips >= 0 }
+            .groupBy { it.authMethod!! }
+            .mapValues { (_, timings) -> timings.map { it.authRoundTrips }.average() }
+
+    /**
+     * 取记录中某阶段的耗时，phase 为 null 表示总耗时
+     */
+    private fun durationOf(timing: ConnectionTiming, phase: ConnectionTimeline.Phase?): Long = when (phase) {
+        null -> timing.totalMs
+        ConnectionTimeline.Phase.DNS -> timing.dnsMs
+        ConnectionTimeline.Phase.TCP -> timing.tcpMs
+        ConnectionTimeline.Phase.VERSION -> timing.versionMs
+        ConnectionTimeline.Phase.KEX -> timing.kexMs
+        ConnectionTimeline.Phase.AUTH -> timing.authMs
+        ConnectionTimeline.Phase.CHANNEL_OPEN -> timing.channelOpenMs
+        ConnectionTimeline.Phase.FIRST_BYTE -> timing.firstByteMs
+    }
+
+    companion object {
+        private const val TAG = "ConnectionTelemetry"
+        private const val HISTORY_LIMIT = 200
+        private val DEFAULT_PERCENTILES = listOf(50, 90, 99)
+
+        @Volatile
+        private var INSTANCE: ConnectionTelemetry? = null
+
+        fun getInstance(context: Context): ConnectionTelemetry {
+            return INSTANCE ?: synchronized(this) {
+                INSTANCE ?: ConnectionTelemetry(context).also { INSTANCE = it }
+            }
+        }
+    }
+}
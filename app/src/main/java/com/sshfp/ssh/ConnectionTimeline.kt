@@ -0,0 +1,126 @@
+package com.sshfp.ssh
+
+import android.os.SystemClock
+import com.jcraft.jsch.Logger
+import com.sshfp.model.ConnectionTiming
+import java.util.EnumMap
+
+/**
+ * 连接过程的分阶段计时
+ *
+ * 每个阶段的耗时从上一个阶段结束时算起。握手在调用 Session.connect 的线程上同步完成，
+ * 所以用 ThreadLocal 传递当前计时器：Socket工厂记录 DNS/TCP，[JSchLogger] 从 JSch 日志中识别协议阶段。
+ */
+class ConnectionTimeline {
+
+    enum class Phase {
+        DNS,
+        TCP,
+        VERSION,
+        KEX,
+        AUTH,
+        CHANNEL_OPEN,
+        FIRST_BYTE
+    }
+
+    private val start = SystemClock.elapsedRealtime()
+    private var last = start
+    private val durations = EnumMap<Phase, Long>(Phase::class.java)
+    private val authAttempts = mutableListOf<String>()
+
+    /** 认证成功的方式，未认证时为 null */
+    @Volatile
+    var authMethod: String? = null
+        private set
+
+    /**
+     * 标记阶段结束，重复标记只保留第一次
+     */
+    fun mark(phase: Phase) {
+        synchronized(durations) {
+            if (durations.containsKey(phase)) return
+            val now = SystemClock.elapsedRealtime()
+            durations[phase] = now - last
+            last = now
+        }
+    }
+
+    fun duration(phase: Phase): Long = synchronized(durations) { durations[phase] ?: -1 }
+
+    /**
+     * 估算认证阶段的网络往返次数，未进入认证时为 -1
+     *
+     * 固定两次：ssh-userauth 服务请求和 none 认证（获取服务端可用方式）。之后每种尝试过的方式：
+     * publickey 先查询再签名，成功2次、被拒1次；keyboard-interactive 请求和应答各1次；password 1次。
+     */
+    fun authRoundTrips(): Int = synchronized(authAttempts) {
+        if (authAttempts.isEmpty() && authMethod == null) return -1
+        BASE_AUTH_ROUND_TRIPS + authAttempts.sumOf { method ->
+            val succeeded = method == authMethod
+            when (method) {
+                "publickey" -> if (succeeded) 2 else 1
+                "keyboard-interactive" -> 2
+                else -> 1
+            }
+        }
+    }
+
+    fun elapsed(): Long = SystemClock.elapsedRealtime() - start
+
+    /**
+     * 转换为可持久化的记录
+     */
+    fun toTiming(hostId: Long, kind: ConnectionTiming.Kind, success: Boolean) = ConnectionTiming(
+        hostId = hostId,
+        kind = kind,
+        success = success,
+        dnsMs = duration(Phase.DNS),
+        tcpMs = duration(Phase.TCP),
+        versionMs = duration(Phase.VERSION),
+        kexMs = duration(Phase.KEX),
+        authMs = duration(Phase.AUTH),
+        channelOpenMs = duration(Phase.CHANNEL_OPEN),
+        firstByteMs = duration(Phase.FIRST_BYTE),
+        totalMs = elapsed(),
+        authMethod = if (kind == ConnectionTiming.Kind.SESSION) authMethod else null,
+        authRoundTrips = if (kind == ConnectionTiming.Kind.SESSION) authRoundTrips() else -1
+    )
+
+    /**
+     * 从 JSch 日志识别握手阶段，只在当前线程有计时器时启用，避免平时拼接日志字符串
+     */
+    object JSchLogger : Logger {
+        override fun isEnabled(level: Int): Boolean = current() != null
+
+        override fun log(level: Int, message: String) {
+            val timeline = current() ?: return
+            when {
+                message.startsWith("Remote version string") -> timeline.mark(Phase.VERSION)
+                message == "SSH_MSG_NEWKEYS received" -> timeline.mark(Phase.KEX)
+                message.startsWith("Next authentication method: ") -> synchronized(timeline.authAttempts) {
+                    timeline.authAttempts.add(message.removePrefix("Next authentication method: ").trim())
+                }
+                message.startsWith("Authentication succeeded") -> {
+                    // 形如 "Authentication succeeded (password)."
+                    timeline.authMethod = message.substringAfter('(', "").substringBefore(')').ifEmpty { null }
+                    timeline.mark(Phase.AUTH)
+                }
+            }
+        }
+    }
+
+    companion object {
+        private const val BASE_AUTH_ROUND_TRIPS = 2
+
+        private val threadTimeline = ThreadLocal<ConnectionTimeline>()
+
+        /**
+         * 在当前线程开始计时
+         */
+        fun begin(): ConnectionTimeline = ConnectionTimeline().also { threadTimeline.set(it) }
+
+        fun current(): ConnectionTimeline? = threadTimeline.get()
+
+        fun end() = threadTimeline.remove()
+    }
+}
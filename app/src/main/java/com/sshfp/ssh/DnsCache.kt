@@ -0,0 +1,66 @@
+package com.sshfp.ssh
+
+import android.os.SystemClock
+import java.net.Inet6Address
+import java.net.InetAddress
+
+/**
+ * 带TTL的DNS缓存
+ *
+ * 解析结果按 RFC 8305 交替排列 IPv6/IPv4 地址；上次连接成功的地址排在最前。
+ */
+class DnsCache(private val ttlMs: Long = DEFAULT_TTL_MS) {
+
+    private val entries = HashMap<String, Entry>()
+
+    private class Entry(val addresses: List<InetAddress>, val expiresAt: Long) {
+        var preferred: InetAddress? = null
+    }
+
+    /**
+     * 解析主机名的全部 A/AAAA 记录，缓存未过期时直接返回
+     */
+    fun resolve(hostname: String): List<InetAddress> {
+        val now = SystemClock.elapsedRealtime()
+        val cached = synchronized(entries) { entries[hostname]?.takeIf { it.expiresAt > now } }
+        val entry = cached ?: Entry(interleave(InetAddress.getAllByName(hostname).toList()), now + ttlMs).also {
+            synchronized(entries) { entries[hostname] = it }
+        }
+        val preferred = entry.preferred ?: return entry.addresses
+        return listOf(preferred) + entry.addresses.filter { it != preferred }
+    }
+
+    /**
+     * 记录连接成功的地址，下次优先尝试
+     */
+    fun markPreferred(hostname: String, address: InetAddress) {
+        synchronized(entries) { entries[hostname]?.preferred = address }
+    }
+
+    /**
+     * 连接失败后丢弃缓存，下次重新解析
+     */
+    fun invalidate(hostname: String) {
+        synchronized(entries) { entries.remove(hostname) }
+    }
+
+    /**
+     * 以第一个地址的地址族开头，交替排列两个地址族
+     */
+    private fun interleave(addresses: List<InetAddress>): List<InetAddress> {
+        if (addresses.isEmpty()) return addresses
+        val firstIsV6 = addresses.first() is Inet6Address
+        val primary = addresses.filter { (it is Inet6Address) == firstIsV6 }
+        val secondary = addresses.filter { (it is Inet6Address) != firstIsV6 }
+        val result = ArrayList<InetAddress>(addresses.size)
+        for (i in 0 until maxOf(primary.size, secondary.size)) {
+            primary.getOrNull(i)?.let { result.add(it) }
+            secondary.getOrNull(i)?.let { result.add(it) }
+        }
+        return result
+    }
+
+    companion object {
+        private const val DEFAULT_TTL_MS = 60 * 1000L
+    }
+}
@@ -0,0 +1,106 @@
+package com.sshfp.ssh
+
+import android.util.Log
+import com.jcraft.jsch.ChannelExec
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.onCompletion
+import kotlinx.coroutines.withContext
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 一次远程命令执行（exec 通道），由 [SshManager.exec] 创建
+ *
+ * stdout/stderr 是只能收集一次的冷流，只在收集时才从通道读取。这里没有真正的背压：JSch 0.1.55
+ * 收到数据即补充通道窗口，服务端不会因此停发；收集方处理得慢或有一路未读时，JSch 的管道缓冲被填满，
+ * 写入管道的会话读线程随之阻塞，同一会话上的终端、转发等所有通道都会停顿。
+ * 因此两路都应尽快收集（或用 [SshManager.execForOutput]），输出量大时在收集方自行缓冲，
+ * 不要在收集中做耗时处理。收集被取消时向远程进程发送信号并关闭通道。
+ */
+class ExecProcess internal constructor(
+    private val channel: ChannelExec,
+    stdoutStream: InputStream,
+    stderrStream: InputStream,
+    private val onFinished: (ChannelExec) -> Unit
+) {
+
+    private val finished = AtomicBoolean()
+    private val openStreams = AtomicInteger(2)
+
+    /**
+     * 命令的完整输出
+     */
+    data class Output(val stdout: String, val stderr: String, val exitStatus: Int)
+
+    /** 标准输出 */
+    val stdout: Flow<ByteArray> = streamOf(stdoutStream)
+
+    /** 标准错误 */
+    val stderr: Flow<ByteArray> = streamOf(stderrStream)
+
+    /** 标准输入，写完后 close 发送 EOF */
+    val stdin: OutputStream get() = channel.outputStream
+
+    /**
+     * 等待命令结束并返回退出码；服务端未报告退出码（如被信号终止）时为 -1。
+     * 通道在两路输出都读完后才归还，先等待退出码不会丢失缓冲中的输出
+     */
+    suspend fun awaitExit(): Int = withContext(Dispatchers.IO) {
+        // JSch 没有通道关闭回调，只能轮询
+        while (!channel.isClosed) delay(EXIT_POLL_MS)
+        channel.exitStatus
+    }
+
+    /**
+     * 终止命令：发送信号（不带 SIG 前缀，如 TERM、INT、KILL）后关闭通道。
+     * 不支持信号的服务端会忽略该请求，关闭通道后进程在写输出时收到 SIGPIPE
+     */
+    fun cancel(signal: String = DEFAULT_SIGNAL) {
+        if (finished.get()) return
+        try {
+            if (channel.isConnected) channel.sendSignal(signal)
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to send signal $signal: ${e.message}")
+        }
+        finish()
+    }
+
+    fun isRunning(): Boolean = !finished.get() && !channel.isClosed
+
+    private fun finish() {
+        if (finished.compareAndSet(false, true)) onFinished(channel)
+    }
+
+    private fun streamOf(input: InputStream): Flow<ByteArray> = flow {
+        val buffer = ByteArray(READ_BUFFER_SIZE)
+        while (true) {
+            val count = input.read(buffer)
+            if (count < 0) break
+            if (count > 0) emit(buffer.copyOf(count))
+        }
+    }
+        .buffer(STREAM_BUFFER_CHUNKS)
+        .flowOn(Dispatchers.IO)
+        .onCompletion { cause ->
+            when {
+                cause is CancellationException -> cancel()
+                openStreams.decrementAndGet() == 0 -> finish()
+            }
+        }
+
+    companion object {
+        private const val TAG = "ExecProcess"
+        private const val READ_BUFFER_SIZE = 8192
+        private const val STREAM_BUFFER_CHUNKS = 4
+        private const val EXIT_POLL_MS = 20L
+        private const val DEFAULT_SIGNAL = "TERM"
+    }
+}
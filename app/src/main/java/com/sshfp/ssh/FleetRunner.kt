@@ -0,0 +1,171 @@
+package com.sshfp.ssh
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.Log
+import com.sshfp.model.Host
+import kotlinx.coroutines.TimeoutCancellationException
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.conflate
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withTimeout
+import java.io.ByteArrayOutputStream
+
+/**
+ * 批量执行 - 在多台已保存的主机上执行同一条命令
+ *
+ * 同时进行的主机数由 parallelism 限制，每台主机用完立即关闭会话，
+ * 所以同一时刻最多保留 parallelism 个会话和读线程。每台主机只保留前 [MAX_OUTPUT_BYTES] 字节输出，
+ * 输出相同的主机归为一组，只保存一份文本。
+ */
+class FleetRunner(context: Context) {
+
+    private val appContext = context.applicationContext
+    private val pool = SshSessionPool.getInstance(context)
+
+    enum class Status {
+        PENDING,
+        RUNNING,
+        SUCCEEDED,
+        FAILED,
+        TIMED_OUT
+    }
+
+    /**
+     * 输出相同（退出码和文本都相同）的一组主机
+     */
+    data class OutputGroup(
+        val output: String,
+        val exitStatus: Int,
+        val truncated: Boolean,
+        val hosts: List<Host>
+    )
+
+    /**
+     * 执行进度快照，每台主机结束时更新
+     */
+    data class Report(
+        val statuses: Map<Long, Status>,
+        val groups: List<OutputGroup>,
+        val errors: Map<Host, String>
+    ) {
+        val total: Int get() = statuses.size
+        val finished: Int get() = statuses.values.count { it != Status.PENDING && it != Status.RUNNING }
+        val isDone: Boolean get() = finished == total
+    }
+
+    private data class GroupKey(val output: String, val exitStatus: Int, val truncated: Boolean)
+
+    /**
+     * 执行命令并发布进度，收集方处理不过来时只保留最新快照
+     *
+     * @param timeoutMs 单台主机的超时（含连接和执行），超时后终止远程命令
+     */
+    fun run(
+        hosts: List<Host>,
+        command: String,
+        parallelism: Int = DEFAULT_PARALLELISM,
+        timeoutMs: Long = DEFAULT_TIMEOUT_MS
+    ): Flow<Report> = channelFlow {
+        val lock = Mutex()
+        val statuses = LinkedHashMap<Long, Status>()
+        val groups = LinkedHashMap<GroupKey, MutableList<Host>>()
+        val errors = LinkedHashMap<Host, String>()
+        hosts.forEach { statuses[it.id] = Status.PENDING }
+
+        suspend fun publish(update: () -> Unit) {
+            val report = lock.withLock {
+                update()
+                Report(
+                    statuses.toMap(),
+                    groups.map { (key, members) -> OutputGroup(key.output, key.exitStatus, key.truncated, members.toList()) },
+                    errors.toMap()
+                )
+            }
+            send(report)
+        }
+
+        publish {}
+        val permits = Semaphore(parallelism.coerceAtLeast(1))
+        hosts.forEach { host ->
+            launch {
+                permits.withPermit {
+                    publish { statuses[host.id] = Status.RUNNING }
+                    val startedAt = SystemClock.elapsedRealtime()
+                    val outcome = runOn(host, command, timeoutMs)
+                    Log.d(TAG, "${host.address}: ${outcome.status} in ${SystemClock.elapsedRealtime() - startedAt}ms")
+                    publish {
+                        statuses[host.id] = outcome.status
+                        val key = outcome.key
+                        if (key != null) groups.getOrPut(key) { mutableListOf() }.add(host)
+                        outcome.error?.let { errors[host] = it }
+                    }
+                }
+            }
+        }
+    }.conflate()
+
+    private class Outcome(val status: Status, val key: GroupKey? = null, val error: String? = null)
+
+    private suspend fun runOn(host: Host, command: String, timeoutMs: Long): Outcome {
+        val password = pool.savedCredentials(host)
+            ?: return Outcome(Status.FAILED, error = "需要输入密码")
+        val manager = SshManager(appContext)
+        var process: ExecProcess? = null
+        return try {
+            withTimeout(timeoutMs) {
+                manager.connect(host, password.ifEmpty { null }).getOrThrow()
+                val started = manager.exec(command).getOrThrow()
+                process = started
+                collectOutput(started)
+            }
+        } catch (e: TimeoutCancellationException) {
+            process?.cancel()
+            Outcome(Status.TIMED_OUT, error = "超时")
+        } catch (e: Exception) {
+            process?.cancel()
+            Outcome(Status.FAILED, error = e.message ?: e.javaClass.simpleName)
+        } finally {
+            manager.disconnect(closeIfIdle = true)
+        }
+    }
+
+    /**
+     * 合并 stdout/stderr，超过上限的部分读出后丢弃，保证远程进程不会因输出堵塞
+     */
+    private suspend fun collectOutput(process: ExecProcess): Outcome = coroutineScope {
+        val buffer = ByteArrayOutputStream()
+        var truncated = false
+        val sink: suspend (ByteArray) -> Unit = { chunk ->
+            synchronized(buffer) {
+                val room = MAX_OUTPUT_BYTES - buffer.size()
+                if (room > 0) buffer.write(chunk, 0, minOf(room, chunk.size))
+                if (chunk.size > room) truncated = true
+            }
+        }
+        val stdout = async { process.stdout.collect { sink(it) } }
+        val stderr = async { process.stderr.collect { sink(it) } }
+        stdout.await()
+        stderr.await()
+        val exitStatus = process.awaitExit()
+        val output = synchronized(buffer) { buffer.toString() }.trimEnd()
+        Outcome(
+            if (exitStatus == 0) Status.SUCCEEDED else Status.FAILED,
+            GroupKey(output, exitStatus, truncated)
+        )
+    }
+
+    companion object {
+        private const val TAG = "FleetRunner"
+        const val DEFAULT_PARALLELISM = 16
+        const val DEFAULT_TIMEOUT_MS = 30 * 1000L
+        private const val MAX_OUTPUT_BYTES = 64 * 1024
+    }
+}
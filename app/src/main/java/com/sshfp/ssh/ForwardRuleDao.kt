@@ -0,0 +1,31 @@
+package com.sshfp.ssh
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+import androidx.room.Update
+import com.sshfp.model.ForwardRule
+import kotlinx.coroutines.flow.Flow
+
+/**
+ * 端口转发规则数据访问对象
+ */
+@Dao
+interface ForwardRuleDao {
+
+    @Query("SELECT * FROM forward_rules WHERE hostId = :hostId ORDER BY id")
+    fun getRules(hostId: Long): Flow<List<ForwardRule>>
+
+    @Query("SELECT * FROM forward_rules WHERE hostId = :hostId AND enabled = 1 ORDER BY id")
+    suspend fun getEnabledRules(hostId: Long): List<ForwardRule>
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    suspend fun insertRule(rule: ForwardRule): Long
+
+    @Update
+    suspend fun updateRule(rule: ForwardRule)
+
+    @Query("DELETE FROM forward_rules WHERE id = :id")
+    suspend fun deleteRule(id: Long)
+}
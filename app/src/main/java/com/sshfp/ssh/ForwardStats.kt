@@ -0,0 +1,146 @@
+package com.sshfp.ssh
+
+import android.os.SystemClock
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 单条转发的流量统计，发送方向指从本机一侧流向SSH服务器一侧
+ */
+class ForwardStats {
+
+    val bytesSent = AtomicLong()
+    val bytesReceived = AtomicLong()
+    val activeConnections = AtomicInteger()
+    val totalConnections = AtomicLong()
+
+    // 动态转发（SOCKS5）按目标地址统计，键为 host:port
+    private val destinations = ConcurrentHashMap<String, Destination>()
+
+    private var lastSent = 0L
+    private var lastReceived = 0L
+    private var lastSampleAt = SystemClock.elapsedRealtime()
+
+    /**
+     * 统计快照
+     */
+    data class Snapshot(
+        val bytesSent: Long,
+        val bytesReceived: Long,
+        val sendBytesPerSecond: Long,
+        val receiveBytesPerSecond: Long,
+        val activeConnections: Int,
+        val totalConnections: Long,
+        val destinations: List<DestinationSnapshot> = emptyList()
+    )
+
+    /**
+     * 单个目标地址的统计快照，openMs 为打开 direct-tcpip 通道的耗时
+     */
+    data class DestinationSnapshot(
+        val destination: String,
+        val activeConnections: Int,
+        val totalConnections: Long,
+        val failures: Long,
+        val lastOpenMs: Long,
+        val averageOpenMs: Long
+    )
+
+    /**
+     * 单个目标地址的连接计数和开通道延迟
+     */
+    class Destination internal constructor(val destination: String) {
+        val activeConnections = AtomicInteger()
+        val totalConnections = AtomicLong()
+        val failures = AtomicLong()
+        private var lastOpenMs = -1L
+        private var totalOpenMs = 0L
+        internal var lastUsedAt = SystemClock.elapsedRealtime()
+
+        @Synchronized
+        fun onOpen(openMs: Long) {
+            activeConnections.incrementAndGet()
+            totalConnections.incrementAndGet()
+            lastOpenMs = openMs
+            totalOpenMs += openMs
+            lastUsedAt = SystemClock.elapsedRealtime()
+        }
+
+        fun onClose() {
+            activeConnections.decrementAndGet()
+        }
+
+        fun onFailure() {
+            failures.incrementAndGet()
+        }
+
+        @Synchronized
+        internal fun sample(): DestinationSnapshot {
+            val total = totalConnections.get()
+            return DestinationSnapshot(
+                destination = destination,
+                activeConnections = activeConnections.get(),
+                totalConnections = total,
+                failures = failures.get(),
+                lastOpenMs = lastOpenMs,
+                averageOpenMs = if (total > 0) totalOpenMs / total else -1
+            )
+        }
+    }
+
+    /**
+     * 取得目标地址的统计项，数量超过上限时丢弃已空闲的旧条目
+     */
+    fun destination(host: String, port: Int): Destination {
+        val key = "$host:$port"
+        destinations[key]?.let { return it }
+        if (destinations.size >= MAX_DESTINATIONS) {
+            destinations.values
+                .filter { it.activeConnections.get() == 0 }
+                .sortedBy { it.lastUsedAt }
+                .take(destinations.size - MAX_DESTINATIONS + 1)
+                .forEach { destinations.remove(it.destination) }
+        }
+        return destinations.getOrPut(key) { Destination(key) }
+    }
+
+    fun onOpen() {
+        activeConnections.incrementAndGet()
+        totalConnections.incrementAndGet()
+    }
+
+    fun onClose() {
+        activeConnections.decrementAndGet()
+    }
+
+    /**
+     * 生成快照，速率为距上次采样以来的平均值
+     */
+    @Synchronized
+    fun sample(): Snapshot {
+        val now = SystemClock.elapsedRealtime()
+        val elapsed = (now - lastSampleAt).coerceAtLeast(1)
+        val sent = bytesSent.get()
+        val received = bytesReceived.get()
+        val snapshot = Snapshot(
+            bytesSent = sent,
+            bytesReceived = received,
+            sendBytesPerSecond = (sent - lastSent) * 1000 / elapsed,
+            receiveBytesPerSecond = (received - lastReceived) * 1000 / elapsed,
+            activeConnections = activeConnections.get(),
+            totalConnections = totalConnections.get(),
+            destinations = destinations.values
+                .map { it.sample() }
+                .sortedWith(compareByDescending<DestinationSnapshot> { it.activeConnections }.thenByDescending { it.totalConnections })
+        )
+        lastSent = sent
+        lastReceived = received
+        lastSampleAt = now
+        return snapshot
+    }
+
+    companion object {
+        private const val MAX_DESTINATIONS = 256
+    }
+}
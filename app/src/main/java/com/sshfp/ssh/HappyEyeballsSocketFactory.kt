@@ -0,0 +1,111 @@
+package com.sshfp.ssh
+
+import android.util.Log
+import com.jcraft.jsch.SocketFactory
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.TimeoutCancellationException
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import kotlinx.coroutines.withTimeoutOrNull
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.net.SocketTimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 并行竞速连接的Socket工厂（RFC 8305 Happy Eyeballs）
+ *
+ * 解析出的所有地址依次错开 [STAGGER_MS] 发起TCP连接，前一个地址失败时立即尝试下一个，
+ * 第一个连上的地址胜出，其余连接丢弃。双栈主机IPv6不通时不必等满整个超时。
+ */
+class HappyEyeballsSocketFactory(
+    private val dnsCache: DnsCache,
+    private val connectTimeoutMs: Int
+) : SocketFactory {
+
+    override fun createSocket(host: String, port: Int): Socket {
+        // 握手线程上的计时器，记录DNS和TCP耗时
+        val timeline = ConnectionTimeline.current()
+        val addresses = dnsCache.resolve(host)
+        if (addresses.isEmpty()) throw IOException("No address for $host")
+        timeline?.mark(ConnectionTimeline.Phase.DNS)
+        return race(host, port, addresses).also { timeline?.mark(ConnectionTimeline.Phase.TCP) }
+    }
+
+    private fun race(host: String, port: Int, addresses: List<InetAddress>): Socket = runBlocking {
+
+        val winner = CompletableDeferred<Socket>()
+        val failures = AtomicInteger()
+        val started = List(addresses.size) { CompletableDeferred<Unit>() }
+        val failed = List(addresses.size) { CompletableDeferred<Unit>() }
+
+        // 竞速连接放在独立作用域：阻塞中的 connect 无法被取消，不能拖住调用方
+        addresses.forEachIndexed { index, address ->
+            attemptScope.launch {
+                if (index > 0) {
+                    started[index - 1].await()
+                    withTimeoutOrNull(STAGGER_MS) { failed[index - 1].await() }
+                }
+                started[index].complete(Unit)
+                if (winner.isCompleted) return@launch
+
+                val socket = Socket()
+                try {
+                    socket.tcpNoDelay = true
+                    socket.connect(InetSocketAddress(address, port), connectTimeoutMs)
+                    if (winner.complete(socket)) {
+                        dnsCache.markPreferred(host, address)
+                    } else {
+                        socket.close()
+                    }
+                } catch (e: IOException) {
+                    Log.d(TAG, "Connect to $address failed: ${e.message}")
+                    closeQuietly(socket)
+                    failed[index].complete(Unit)
+                    if (failures.incrementAndGet() == addresses.size) {
+                        winner.completeExceptionally(e)
+                    }
+                }
+            }
+        }
+
+        try {
+            withTimeout(connectTimeoutMs.toLong()) { winner.await() }
+        } catch (e: TimeoutCancellationException) {
+            winner.cancel()
+            dnsCache.invalidate(host)
+            throw SocketTimeoutException("Connect to $host:$port timed out")
+        } catch (e: IOException) {
+            dnsCache.invalidate(host)
+            throw e
+        }
+    }
+
+    override fun getInputStream(socket: Socket): InputStream = socket.getInputStream()
+
+    override fun getOutputStream(socket: Socket): OutputStream = socket.getOutputStream()
+
+    private fun closeQuietly(socket: Socket) {
+        try {
+            socket.close()
+        } catch (ignored: IOException) {
+        }
+    }
+
+    companion object {
+        private const val TAG = "HappyEyeballs"
+
+        /** RFC 8305 推荐的连接尝试间隔 */
+        private const val STAGGER_MS = 250L
+
+        private val attemptScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    }
+}
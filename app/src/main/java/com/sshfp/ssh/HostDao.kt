@@ -45,6 +45,9 @@ interface HostDao {
     @Query("UPDATE hosts SET lastConnectedAt = :timestamp WHERE id = :hostId")
     suspend fun updateLastConnected(hostId: Long, timestamp: Long)
 
+    @Query("UPDATE hosts SET lastAuthMethod = :method WHERE id = :hostId")
+    suspend fun updateLastAuthMethod(hostId: Long, method: String)
+
     @Query("UPDATE hosts SET sortOrder = :order WHERE id = :hostId")
     suspend fun updateSortOrder(hostId: Long, order: Int)
 }
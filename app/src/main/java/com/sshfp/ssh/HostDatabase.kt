@@ -4,19 +4,166 @@ import android.content.Context
 import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+import com.sshfp.model.ConnectionTiming
+import com.sshfp.model.ForwardRule
 import com.sshfp.model.Host
+import com.sshfp.model.HostAlgorithmProfile
+import com.sshfp.model.KnownHost
+import com.sshfp.model.TransferRecord
 
 /**
  * 主机数据库
  */
-@Database(entities = [Host::class], version = 1)
+@Database(
+    entities = [
+        Host::class, HostAlgorithmProfile::class, KnownHost::class, ConnectionTiming::class,
+        ForwardRule::class, TransferRecord::class
+    ],
+    version = 11
+)
 abstract class HostDatabase : RoomDatabase() {
     abstract fun hostDao(): HostDao
+    abstract fun hostProfileDao(): HostProfileDao
+    abstract fun knownHostDao(): KnownHostDao
+    abstract fun connectionHistoryDao(): ConnectionHistoryDao
+    abstract fun forwardRuleDao(): ForwardRuleDao
+    abstract fun transferJournalDao(): TransferJournalDao
 
     companion object {
         @Volatile
         private var INSTANCE: HostDatabase? = null
 
+        /**
+         * v2: 新增主机算法配置表
+         */
+        private val MIGRATION_1_2 = object : Migration(1, 2) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `host_algorithm_profiles` (" +
+                        "`hostId` INTEGER NOT NULL, `cipherOrder` TEXT NOT NULL, " +
+                        "`macOrder` TEXT NOT NULL, `cipherBytesPerSecond` INTEGER NOT NULL, " +
+                        "`macBytesPerSecond` INTEGER NOT NULL, `benchmarkedAt` INTEGER NOT NULL, " +
+                        "PRIMARY KEY(`hostId`))"
+                )
+            }
+        }
+
+        /**
+         * v3: 主机新增压缩模式
+         */
+        private val MIGRATION_2_3 = object : Migration(2, 3) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE `hosts` ADD COLUMN `compression` TEXT NOT NULL DEFAULT 'OFF'")
+            }
+        }
+
+        /**
+         * v4: 新增已知主机公钥表
+         */
+        private val MIGRATION_3_4 = object : Migration(3, 4) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `known_hosts` (" +
+                        "`host` TEXT NOT NULL, `type` TEXT NOT NULL, `key` TEXT NOT NULL, " +
+                        "`addedAt` INTEGER NOT NULL, PRIMARY KEY(`host`, `type`))"
+                )
+            }
+        }
+
+        /**
+         * v5: 新增连接耗时历史表
+         */
+        private val MIGRATION_4_5 = object : Migration(4, 5) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `connection_history` (" +
+                        "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `hostId` INTEGER NOT NULL, " +
+                        "`kind` TEXT NOT NULL, `success` INTEGER NOT NULL, `timestamp` INTEGER NOT NULL, " +
+                        "`dnsMs` INTEGER NOT NULL, `tcpMs` INTEGER NOT NULL, `versionMs` INTEGER NOT NULL, " +
+                        "`kexMs` INTEGER NOT NULL, `authMs` INTEGER NOT NULL, `channelOpenMs` INTEGER NOT NULL, " +
+                        "`firstByteMs` INTEGER NOT NULL, `totalMs` INTEGER NOT NULL)"
+                )
+                db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_connection_history_hostId_timestamp` " +
+                        "ON `connection_history` (`hostId`, `timestamp`)"
+                )
+            }
+        }
+
+        /**
+         * v6: 主机新增跳板机
+         */
+        private val MIGRATION_5_6 = object : Migration(5, 6) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE `hosts` ADD COLUMN `jumpHostId` INTEGER")
+            }
+        }
+
+        /**
+         * v7: 新增端口转发规则表
+         */
+        private val MIGRATION_6_7 = object : Migration(6, 7) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `forward_rules` (" +
+                        "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `hostId` INTEGER NOT NULL, " +
+                        "`type` TEXT NOT NULL, `bindAddress` TEXT NOT NULL, `bindPort` INTEGER NOT NULL, " +
+                        "`destHost` TEXT NOT NULL, `destPort` INTEGER NOT NULL, `enabled` INTEGER NOT NULL)"
+                )
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_forward_rules_hostId` ON `forward_rules` (`hostId`)")
+            }
+        }
+
+        /**
+         * v8: 主机记录上次成功的认证方式，连接历史记录认证往返次数
+         */
+        private val MIGRATION_7_8 = object : Migration(7, 8) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE `hosts` ADD COLUMN `lastAuthMethod` TEXT NOT NULL DEFAULT ''")
+                db.execSQL("ALTER TABLE `connection_history` ADD COLUMN `authMethod` TEXT")
+                db.execSQL("ALTER TABLE `connection_history` ADD COLUMN `authRoundTrips` INTEGER NOT NULL DEFAULT -1")
+            }
+        }
+
+        /**
+         * v9: 新增传输日志表
+         */
+        private val MIGRATION_8_9 = object : Migration(8, 9) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `transfer_journal` (" +
+                        "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `hostId` INTEGER NOT NULL, " +
+                        "`direction` TEXT NOT NULL, `source` TEXT NOT NULL, `destination` TEXT NOT NULL, " +
+                        "`size` INTEGER NOT NULL, `mtime` INTEGER NOT NULL, `verifiedOffset` INTEGER NOT NULL, " +
+                        "`ranges` TEXT NOT NULL, `state` TEXT NOT NULL, `error` TEXT, " +
+                        "`createdAt` INTEGER NOT NULL, `updatedAt` INTEGER NOT NULL)"
+                )
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_transfer_journal_hostId` ON `transfer_journal` (`hostId`)")
+            }
+        }
+
+        /**
+         * v10: 传输日志新增 recursive 列
+         */
+        private val MIGRATION_9_10 = object : Migration(9, 10) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE `transfer_journal` ADD COLUMN `recursive` INTEGER NOT NULL DEFAULT 0")
+            }
+        }
+
+        /**
+         * v11: 传输日志保存加入队列时的优先级和执行条件
+         */
+        private val MIGRATION_10_11 = object : Migration(10, 11) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE `transfer_journal` ADD COLUMN `priority` TEXT NOT NULL DEFAULT 'NORMAL'")
+                db.execSQL("ALTER TABLE `transfer_journal` ADD COLUMN `unmeteredOnly` INTEGER NOT NULL DEFAULT 0")
+                db.execSQL("ALTER TABLE `transfer_journal` ADD COLUMN `requiresCharging` INTEGER NOT NULL DEFAULT 0")
+            }
+        }
+
         fun getInstance(context: Context): HostDatabase {
             return INSTANCE ?: synchronized(this) {
                 INSTANCE ?: buildDatabase(context).also { INSTANCE = it }
@@ -29,6 +176,10 @@ abstract class HostDatabase : RoomDatabase() {
                 HostDatabase::class.java,
                 "sshfp.db"
             )
+                .addMigrations(
+                    MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6,
+                    MIGRATION_6_7, MIGRATION_7_8, MIGRATION_8_9, MIGRATION_9_10, MIGRATION_10_11
+                )
                 .fallbackToDestructiveMigration()
                 .build()
         }
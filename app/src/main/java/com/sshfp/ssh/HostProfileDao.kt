@@ -0,0 +1,23 @@
+package com.sshfp.ssh
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+import com.sshfp.model.HostAlgorithmProfile
+
+/**
+ * 主机算法配置数据访问对象
+ */
+@Dao
+interface HostProfileDao {
+
+    @Query("SELECT * FROM host_algorithm_profiles WHERE hostId = :hostId")
+    suspend fun getProfile(hostId: Long): HostAlgorithmProfile?
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    suspend fun insertProfile(profile: HostAlgorithmProfile)
+
+    @Query("DELETE FROM host_algorithm_profiles WHERE hostId = :hostId")
+    suspend fun deleteProfile(hostId: Long)
+}
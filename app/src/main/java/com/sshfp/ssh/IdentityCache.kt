@@ -0,0 +1,185 @@
+package com.sshfp.ssh
+
+import android.os.SystemClock
+import android.util.Log
+import com.jcraft.jsch.Identity
+import com.jcraft.jsch.IdentityRepository
+import com.jcraft.jsch.JSch
+import com.jcraft.jsch.JSchException
+import com.jcraft.jsch.KeyPair
+import java.io.Closeable
+import java.io.File
+import java.util.Vector
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * 已解析私钥缓存
+ *
+ * 私钥文件只读取、解析和解密一次，解密后的密钥在内存中保留 [ttlMs]（每次使用后重新计时）。
+ * 每个会话通过 [repositoryFor] 只提供该主机自己的私钥，不再往共享的 JSch 实例上累加 identity。
+ * 同一私钥的加载按路径串行，多台主机同时连接（批量执行、预连接）时只解密一次，其余等待并复用结果。
+ * 私钥被替换或过期时，仍有会话在认证中使用的要等它们归还 [Lease] 后才清除密钥材料。
+ */
+class IdentityCache(var ttlMs: Long = DEFAULT_TTL_MS) {
+
+    private val entries = HashMap<String, Entry>()
+    private val loadLocks = HashMap<String, Any>()
+
+    private class Entry(
+        val identity: KeyPairIdentity,
+        val lastModified: Long,
+        val passphrase: String?
+    ) {
+        var lastUsed = SystemClock.elapsedRealtime()
+    }
+
+    /**
+     * 会话对私钥的占用，认证结束（Session.connect 返回或失败）后关闭
+     */
+    class Lease internal constructor(private val identity: KeyPairIdentity) : Closeable {
+
+        private val closed = AtomicBoolean()
+
+        /** 只包含该私钥的 IdentityRepository，供 Session.setIdentityRepository 使用 */
+        val repository: IdentityRepository = SingleIdentityRepository(identity)
+
+        override fun close() {
+            if (closed.compareAndSet(false, true)) identity.release()
+        }
+    }
+
+    /**
+     * 取得指定私钥的占用，缓存失效（文件被修改、口令不同或过期）时重新加载。在IO线程调用，
+     * 同一私钥正在被其他会话加载时等待其完成
+     */
+    @Throws(JSchException::class)
+    fun repositoryFor(jsch: JSch, keyPath: String, passphrase: String?): Lease {
+        val lastModified = File(keyPath).lastModified()
+        cached(keyPath, lastModified, passphrase)?.let { return Lease(it) }
+        val loadLock = synchronized(loadLocks) { loadLocks.getOrPut(keyPath) { Any() } }
+        synchronized(loadLock) {
+            // 等待期间其他会话可能已加载完成
+            cached(keyPath, lastModified, passphrase)?.let { return Lease(it) }
+
+            val start = SystemClock.elapsedRealtime()
+            val keyPair = KeyPair.load(jsch, keyPath)
+            if (keyPair.isEncrypted && !keyPair.decrypt(passphrase ?: "")) {
+                keyPair.dispose()
+                throw JSchException("Invalid passphrase for $keyPath")
+            }
+            val identity = KeyPairIdentity(keyPath, keyPair)
+            Log.d(TAG, "Loaded key $keyPath (${identity.algName}) in ${SystemClock.elapsedRealtime() - start}ms")
+
+            identity.retain()
+            val replaced = synchronized(entries) { entries.put(keyPath, Entry(identity, lastModified, passphrase)) }
+            replaced?.identity?.retire()
+            return Lease(identity)
+        }
+    }
+
+    /**
+     * 缓存仍有效时占用并返回，失效的条目移出缓存
+     */
+    private fun cached(keyPath: String, lastModified: Long, passphrase: String?): KeyPairIdentity? {
+        val stale = synchronized(entries) {
+            val entry = entries[keyPath] ?: return null
+            if (entry.lastModified == lastModified && entry.passphrase == passphrase) {
+                entry.lastUsed = SystemClock.elapsedRealtime()
+                entry.identity.retain()
+                return entry.identity
+            }
+            entries.remove(keyPath)
+        }
+        stale?.identity?.retire()
+        return null
+    }
+
+    /**
+     * 清除过期的私钥，没有会话占用时立即释放内存中的密钥材料
+     */
+    fun evictExpired() {
+        val now = SystemClock.elapsedRealtime()
+        val expired = synchronized(entries) {
+            val keys = entries.filterValues { now - it.lastUsed > ttlMs }.keys
+            keys.mapNotNull { entries.remove(it) }
+        }
+        expired.forEach { it.identity.retire() }
+    }
+
+    /**
+     * 清除全部缓存
+     */
+    fun clear() {
+        val all = synchronized(entries) { entries.values.toList().also { entries.clear() } }
+        all.forEach { it.identity.retire() }
+    }
+
+    /**
+     * 包装已解密的 KeyPair；生命周期由缓存管理，JSch 调用 clear() 时不释放。
+     * 移出缓存（[retire]）且没有会话占用时才清除密钥材料
+     */
+    internal class KeyPairIdentity(private val path: String, private val keyPair: KeyPair) : Identity {
+
+        private val algName = algNameOf(keyPair.publicKeyBlob)
+        private var users = 0
+        private var retired = false
+
+        override fun setPassphrase(passphrase: ByteArray?): Boolean = true
+
+        override fun getPublicKeyBlob(): ByteArray = keyPair.publicKeyBlob
+
+        override fun getSignature(data: ByteArray): ByteArray? = synchronized(keyPair) {
+            keyPair.getSignature(data)
+        }
+
+        override fun decrypt(): Boolean = true
+
+        override fun getAlgName(): String = algName
+
+        override fun getName(): String = path
+
+        override fun isEncrypted(): Boolean = false
+
+        override fun clear() {}
+
+        fun retain() = synchronized(keyPair) { users++ }
+
+        fun release() = synchronized(keyPair) {
+            users--
+            if (retired && users == 0) keyPair.dispose()
+        }
+
+        fun retire() = synchronized(keyPair) {
+            retired = true
+            if (users == 0) keyPair.dispose()
+        }
+
+        /**
+         * 公钥blob以 uint32 长度 + 算法名开头
+         */
+        private fun algNameOf(blob: ByteArray?): String {
+            if (blob == null || blob.size < 4) return ""
+            val length = ((blob[0].toInt() and 0xff) shl 24) or ((blob[1].toInt() and 0xff) shl 16) or
+                ((blob[2].toInt() and 0xff) shl 8) or (blob[3].toInt() and 0xff)
+            if (length <= 0 || length > blob.size - 4) return ""
+            return String(blob, 4, length, Charsets.US_ASCII)
+        }
+    }
+
+    /**
+     * 只含一个私钥的 IdentityRepository
+     */
+    private class SingleIdentityRepository(private val identity: Identity) : IdentityRepository {
+        override fun getName(): String = "sshfp-identity-cache"
+        override fun getStatus(): Int = IdentityRepository.RUNNING
+        override fun getIdentities(): Vector<Identity> = Vector(listOf(identity))
+        override fun add(identity: ByteArray?): Boolean = false
+        override fun remove(blob: ByteArray?): Boolean = false
+        override fun removeAll() {}
+    }
+
+    companion object {
+        private const val TAG = "IdentityCache"
+        private const val DEFAULT_TTL_MS = 30 * 60 * 1000L
+    }
+}
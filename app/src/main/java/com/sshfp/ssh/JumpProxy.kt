@@ -0,0 +1,174 @@
+package com.sshfp.ssh
+
+import android.os.SystemClock
+import com.jcraft.jsch.ChannelDirectTCPIP
+import com.jcraft.jsch.Proxy
+import com.jcraft.jsch.Session
+import com.jcraft.jsch.SocketFactory
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.Socket
+import java.net.SocketTimeoutException
+
+/**
+ * 跳板机代理（ProxyJump）- 经跳板机会话上的 direct-tcpip 通道连接目标主机
+ *
+ * 跳板机 Session 由 [SshSessionPool] 共享，多个目标主机各占一个 direct-tcpip 通道，只握手一次。
+ * JSch 的连接/读超时和 ServerAliveInterval 都通过 socket.setSoTimeout 生效，所以 [getSocket]
+ * 返回一个只记录超时的占位 Socket，通道数据经 [TimedPipe] 读取，超时抛出 SocketTimeoutException，
+ * 版本交换、密钥交换和保活检测与直连时一样会超时。
+ * 管道由跳板机会话共用的读线程写入，写入方从不等待：目标会话读得慢时缓冲增长到 [MAX_PIPE_BUFFER_SIZE]，
+ * 仍放不下就只断开这一条 direct-tcpip 通道，不拖住跳板机上的其他目标和通道。
+ */
+class JumpProxy(private val bastion: Session) : Proxy {
+
+    private var channel: ChannelDirectTCPIP? = null
+    private val pipe = TimedPipe()
+    private var output: OutputStream? = null
+    private val socket = TimeoutSocket()
+
+    override fun connect(socketFactory: SocketFactory?, host: String, port: Int, timeout: Int) {
+        val channel = bastion.openChannel("direct-tcpip") as ChannelDirectTCPIP
+        channel.setHost(host)
+        channel.setPort(port)
+        // 必须在 connect 之前设置输出，否则对端的早期数据（版本串）会丢失；通道关闭时 JSch 关闭管道
+        channel.setOutputStream(pipe)
+        output = channel.outputStream
+        channel.connect(if (timeout > 0) timeout else DEFAULT_TIMEOUT_MS)
+        this.channel = channel
+        ConnectionTimeline.current()?.mark(ConnectionTimeline.Phase.TCP)
+    }
+
+    override fun getInputStream(): InputStream = pipe.input
+
+    override fun getOutputStream(): OutputStream? = output
+
+    override fun getSocket(): Socket = socket
+
+    override fun close() {
+        channel?.disconnect()
+        channel = null
+        pipe.close()
+    }
+
+    /**
+     * 占位 Socket：只保存 JSch 设置的读超时，交给 [TimedPipe]
+     */
+    private inner class TimeoutSocket : Socket() {
+        override fun setSoTimeout(timeout: Int) {
+            pipe.timeoutMs = timeout
+        }
+
+        override fun getSoTimeout(): Int = pipe.timeoutMs
+
+        override fun close() {
+            this@JumpProxy.close()
+        }
+    }
+
+    /**
+     * 通道数据管道：跳板机会话的读线程写入，目标会话从 [input] 读取。
+     * 缓冲满时倍增到上限，超过上限时关闭管道并抛出 IOException，JSch 随之断开该通道；
+     * 读取按 [timeoutMs] 超时，0 表示不超时
+     */
+    private class TimedPipe : OutputStream() {
+        private val lock = Object()
+        private var buffer = ByteArray(PIPE_BUFFER_SIZE)
+        private var readPos = 0
+        private var count = 0
+        private var closed = false
+
+        @Volatile
+        var timeoutMs = 0
+
+        override fun write(b: Int) = write(byteArrayOf(b.toByte()), 0, 1)
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            var offset = off
+            var remaining = len
+            synchronized(lock) {
+                if (closed) throw IOException("Pipe closed")
+                if (buffer.size - count < remaining) grow(count + remaining)
+                while (remaining > 0) {
+                    val n = minOf(buffer.size - count, remaining)
+                    val writePos = (readPos + count) % buffer.size
+                    val first = minOf(n, buffer.size - writePos)
+                    System.arraycopy(b, offset, buffer, writePos, first)
+                    System.arraycopy(b, offset + first, buffer, 0, n - first)
+                    count += n
+                    offset += n
+                    remaining -= n
+                    lock.notifyAll()
+                }
+            }
+        }
+
+        /**
+         * 按顺序复制到更大的缓冲；超过上限时关闭管道，读取方读完已缓冲的数据后收到EOF
+         */
+        private fun grow(required: Int) {
+            if (required > MAX_PIPE_BUFFER_SIZE) {
+                closed = true
+                lock.notifyAll()
+                throw IOException("Jump channel backlog exceeds $MAX_PIPE_BUFFER_SIZE bytes")
+            }
+            var size = buffer.size
+            while (size < required) size *= 2
+            val grown = ByteArray(minOf(size, MAX_PIPE_BUFFER_SIZE))
+            val first = minOf(count, buffer.size - readPos)
+            System.arraycopy(buffer, readPos, grown, 0, first)
+            System.arraycopy(buffer, 0, grown, first, count - first)
+            buffer = grown
+            readPos = 0
+        }
+
+        override fun close() {
+            synchronized(lock) {
+                closed = true
+                lock.notifyAll()
+            }
+        }
+
+        val input: InputStream = object : InputStream() {
+            override fun read(): Int {
+                val one = ByteArray(1)
+                return if (read(one, 0, 1) < 0) -1 else one[0].toInt() and 0xff
+            }
+
+            override fun read(b: ByteArray, off: Int, len: Int): Int {
+                if (len == 0) return 0
+                synchronized(lock) {
+                    val timeout = timeoutMs.toLong()
+                    val deadline = SystemClock.elapsedRealtime() + timeout
+                    while (count == 0) {
+                        if (closed) return -1
+                        if (timeout > 0) {
+                            val left = deadline - SystemClock.elapsedRealtime()
+                            if (left <= 0) throw SocketTimeoutException("Read timed out")
+                            lock.wait(left)
+                        } else {
+                            lock.wait()
+                        }
+                    }
+                    val n = minOf(len, count, buffer.size - readPos)
+                    System.arraycopy(buffer, readPos, b, off, n)
+                    readPos = (readPos + n) % buffer.size
+                    count -= n
+                    lock.notifyAll()
+                    return n
+                }
+            }
+
+            override fun available(): Int = synchronized(lock) { count }
+
+            override fun close() = this@TimedPipe.close()
+        }
+    }
+
+    companion object {
+        private const val DEFAULT_TIMEOUT_MS = 15000
+        private const val PIPE_BUFFER_SIZE = 32 * 1024
+        private const val MAX_PIPE_BUFFER_SIZE = 4 * 1024 * 1024
+    }
+}
@@ -0,0 +1,129 @@
+package com.sshfp.ssh
+
+import android.os.SystemClock
+import android.util.Log
+import com.jcraft.jsch.Session
+
+/**
+ * 连接状态
+ */
+enum class ConnectionState {
+    DISCONNECTED,
+    CONNECTING,
+    CONNECTED
+}
+
+/**
+ * SSH保活策略 - 按主机自适应调整 keepalive 间隔
+ *
+ * 利用 JSch 的 ServerAliveInterval 机制：读超时后发送 keepalive，
+ * 连续 [MISSED_REPLIES_MAX] 次无回应即断开会话。
+ * 间隔采用加性增、乘性减：稳定运行一段时间后逐步放大，
+ * 会话意外断开时减半，并把断开时的间隔记为该主机 NAT 超时的上界。
+ */
+class KeepaliveMonitor {
+
+    private val hosts = HashMap<Long, HostKeepalive>()
+
+    private class HostKeepalive {
+        var intervalMs = DEFAULT_INTERVAL_MS
+        var ceilingMs = MAX_INTERVAL_MS
+        var stableSince = SystemClock.elapsedRealtime()
+        var probeUntil = 0L
+    }
+
+    /**
+     * 连接前为Session设置保活参数
+     */
+    fun configure(hostId: Long, session: Session) {
+        val interval = synchronized(hosts) {
+            stateOf(hostId).also { it.stableSince = SystemClock.elapsedRealtime() }.intervalMs
+        }
+        session.setServerAliveInterval(interval)
+        session.setServerAliveCountMax(MISSED_REPLIES_MAX)
+    }
+
+    /**
+     * 当前使用的间隔（毫秒）
+     */
+    fun intervalFor(hostId: Long): Int = synchronized(hosts) { stateOf(hostId).intervalMs }
+
+    /**
+     * 会话仍存活时定期调用：探测窗口结束后恢复间隔，稳定足够久则放大间隔
+     */
+    fun onHealthy(hostId: Long, session: Session) {
+        val now = SystemClock.elapsedRealtime()
+        val newInterval = synchronized(hosts) {
+            val state = stateOf(hostId)
+            when {
+                state.probeUntil > 0 && now >= state.probeUntil -> {
+                    state.probeUntil = 0
+                    state.intervalMs
+                }
+                state.probeUntil == 0L && now - state.stableSince >= STABLE_PERIOD_MS -> {
+                    val limit = minOf(MAX_INTERVAL_MS, state.ceilingMs * 4 / 5)
+                    val raised = minOf(limit, state.intervalMs * 3 / 2)
+                    state.stableSince = now
+                    if (raised > state.intervalMs) {
+                        state.intervalMs = raised
+                        raised
+                    } else null
+                }
+                else -> null
+            }
+        } ?: return
+        apply(session, newInterval)
+    }
+
+    /**
+     * 会话意外断开：把当前间隔记为上界并减半
+     */
+    fun onPeerLost(hostId: Long) {
+        synchronized(hosts) {
+            val state = stateOf(hostId)
+            state.ceilingMs = state.intervalMs
+            state.intervalMs = maxOf(MIN_INTERVAL_MS, state.intervalMs / 2)
+            Log.w(TAG, "Peer lost for host $hostId, keepalive interval now ${state.intervalMs}ms")
+        }
+    }
+
+    /**
+     * 网络变化等场景下立即探测：发送一次 keepalive 并在短时间内使用短间隔，
+     * 失效的会话会在数秒内被 JSch 断开
+     */
+    fun probe(hostId: Long, session: Session) {
+        synchronized(hosts) {
+            stateOf(hostId).probeUntil = SystemClock.elapsedRealtime() + PROBE_WINDOW_MS
+        }
+        apply(session, PROBE_INTERVAL_MS)
+        try {
+            session.sendKeepAliveMsg()
+        } catch (e: Exception) {
+            Log.w(TAG, "Keepalive probe failed: ${e.message}")
+            session.disconnect()
+        }
+    }
+
+    private fun stateOf(hostId: Long): HostKeepalive = hosts.getOrPut(hostId) { HostKeepalive() }
+
+    private fun apply(session: Session, intervalMs: Int) {
+        try {
+            session.setServerAliveInterval(intervalMs)
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to update keepalive interval", e)
+        }
+    }
+
+    companion object {
+        private const val TAG = "KeepaliveMonitor"
+        private const val DEFAULT_INTERVAL_MS = 15 * 1000
+        private const val MIN_INTERVAL_MS = 5 * 1000
+        private const val MAX_INTERVAL_MS = 120 * 1000
+        private const val PROBE_INTERVAL_MS = 2 * 1000
+        private const val PROBE_WINDOW_MS = 10 * 1000L
+        private const val STABLE_PERIOD_MS = 10 * 60 * 1000L
+
+        /** 连续未回应的 keepalive 次数达到该值即判定对端失联 */
+        const val MISSED_REPLIES_MAX = 3
+    }
+}
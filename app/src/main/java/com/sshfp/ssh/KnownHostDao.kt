@@ -0,0 +1,26 @@
+package com.sshfp.ssh
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+import com.sshfp.model.KnownHost
+
+/**
+ * 已知主机公钥数据访问对象
+ */
+@Dao
+interface KnownHostDao {
+
+    @Query("SELECT * FROM known_hosts")
+    suspend fun getAll(): List<KnownHost>
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    suspend fun insert(knownHost: KnownHost)
+
+    @Query("DELETE FROM known_hosts WHERE host = :host AND type = :type")
+    suspend fun delete(host: String, type: String)
+
+    @Query("DELETE FROM known_hosts WHERE host = :host")
+    suspend fun deleteHost(host: String)
+}
@@ -0,0 +1,152 @@
+package com.sshfp.ssh
+
+import android.util.Base64
+import android.util.Log
+import com.jcraft.jsch.HostKey
+import com.jcraft.jsch.HostKeyRepository
+import com.jcraft.jsch.JSch
+import com.jcraft.jsch.JSchException
+import com.jcraft.jsch.UserInfo
+import com.sshfp.model.Host
+import com.sshfp.model.KnownHost
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+
+/**
+ * 基于Room的known_hosts仓库，内存中缓存全部记录
+ *
+ * JSch 在握手线程里同步调用 [check]/[add]，所以查询只走内存缓存，写库在后台进行。
+ * 连接前需先调用一次 [load]。
+ */
+class KnownHostsRepository(private val dao: KnownHostDao) : HostKeyRepository {
+
+    private val cache = HashMap<String, MutableList<KnownHost>>()
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    @Volatile
+    private var loaded = false
+
+    /**
+     * 从数据库加载全部记录，只加载一次
+     */
+    suspend fun load() {
+        if (loaded) return
+        val all = dao.getAll()
+        synchronized(cache) {
+            if (loaded) return
+            all.forEach { cache.getOrPut(it.host) { mutableListOf() }.add(it) }
+            loaded = true
+        }
+    }
+
+    /**
+     * 主机已记录的公钥类型，按记录时间从新到旧
+     */
+    fun knownTypes(host: Host): List<String> = synchronized(cache) {
+        cache[aliasOf(host)]?.sortedByDescending { it.addedAt }?.map { it.type } ?: emptyList()
+    }
+
+    /**
+     * 是否已记录过该主机的公钥
+     */
+    fun isKnown(host: Host): Boolean = synchronized(cache) { !cache[aliasOf(host)].isNullOrEmpty() }
+
+    /**
+     * 删除主机的全部公钥（服务器重装等情况下由用户确认后调用）
+     */
+    fun forget(host: Host) {
+        val alias = aliasOf(host)
+        synchronized(cache) { cache.remove(alias) }
+        scope.launch { dao.deleteHost(alias) }
+    }
+
+    override fun check(host: String, key: ByteArray): Int {
+        val type = try {
+            HostKey(host, key).type
+        } catch (e: JSchException) {
+            return HostKeyRepository.NOT_INCLUDED
+        }
+        val encoded = encode(key)
+        val known = synchronized(cache) { cache[host]?.firstOrNull { it.type == type } }
+            ?: return HostKeyRepository.NOT_INCLUDED
+        return if (known.key == encoded) HostKeyRepository.OK else HostKeyRepository.CHANGED
+    }
+
+    override fun add(hostkey: HostKey, ui: UserInfo?) {
+        val knownHost = KnownHost(hostkey.host, hostkey.type, hostkey.key)
+        synchronized(cache) {
+            val list = cache.getOrPut(knownHost.host) { mutableListOf() }
+            list.removeAll { it.type == knownHost.type }
+            list.add(knownHost)
+        }
+        scope.launch { dao.insert(knownHost) }
+        Log.d(TAG, "Remembered ${knownHost.type} key for ${knownHost.host}")
+    }
+
+    override fun remove(host: String, type: String?) {
+        remove(host, type, null)
+    }
+
+    override fun remove(host: String, type: String?, key: ByteArray?) {
+        val encoded = key?.let { encode(it) }
+        val removed = synchronized(cache) {
+            val list = cache[host] ?: return
+            val matched = list.filter { (type == null || it.type == type) && (encoded == null || it.key == encoded) }
+            list.removeAll(matched)
+            if (list.isEmpty()) cache.remove(host)
+            matched
+        }
+        scope.launch { removed.forEach { dao.delete(it.host, it.type) } }
+    }
+
+    override fun getKnownHostsRepositoryID(): String = REPOSITORY_ID
+
+    override fun getHostKey(): Array<HostKey> = getHostKey(null, null)
+
+    override fun getHostKey(host: String?, type: String?): Array<HostKey> {
+        val matched = synchronized(cache) {
+            cache.filterKeys { host == null || it == host }.values.flatten()
+                .filter { type == null || it.type == type }
+        }
+        return matched.mapNotNull { toHostKey(it) }.toTypedArray()
+    }
+
+    private fun toHostKey(knownHost: KnownHost): HostKey? = try {
+        HostKey(knownHost.host, Base64.decode(knownHost.key, Base64.NO_WRAP))
+    } catch (e: Exception) {
+        Log.w(TAG, "Invalid stored key for ${knownHost.host}: ${e.message}")
+        null
+    }
+
+    private fun encode(key: ByteArray): String = Base64.encodeToString(key, Base64.NO_WRAP)
+
+    companion object {
+        private const val TAG = "KnownHostsRepository"
+        private const val REPOSITORY_ID = "sshfp-known-hosts"
+
+        /**
+         * 主机在known_hosts中的名称，与 JSch 检查时使用的写法一致
+         */
+        fun aliasOf(host: Host): String =
+            if (host.port == 22) host.address else "[${host.address}]:${host.port}"
+
+        /**
+         * 连接失败是否因为主机公钥与记录不符（JSch 在 StrictHostKeyChecking=yes 时抛出）
+         */
+        fun isHostKeyMismatch(error: Throwable?): Boolean {
+            val message = error?.message ?: return false
+            return message.startsWith("HostKey has been changed") || message.startsWith("reject HostKey")
+        }
+
+        /**
+         * 把已知的公钥类型排到 server_host_key 最前面，其余保持 JSch 默认顺序
+         */
+        fun pinnedOrder(knownTypes: List<String>): String? {
+            if (knownTypes.isEmpty()) return null
+            val defaults = JSch.getConfig("server_host_key")?.split(",") ?: emptyList()
+            return (knownTypes + defaults).distinct().joinToString(",")
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.sshfp.ssh
+
+import android.os.Debug
+import com.jcraft.jsch.Compression
+import com.jcraft.jsch.JSch
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+
+/**
+ * 带统计的zlib压缩 - 包装 JSch 自带实现，记录压缩前后字节数和CPU耗时
+ *
+ * JSch 通过类名反射创建压缩实例，拿不到主机信息，所以统计是全局的，见 [metrics]。
+ */
+class MeteredCompression : Compression {
+
+    private val delegate = Class.forName(delegateClass).newInstance() as Compression
+    private var type = Compression.DEFLATER
+
+    override fun init(type: Int, level: Int) {
+        this.type = type
+        delegate.init(type, level)
+    }
+
+    override fun compress(buf: ByteArray, start: Int, len: IntArray): ByteArray {
+        // 输入为 buf[start, len[0])，输出后 len[0] 为压缩数据的结束位置
+        val raw = len[0] - start
+        val cpuStart = Debug.threadCpuTimeNanos()
+        val result = delegate.compress(buf, start, len)
+        record(raw.toLong(), (len[0] - start).toLong(), Debug.threadCpuTimeNanos() - cpuStart)
+        return result
+    }
+
+    override fun uncompress(buf: ByteArray, start: Int, len: IntArray): ByteArray? {
+        // 输入为 buf[start, start + len[0])，输出后 len[0] 为解压后的长度
+        val wire = len[0]
+        val cpuStart = Debug.threadCpuTimeNanos()
+        val result = delegate.uncompress(buf, start, len) ?: return null
+        record(len[0].toLong(), wire.toLong(), Debug.threadCpuTimeNanos() - cpuStart)
+        return result
+    }
+
+    /**
+     * 压缩统计
+     *
+     * @property rawBytes 压缩前（或解压后）的字节数
+     * @property wireBytes 实际在链路上传输的字节数
+     * @property cpuNanos 压缩和解压消耗的CPU时间
+     */
+    data class Metrics(
+        val rawBytes: Long = 0,
+        val wireBytes: Long = 0,
+        val cpuNanos: Long = 0
+    ) {
+        val bytesSaved: Long get() = rawBytes - wireBytes
+    }
+
+    companion object {
+        private const val ZLIB = "zlib"
+        private const val ZLIB_DELAYED = "zlib@openssh.com"
+
+        @Volatile
+        private var delegateClass: String = "com.jcraft.jsch.jcraft.Compression"
+
+        private val _metrics = MutableStateFlow(Metrics())
+
+        /** 进程内累计的压缩统计 */
+        val metrics: StateFlow<Metrics> = _metrics.asStateFlow()
+
+        /**
+         * 用本类替换 JSch 的zlib实现，重复调用无副作用
+         */
+        @Synchronized
+        fun install() {
+            val name = MeteredCompression::class.java.name
+            val current = JSch.getConfig(ZLIB_DELAYED)
+            if (current == null || current == name) return
+            delegateClass = current
+            JSch.setConfig(ZLIB_DELAYED, name)
+            JSch.setConfig(ZLIB, name)
+        }
+
+        private fun record(raw: Long, wire: Long, cpuNanos: Long) {
+            synchronized(_metrics) {
+                val m = _metrics.value
+                _metrics.value = Metrics(m.rawBytes + raw, m.wireBytes + wire, m.cpuNanos + cpuNanos)
+            }
+        }
+    }
+}
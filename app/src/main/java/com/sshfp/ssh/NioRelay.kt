@@ -0,0 +1,361 @@
+package com.sshfp.ssh
+
+import android.util.Log
+import com.jcraft.jsch.Channel
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import java.io.Closeable
+import java.io.IOException
+import java.io.OutputStream
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.CancelledKeyException
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/**
+ * 基于Selector的转发中继 - 全进程共用一个线程处理所有本地监听和转发连接
+ *
+ * 本地Socket为非阻塞模式。服务端发来的数据由 JSch 读线程写入 [Connection.remoteSink]，
+ * 排队后在Selector线程写给本地Socket；本地读到的数据写入 JSch 通道，写完之前暂停读取，形成背压。
+ * 反方向没有背压：JSch 0.1.55 收到数据即补充通道窗口，读线程又为整个会话共用，不能在这里等待。
+ * 通道只设置输出流、不设置输入流，JSch 不会为每个连接创建线程。
+ */
+class NioRelay private constructor(private val buffers: BufferPool) {
+
+    private val selector: Selector = Selector.open()
+    private val tasks = ConcurrentLinkedQueue<Runnable>()
+    private val writeScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    init {
+        Thread(::loop, "NioRelay").apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    /**
+     * 本地监听
+     */
+    inner class Listener internal constructor(
+        internal val server: ServerSocketChannel,
+        internal val onAccept: (SocketChannel) -> Unit
+    ) : Closeable {
+
+        val localPort: Int get() = server.socket().localPort
+
+        override fun close() {
+            execute {
+                server.keyFor(selector)?.cancel()
+                closeQuietly(server)
+            }
+        }
+    }
+
+    /**
+     * 监听本地地址，新连接在Selector线程上回调 onAccept，回调中不得阻塞
+     */
+    @Throws(IOException::class)
+    fun listen(address: InetSocketAddress, onAccept: (SocketChannel) -> Unit): Listener {
+        val server = ServerSocketChannel.open()
+        try {
+            server.socket().reuseAddress = true
+            server.socket().bind(address)
+            server.configureBlocking(false)
+        } catch (e: IOException) {
+            closeQuietly(server)
+            throw e
+        }
+        val listener = Listener(server, onAccept)
+        execute { server.register(selector, SelectionKey.OP_ACCEPT, listener) }
+        return listener
+    }
+
+    /**
+     * 为本地连接创建中继：先把 [Connection.remoteSink] 设为通道输出流并连接通道，再调用 [Connection.start]
+     *
+     * 本地客户端读得慢、服务端数据积压（按占用的缓冲容量计）超过 maxQueuedBytes 时断开该连接，
+     * 不阻塞 JSch 读线程，会话上的终端和其他转发不受影响。
+     */
+    fun newConnection(
+        socket: SocketChannel,
+        stats: ForwardStats,
+        maxQueuedBytes: Int = MAX_QUEUED_BYTES,
+        onClose: (() -> Unit)? = null
+    ): Connection = Connection(socket, stats, maxQueuedBytes, onClose)
+
+    /**
+     * 一个本地Socket与一个SSH通道之间的双向中继
+     */
+    inner class Connection internal constructor(
+        private val socket: SocketChannel,
+        private val stats: ForwardStats,
+        private val maxQueuedBytes: Int,
+        private val onClose: (() -> Unit)?
+    ) : Closeable {
+
+        private val lock = Object()
+        private val toLocal = ArrayDeque<ByteBuffer>()
+        // 队列中缓冲的总容量，小数据包也占一整个缓冲
+        private var queuedBytes = 0
+        private var remoteEof = false
+        private var localEof = false
+        private var closed = false
+        private var key: SelectionKey? = null
+        private var channel: Channel? = null
+        private var channelOut: OutputStream? = null
+
+        /** 服务端数据的写入端，由 JSch 读线程调用 */
+        val remoteSink: OutputStream = object : OutputStream() {
+            override fun write(b: Int) = write(byteArrayOf(b.toByte()), 0, 1)
+            override fun write(b: ByteArray, off: Int, len: Int) = enqueueToLocal(b, off, len)
+            override fun close() = onRemoteEof()
+        }
+
+        /**
+         * 通道已连接，开始中继
+         */
+        fun start(channel: Channel) {
+            this.channel = channel
+            channelOut = channel.outputStream
+            stats.onOpen()
+            execute {
+                if (synchronized(lock) { closed }) return@execute
+                socket.configureBlocking(false)
+                // 通道连接后、注册前可能已有服务端数据到达
+                val pending = synchronized(lock) { toLocal.isNotEmpty() || remoteEof }
+                val ops = if (pending) SelectionKey.OP_READ or SelectionKey.OP_WRITE else SelectionKey.OP_READ
+                key = socket.register(selector, ops, this)
+            }
+        }
+
+        private fun enqueueToLocal(b: ByteArray, off: Int, len: Int) {
+            val overflow = synchronized(lock) {
+                if (closed) return
+                var offset = off
+                var remaining = len
+                // 先追加到队尾缓冲的空余部分；队首可能正由Selector线程写出，不追加
+                val tail = toLocal.lastOrNull()
+                if (tail != null && toLocal.size > 1) {
+                    val n = minOf(remaining, tail.capacity() - tail.limit())
+                    System.arraycopy(b, offset, tail.array(), tail.arrayOffset() + tail.limit(), n)
+                    tail.limit(tail.limit() + n)
+                    offset += n
+                    remaining -= n
+                }
+                while (remaining > 0) {
+                    val buffer = buffers.acquire()
+                    val n = minOf(remaining, buffer.remaining())
+                    buffer.put(b, offset, n)
+                    buffer.flip()
+                    toLocal.addLast(buffer)
+                    queuedBytes += buffer.capacity()
+                    offset += n
+                    remaining -= n
+                }
+                queuedBytes > maxQueuedBytes
+            }
+            stats.bytesReceived.addAndGet(len.toLong())
+            if (overflow) {
+                // 在读线程上等待会停住整个会话，积压过多只断开这一个连接
+                Log.w(TAG, "Local client too slow, closing forward connection")
+                close()
+                return
+            }
+            setInterest(SelectionKey.OP_WRITE, true)
+        }
+
+        private fun onRemoteEof() {
+            synchronized(lock) { remoteEof = true }
+            setInterest(SelectionKey.OP_WRITE, true)
+        }
+
+        internal fun onReadable(key: SelectionKey) {
+            val buffer = buffers.acquire()
+            val n = try {
+                socket.read(buffer)
+            } catch (e: IOException) {
+                buffers.release(buffer)
+                close()
+                return
+            }
+            if (n == 0) {
+                buffers.release(buffer)
+                return
+            }
+            // 写入通道完成前不再读取
+            key.interestOps(key.interestOps() and SelectionKey.OP_READ.inv())
+            if (n < 0) {
+                buffers.release(buffer)
+                onLocalEof()
+                return
+            }
+            buffer.flip()
+            val out = channelOut ?: return
+            writeScope.launch {
+                try {
+                    out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining())
+                    out.flush()
+                    stats.bytesSent.addAndGet(n.toLong())
+                    setInterest(SelectionKey.OP_READ, true)
+                } catch (e: IOException) {
+                    close()
+                } finally {
+                    buffers.release(buffer)
+                }
+            }
+        }
+
+        private fun onLocalEof() {
+            val bothDone = synchronized(lock) {
+                localEof = true
+                remoteEof
+            }
+            if (bothDone) {
+                close()
+                return
+            }
+            // 向服务端发送EOF，继续接收剩余数据
+            writeScope.launch {
+                try {
+                    channelOut?.close()
+                } catch (e: IOException) {
+                    close()
+                }
+            }
+        }
+
+        internal fun onWritable(key: SelectionKey) {
+            while (true) {
+                val buffer = synchronized(lock) { toLocal.firstOrNull() } ?: break
+                try {
+                    socket.write(buffer)
+                } catch (e: IOException) {
+                    close()
+                    return
+                }
+                // 内核缓冲已满，等待下一次可写
+                if (buffer.hasRemaining()) return
+                synchronized(lock) {
+                    toLocal.removeFirst()
+                    queuedBytes -= buffer.capacity()
+                }
+                buffers.release(buffer)
+            }
+            key.interestOps(key.interestOps() and SelectionKey.OP_WRITE.inv())
+            val (drained, bothDone) = synchronized(lock) { (remoteEof && toLocal.isEmpty()) to localEof }
+            if (drained) {
+                if (bothDone) close() else shutdownOutputQuietly()
+            }
+        }
+
+        override fun close() {
+            val buffered = synchronized(lock) {
+                if (closed) return
+                closed = true
+                toLocal.toList().also { toLocal.clear() }
+            }
+            buffered.forEach { buffers.release(it) }
+            execute { key?.cancel() }
+            closeQuietly(socket)
+            channel?.let {
+                it.disconnect()
+                stats.onClose()
+                onClose?.invoke()
+            }
+        }
+
+        private fun setInterest(op: Int, enabled: Boolean) = execute {
+            val k = key ?: return@execute
+            if (!k.isValid) return@execute
+            k.interestOps(if (enabled) k.interestOps() or op else k.interestOps() and op.inv())
+        }
+
+        private fun shutdownOutputQuietly() {
+            try {
+                socket.socket().shutdownOutput()
+            } catch (ignored: IOException) {
+            }
+        }
+    }
+
+    private fun execute(task: Runnable) {
+        tasks.add(task)
+        selector.wakeup()
+    }
+
+    private fun loop() {
+        while (true) {
+            try {
+                selector.select()
+                while (true) {
+                    val task = tasks.poll() ?: break
+                    try {
+                        task.run()
+                    } catch (e: Exception) {
+                        Log.w(TAG, "Relay task failed: ${e.message}")
+                    }
+                }
+                val keys = selector.selectedKeys().iterator()
+                while (keys.hasNext()) {
+                    val key = keys.next()
+                    keys.remove()
+                    try {
+                        dispatch(key)
+                    } catch (e: CancelledKeyException) {
+                        // 连接已在其他线程关闭
+                    }
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "Relay loop error", e)
+            }
+        }
+    }
+
+    private fun dispatch(key: SelectionKey) {
+        if (!key.isValid) return
+        when (val attachment = key.attachment()) {
+            is Listener -> if (key.isAcceptable) accept(attachment)
+            is Connection -> {
+                if (key.isReadable) attachment.onReadable(key)
+                if (key.isValid && key.isWritable) attachment.onWritable(key)
+            }
+        }
+    }
+
+    private fun accept(listener: Listener) {
+        val client = try {
+            listener.server.accept()
+        } catch (e: IOException) {
+            Log.w(TAG, "Accept failed: ${e.message}")
+            null
+        } ?: return
+        try {
+            client.socket().tcpNoDelay = true
+            listener.onAccept(client)
+        } catch (e: Exception) {
+            Log.w(TAG, "Accept handler failed: ${e.message}")
+            closeQuietly(client)
+        }
+    }
+
+    private fun closeQuietly(closeable: Closeable) {
+        try {
+            closeable.close()
+        } catch (ignored: IOException) {
+        }
+    }
+
+    companion object {
+        private const val TAG = "NioRelay"
+        private const val MAX_QUEUED_BYTES = 4 * 1024 * 1024
+
+        /** 全进程共用的中继 */
+        val shared: NioRelay by lazy { NioRelay(BufferPool()) }
+    }
+}
@@ -0,0 +1,298 @@
+package com.sshfp.ssh
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.Log
+import com.jcraft.jsch.ChannelDirectTCPIP
+import com.jcraft.jsch.SocketFactory
+import com.sshfp.model.ForwardRule
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.FilterInputStream
+import java.io.FilterOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.nio.channels.SocketChannel
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * 端口转发管理器 - 在 [SshManager] 的会话上运行 -L/-R/-D 转发规则
+ *
+ * 本地转发和动态转发经 [NioRelay] 中继，每个连接只占一个 direct-tcpip 通道，不占线程；
+ * 每条规则的吞吐量和活动连接数通过 [stats] 每秒发布一次，动态转发另按目标地址统计。
+ */
+@OptIn(ExperimentalCoroutinesApi::class)
+class PortForwardManager(context: Context, private val sshManager: SshManager) {
+
+    private val dao = HostDatabase.getInstance(context).forwardRuleDao()
+    private val relay = NioRelay.shared
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    // 限制同时进行的开通道请求，避免瞬间大量连接占满IO线程
+    private val openDispatcher = Dispatchers.IO.limitedParallelism(OPEN_PARALLELISM)
+    // 浏览器等SOCKS客户端会同时发起几十个连接。JSch 打开通道是阻塞调用，这里每个开通道请求占一个线程，
+    // 最多 SOCKS_PARALLELISM 个同时等待服务端确认，并非在一个线程上流水线发出
+    private val socksDispatcher = Dispatchers.IO.limitedParallelism(SOCKS_PARALLELISM)
+    private val active = HashMap<Long, ActiveForward>()
+    private val _stats = MutableStateFlow<Map<Long, ForwardStats.Snapshot>>(emptyMap())
+    private var ticker: Job? = null
+
+    /** 各规则的流量统计，键为规则id */
+    val stats: StateFlow<Map<Long, ForwardStats.Snapshot>> = _stats.asStateFlow()
+
+    private class ActiveForward(
+        val rule: ForwardRule,
+        val stats: ForwardStats,
+        val listener: NioRelay.Listener?
+    )
+
+    /**
+     * 主机保存的转发规则
+     */
+    fun rules(hostId: Long): Flow<List<ForwardRule>> = dao.getRules(hostId)
+
+    /**
+     * 保存规则，返回规则id
+     */
+    suspend fun saveRule(rule: ForwardRule): Long = dao.insertRule(rule)
+
+    /**
+     * 停止并删除规则
+     */
+    suspend fun deleteRule(rule: ForwardRule) {
+        stop(rule.id)
+        dao.deleteRule(rule.id)
+    }
+
+    /**
+     * 启动主机所有已启用的规则
+     */
+    suspend fun startSaved(hostId: Long) {
+        dao.getEnabledRules(hostId).forEach { start(it) }
+    }
+
+    fun isActive(ruleId: Long): Boolean = synchronized(active) { active.containsKey(ruleId) }
+
+    /**
+     * 启动一条规则
+     */
+    suspend fun start(rule: ForwardRule): Result<Unit> = withContext(Dispatchers.IO) {
+        try {
+            if (isActive(rule.id)) return@withContext Result.success(Unit)
+            val session = sshManager.getSession()
+            if (session == null || !session.isConnected) {
+                return@withContext Result.failure(Exception("SSH not connected"))
+            }
+            val stats = ForwardStats()
+            val listener = when (rule.type) {
+                ForwardRule.Type.LOCAL -> relay.listen(InetSocketAddress(rule.bindAddress, rule.bindPort)) { socket ->
+                    scope.launch(openDispatcher) { openLocal(rule, stats, socket) }
+                }
+                ForwardRule.Type.REMOTE -> {
+                    // JSch 为每个 -R 连接创建线程，这里只能通过Socket工厂统计流量
+                    session.setPortForwardingR(
+                        rule.bindAddress.ifEmpty { null }, rule.bindPort,
+                        rule.destHost, rule.destPort, CountingSocketFactory(stats)
+                    )
+                    null
+                }
+                ForwardRule.Type.DYNAMIC -> relay.listen(InetSocketAddress(rule.bindAddress, rule.bindPort)) { socket ->
+                    scope.launch(socksDispatcher) { openDynamic(stats, socket) }
+                }
+            }
+            synchronized(active) { active[rule.id] = ActiveForward(rule, stats, listener) }
+            ensureTicker()
+            Log.d(TAG, "Started forward ${rule.describe()}")
+            Result.success(Unit)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to start forward ${rule.describe()}", e)
+            Result.failure(e)
+        }
+    }
+
+    /**
+     * 停止一条规则，已建立的本地转发连接保持到各自关闭
+     */
+    fun stop(ruleId: Long) {
+        val forward = synchronized(active) { active.remove(ruleId) } ?: return
+        forward.listener?.close()
+        if (forward.rule.type == ForwardRule.Type.REMOTE) {
+            try {
+                sshManager.getSession()?.delPortForwardingR(forward.rule.bindPort)
+            } catch (e: Exception) {
+                Log.w(TAG, "Failed to cancel remote forward: ${e.message}")
+            }
+        }
+        publishStats()
+    }
+
+    /**
+     * 停止所有规则
+     */
+    fun stopAll() {
+        synchronized(active) { active.keys.toList() }.forEach { stop(it) }
+        ticker?.cancel()
+        ticker = null
+    }
+
+    /**
+     * 为本地连接打开 direct-tcpip 通道并交给中继
+     */
+    private fun openLocal(rule: ForwardRule, stats: ForwardStats, socket: SocketChannel) {
+        val connection = relay.newConnection(socket, stats)
+        try {
+            connection.start(openChannel(rule.destHost, rule.destPort, socket, connection))
+        } catch (e: Exception) {
+            Log.w(TAG, "Forward to ${rule.destHost}:${rule.destPort} failed: ${e.message}")
+            connection.close()
+        }
+    }
+
+    /**
+     * 完成SOCKS5握手后按客户端请求的目标打开通道
+     *
+     * 服务端数据积压的上限与本地转发相同（见 [NioRelay.newConnection]），超过时只断开该连接；
+     * JSch 无法对单个通道施加背压，所以上限留得足够大，只有客户端长时间不读才会触发。
+     */
+    private fun openDynamic(stats: ForwardStats, socket: SocketChannel) {
+        val request = try {
+            Socks5Handshake.negotiate(socket, HANDSHAKE_TIMEOUT_MS)
+        } catch (e: Exception) {
+            Log.w(TAG, "SOCKS handshake failed: ${e.message}")
+            closeQuietly(socket)
+            return
+        }
+        val destination = stats.destination(request.host, request.port)
+        val connection = relay.newConnection(socket, stats, onClose = destination::onClose)
+        val startedAt = SystemClock.elapsedRealtime()
+        val channel = try {
+            openChannel(request.host, request.port, socket, connection)
+        } catch (e: Exception) {
+            Log.w(TAG, "SOCKS connect to ${request.host}:${request.port} failed: ${e.message}")
+            destination.onFailure()
+            try {
+                Socks5Handshake.reply(socket, Socks5Handshake.REPLY_HOST_UNREACHABLE)
+            } catch (ignored: IOException) {
+            }
+            connection.close()
+            return
+        }
+        destination.onOpen(SystemClock.elapsedRealtime() - startedAt)
+        try {
+            // 回复必须在中继注册之前写出，之后到达的服务端数据才会排在其后
+            Socks5Handshake.reply(socket, Socks5Handshake.REPLY_SUCCEEDED)
+            connection.start(channel)
+        } catch (e: Exception) {
+            channel.disconnect()
+            destination.onClose()
+            connection.close()
+        }
+    }
+
+    /**
+     * 打开 direct-tcpip 通道，服务端数据写入中继；失败时通道已断开
+     */
+    private fun openChannel(
+        host: String,
+        port: Int,
+        socket: SocketChannel,
+        connection: NioRelay.Connection
+    ): ChannelDirectTCPIP {
+        val session = sshManager.getSession()
+        if (session == null || !session.isConnected) throw IOException("SSH not connected")
+        val channel = session.openChannel("direct-tcpip") as ChannelDirectTCPIP
+        try {
+            channel.setHost(host)
+            channel.setPort(port)
+            socket.socket().let { peer ->
+                peer.inetAddress?.hostAddress?.let { channel.setOrgIPAddress(it) }
+                channel.setOrgPort(peer.port)
+            }
+            channel.setOutputStream(connection.remoteSink)
+            channel.connect(CHANNEL_TIMEOUT_MS)
+            return channel
+        } catch (e: Exception) {
+            channel.disconnect()
+            throw e
+        }
+    }
+
+    private fun closeQuietly(socket: SocketChannel) {
+        try {
+            socket.close()
+        } catch (ignored: IOException) {
+        }
+    }
+
+    private fun ensureTicker() {
+        synchronized(active) {
+            if (ticker?.isActive == true) return
+            ticker = scope.launch {
+                while (isActive) {
+                    delay(STATS_INTERVAL_MS)
+                    publishStats()
+                }
+            }
+        }
+    }
+
+    private fun publishStats() {
+        _stats.value = synchronized(active) { active.mapValues { it.value.stats.sample() } }
+    }
+
+    /**
+     * 统计流量的Socket工厂，用于 -R 转发连接本机侧目标
+     */
+    private class CountingSocketFactory(private val stats: ForwardStats) : SocketFactory {
+
+        override fun createSocket(host: String, port: Int): Socket {
+            val socket = Socket()
+            socket.tcpNoDelay = true
+            socket.connect(InetSocketAddress(host, port), CHANNEL_TIMEOUT_MS)
+            stats.onOpen()
+            return socket
+        }
+
+        override fun getInputStream(socket: Socket): InputStream = object : FilterInputStream(socket.getInputStream()) {
+            override fun read(b: ByteArray, off: Int, len: Int): Int =
+                super.read(b, off, len).also { if (it > 0) stats.bytesSent.addAndGet(it.toLong()) }
+        }
+
+        override fun getOutputStream(socket: Socket): OutputStream {
+            val closed = AtomicBoolean()
+            return object : FilterOutputStream(socket.getOutputStream()) {
+                override fun write(b: ByteArray, off: Int, len: Int) {
+                    out.write(b, off, len)
+                    stats.bytesReceived.addAndGet(len.toLong())
+                }
+
+                override fun close() {
+                    if (closed.compareAndSet(false, true)) stats.onClose()
+                    super.close()
+                }
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "PortForwardManager"
+        private const val CHANNEL_TIMEOUT_MS = 10000
+        private const val OPEN_PARALLELISM = 8
+        private const val SOCKS_PARALLELISM = 32
+        private const val HANDSHAKE_TIMEOUT_MS = 10000
+        private const val STATS_INTERVAL_MS = 1000L
+    }
+}
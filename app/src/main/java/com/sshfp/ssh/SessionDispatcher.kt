@@ -0,0 +1,150 @@
+package com.sshfp.ssh
+
+import android.os.SystemClock
+import android.util.Log
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import kotlin.coroutines.ContinuationInterceptor
+import kotlin.coroutines.coroutineContext
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 会话IO调度器 - 每个SSH会话一个，会话上的阻塞JSch调用都在这里执行
+ *
+ * 各会话的调度器是 Dispatchers.IO 上相互独立的 limitedParallelism 视图，
+ * 一台主机的读取卡住最多占满自己的 [parallelism] 个线程，不影响其他主机。
+ * 阻塞的Socket读无法被协程取消打断，所以 [io] 在取消时调用 onCancel 关闭通道，让阻塞的读立即返回。
+ * 同时统计排队等线程的时间和实际IO时间。已在本调度器上时嵌套调用直接执行，不重复计数。
+ */
+@OptIn(ExperimentalCoroutinesApi::class)
+class SessionDispatcher(
+    private val name: String,
+    val parallelism: Int = DEFAULT_PARALLELISM
+) {
+
+    /** 本会话的调度器 */
+    val dispatcher: CoroutineDispatcher = Dispatchers.IO.limitedParallelism(parallelism)
+
+    private val queued = AtomicInteger()
+    private val running = AtomicInteger()
+    private val completed = AtomicLong()
+    private val cancelled = AtomicLong()
+    private val queueMsTotal = AtomicLong()
+    private val ioMsTotal = AtomicLong()
+    private val maxQueueMs = AtomicLong()
+
+    /**
+     * 调度器统计快照
+     */
+    data class Stats(
+        val parallelism: Int,
+        val queued: Int,
+        val running: Int,
+        val completed: Long,
+        val cancelled: Long,
+        val queueMsTotal: Long,
+        val ioMsTotal: Long,
+        val maxQueueMs: Long
+    ) {
+        /** 平均每次调用等线程的时间 */
+        val avgQueueMs: Long get() = if (completed > 0) queueMsTotal / completed else 0
+
+        /** 平均每次调用的IO时间 */
+        val avgIoMs: Long get() = if (completed > 0) ioMsTotal / completed else 0
+    }
+
+    /**
+     * 在本会话的线程上执行阻塞调用
+     *
+     * @param operation 操作名，用于日志
+     * @param onCancel 调用被取消时执行（通常是关闭正在读写的通道），在取消方线程上调用
+     */
+    suspend fun <T> io(operation: String, onCancel: (() -> Unit)? = null, block: suspend () -> T): T {
+        if (coroutineContext[ContinuationInterceptor] === dispatcher) {
+            return if (onCancel == null) block() else cancellable(onCancel, block)
+        }
+        val queuedAt = SystemClock.elapsedRealtime()
+        queued.incrementAndGet()
+        var started = false
+        try {
+            return withContext(dispatcher) {
+                val startedAt = SystemClock.elapsedRealtime()
+                started = true
+                queued.decrementAndGet()
+                running.incrementAndGet()
+                recordQueueWait(operation, startedAt - queuedAt)
+                try {
+                    if (onCancel == null) block() else cancellable(onCancel, block)
+                } finally {
+                    running.decrementAndGet()
+                    ioMsTotal.addAndGet(SystemClock.elapsedRealtime() - startedAt)
+                    completed.incrementAndGet()
+                }
+            }
+        } catch (e: CancellationException) {
+            cancelled.incrementAndGet()
+            throw e
+        } finally {
+            if (!started) queued.decrementAndGet()
+        }
+    }
+
+    /**
+     * 阻塞期间挂一个不占线程的观察协程（Unconfined，在取消方线程上运行），取消时回调 onCancel
+     */
+    private suspend fun <T> cancellable(onCancel: () -> Unit, block: suspend () -> T): T = coroutineScope {
+        val finished = AtomicBoolean()
+        val watcher = launch(Dispatchers.Unconfined, CoroutineStart.UNDISPATCHED) {
+            try {
+                awaitCancellation()
+            } finally {
+                if (!finished.get()) {
+                    Log.d(TAG, "$name: cancelling blocked call")
+                    onCancel()
+                }
+            }
+        }
+        try {
+            block()
+        } finally {
+            finished.set(true)
+            watcher.cancel()
+        }
+    }
+
+    private fun recordQueueWait(operation: String, waitMs: Long) {
+        queueMsTotal.addAndGet(waitMs)
+        maxQueueMs.accumulateAndGet(waitMs) { current, wait -> maxOf(current, wait) }
+        if (waitMs >= SLOW_QUEUE_MS) {
+            Log.w(TAG, "$name: $operation waited ${waitMs}ms for a thread")
+        }
+    }
+
+    fun stats(): Stats = Stats(
+        parallelism,
+        queued.get(),
+        running.get(),
+        completed.get(),
+        cancelled.get(),
+        queueMsTotal.get(),
+        ioMsTotal.get(),
+        maxQueueMs.get()
+    )
+
+    companion object {
+        private const val TAG = "SessionDispatcher"
+
+        /** 与 [ChannelBroker.DEFAULT_MAX_SESSIONS] 相近：每个通道大致一个线程 */
+        const val DEFAULT_PARALLELISM = 8
+        private const val SLOW_QUEUE_MS = 500L
+    }
+}
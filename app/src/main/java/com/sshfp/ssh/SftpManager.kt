@@ -1,39 +1,73 @@
 package com.sshfp.ssh
 
+import android.os.SystemClock
 import android.util.Log
 import com.jcraft.jsch.ChannelSftp
 import com.jcraft.jsch.SftpException
+import com.sshfp.model.ConnectionTiming
 import com.sshfp.model.FileItem
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
+import java.io.File
 import java.io.InputStream
 import java.io.OutputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
 import java.util.Vector
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
 
 /**
  * SFTP文件管理器
+ *
+ * 每个请求都在所属主机的IO调度器上执行，协程被取消时关闭SFTP通道，之后需要重新 connect。
  */
 class SftpManager(private val sshManager: SshManager) {
 
     private var sftpChannel: ChannelSftp? = null
+    private var channelBroker: ChannelBroker? = null
+    private val connectLock = Mutex()
 
     /**
-     * 连接SFTP
+     * 连接SFTP，已连接时直接返回；界面和后台续传可能同时调用
      */
-    suspend fun connect(): Result<Unit> = withContext(Dispatchers.IO) {
-        try {
+    suspend fun connect(): Result<Unit> = connectLock.withLock {
+        sshManager.io("sftp connect") { connectLocked() }
+    }
+
+    private suspend fun connectLocked(): Result<Unit> {
+        return try {
             if (!sshManager.isConnected()) {
-                return@withContext Result.failure(Exception("SSH not connected"))
+                return Result.failure(Exception("SSH not connected"))
             }
+            if (isConnected()) return Result.success(Unit)
 
             disconnect()
 
-            val session = sshManager.getSession()
-                ?: return@withContext Result.failure(Exception("No session"))
+            val broker = sshManager.channelBroker()
+                ?: return Result.failure(Exception("No session"))
 
-            val channel = session.openChannel("sftp") as ChannelSftp
-            channel.connect()
+            // 优先复用同一会话上空闲的SFTP通道
+            val timeline = ConnectionTimeline()
+            val channel = try {
+                broker.acquireSftp()
+            } catch (e: Exception) {
+                sshManager.recordTiming(ConnectionTiming.Kind.SFTP, timeline, false)
+                throw e
+            }
+            timeline.mark(ConnectionTimeline.Phase.CHANNEL_OPEN)
+            sshManager.recordTiming(ConnectionTiming.Kind.SFTP, timeline, true)
             sftpChannel = channel
+            channelBroker = broker
             Log.d(TAG, "SFTP connected")
             Result.success(Unit)
         } catch (e: Exception) {
@@ -47,8 +81,12 @@ class SftpManager(private val sshManager: SshManager) {
      */
     fun disconnect() {
         try {
-            sftpChannel?.disconnect()
+            val broker = channelBroker
+            sftpChannel?.let { channel ->
+                if (broker != null) broker.release(channel) else channel.disconnect()
+            }
             sftpChannel = null
+            channelBroker = null
         } catch (e: Exception) {
             Log.e(TAG, "SFTP disconnect error", e)
         }
@@ -62,9 +100,9 @@ class SftpManager(private val sshManager: SshManager) {
     /**
      * 列出目录内容
      */
-    suspend fun listDirectory(path: String = "."): Result<List<FileItem>> = withContext(Dispatchers.IO) {
+    suspend fun listDirectory(path: String = "."): Result<List<FileItem>> = sshManager.io("sftp ls", sftpChannel) {
         try {
-            val channel = sftpChannel ?: return@withContext Result.failure(Exception("Not connected"))
+            val channel = sftpChannel ?: return@io Result.failure(Exception("Not connected"))
             val files = mutableListOf<FileItem>()
 
             // 处理根目录的特殊情况
@@ -97,9 +135,9 @@ class SftpManager(private val sshManager: SshManager) {
 
             @Suppress("UNCHECKED_CAST")
             val entries = if (normalizedPath == "/") {
-                channel.ls("/") as? Vector<*> ?: return@withContext Result.failure(Exception("Failed to list root directory"))
+                channel.ls("/") as? Vector<*> ?: return@io Result.failure(Exception("Failed to list root directory"))
             } else {
-                channel.ls(".") as? Vector<*> ?: return@withContext Result.failure(Exception("Failed to list directory"))
+                channel.ls(".") as? Vector<*> ?: return@io Result.failure(Exception("Failed to list directory"))
             }
 
             for (entry in entries) {
@@ -135,29 +173,84 @@ class SftpManager(private val sshManager: SshManager) {
         }
     }
 
+    /**
+     * 一次文件传输的结果
+     *
+     * @param bytes 本次实际传输的字节数，续传时不含已有部分
+     * @param outstandingRequests 传输时同时在途的 READ/WRITE 请求数
+     * @param rttMs 传输前实测的一次SFTP请求往返时间
+     * @param files 传输的文件数，目录传输时大于1
+     */
+    data class TransferResult(
+        val bytes: Long,
+        val elapsedMs: Long,
+        val outstandingRequests: Int,
+        val rttMs: Long,
+        val files: Int = 1
+    ) {
+        /** 实际吞吐量 */
+        val bytesPerSecond: Long get() = if (elapsedMs > 0) bytes * 1000 / elapsedMs else 0
+
+        /** 每秒完成的文件数 */
+        val filesPerSecond: Double get() = if (elapsedMs > 0) files * 1000.0 / elapsedMs else 0.0
+    }
+
+    /**
+     * 分段传输各段已完成的字节数，可编码保存；再次传入分段传输即从各段断点继续
+     */
+    class RangeProgress(val count: Int) {
+        private val done = AtomicLongArray(count)
+
+        fun done(index: Int): Long = done[index]
+
+        fun total(): Long = (0 until count).sumOf { done[it] }
+
+        internal fun set(index: Int, bytes: Long) = done.set(index, bytes)
+
+        internal fun add(index: Int, bytes: Long) = done.addAndGet(index, bytes)
+
+        internal fun reset() = (0 until count).forEach { done[it] = 0 }
+
+        fun encode(): String = (0 until count).joinToString(",") { done[it].toString() }
+
+        companion object {
+            /**
+             * 解析 [encode] 的结果，格式不对时返回 null
+             */
+            fun decode(value: String): RangeProgress? {
+                val parts = value.split(',').map { it.toLongOrNull() ?: return null }
+                if (parts.isEmpty()) return null
+                return RangeProgress(parts.size).apply { parts.forEachIndexed { i, bytes -> set(i, bytes) } }
+            }
+        }
+    }
+
     /**
      * 上传文件
+     *
+     * @param progress 已上传的字节数（续传时包含远程已有部分）
+     * @param outstandingRequests 同时在途的 WRITE 请求数，为 null 时按带宽时延积自动决定
+     * @param resume 远程已有部分内容时从其末尾续传（[ChannelSftp.RESUME]），否则覆盖
      */
     suspend fun uploadFile(
         localPath: String,
         remotePath: String,
-        progress: ((Long) -> Unit)? = null
-    ): Result<Unit> = withContext(Dispatchers.IO) {
+        progress: ((Long) -> Unit)? = null,
+        outstandingRequests: Int? = null,
+        resume: Boolean = false
+    ): Result<TransferResult> = sshManager.io("sftp put", sftpChannel) {
         try {
-            val channel = sftpChannel ?: return@withContext Result.failure(Exception("Not connected"))
-            val monitor = progress?.let { p ->
-                object : com.jcraft.jsch.SftpProgressMonitor {
-                    override fun init(op: Int, src: String?, dest: String?, max: Long) {}
-                    override fun count(count: Long): Boolean {
-                        p(count)
-                        return true
-                    }
-                    override fun end() {}
-                }
-            }
-            channel.put(localPath, remotePath, monitor)
-            Log.d(TAG, "Uploaded $localPath to $remotePath")
-            Result.success(Unit)
+            val channel = sftpChannel ?: return@io Result.failure(Exception("Not connected"))
+            val existing = if (resume) remoteSizeOrZero(channel, remotePath) else 0L
+            // RESUME 模式下 JSch 先把已有长度计入进度
+            val counter = AtomicLong()
+            val (requests, rtt) = tune(channel, outstandingRequests)
+            val start = SystemClock.elapsedRealtime()
+            val mode = if (existing > 0) ChannelSftp.RESUME else ChannelSftp.OVERWRITE
+            channel.put(localPath, remotePath, progressMonitor(counter, progress), mode)
+            val result = finishTransfer(localPath, start, counter.get() - existing, requests, rtt)
+            Log.d(TAG, "Uploaded $localPath to $remotePath from $existing at ${result.bytesPerSecond / 1024}KB/s")
+            Result.success(result)
         } catch (e: Exception) {
             Log.e(TAG, "Failed to upload file", e)
             Result.failure(e)
@@ -166,39 +259,447 @@ class SftpManager(private val sshManager: SshManager) {
 
     /**
      * 下载文件
+     *
+     * @param progress 已下载的字节数（续传时包含本地已有部分）
+     * @param outstandingRequests 同时在途的 READ 请求数，为 null 时按带宽时延积自动决定
+     * @param resume 本地已有部分内容时从其末尾续传（[ChannelSftp.RESUME]），否则覆盖
      */
     suspend fun downloadFile(
         remotePath: String,
         localPath: String,
-        progress: ((Long) -> Unit)? = null
-    ): Result<Unit> = withContext(Dispatchers.IO) {
+        progress: ((Long) -> Unit)? = null,
+        outstandingRequests: Int? = null,
+        resume: Boolean = false
+    ): Result<TransferResult> = sshManager.io("sftp get", sftpChannel) {
         try {
-            val channel = sftpChannel ?: return@withContext Result.failure(Exception("Not connected"))
-            val monitor = progress?.let { p ->
-                object : com.jcraft.jsch.SftpProgressMonitor {
-                    override fun init(op: Int, src: String?, dest: String?, max: Long) {}
-                    override fun count(count: Long): Boolean {
-                        p(count)
-                        return true
+            val channel = sftpChannel ?: return@io Result.failure(Exception("Not connected"))
+            val existing = if (resume) File(localPath).length() else 0L
+            // RESUME 模式下 JSch 先把已有长度计入进度
+            val counter = AtomicLong()
+            val (requests, rtt) = tune(channel, outstandingRequests)
+            val start = SystemClock.elapsedRealtime()
+            val mode = if (existing > 0) ChannelSftp.RESUME else ChannelSftp.OVERWRITE
+            channel.get(remotePath, localPath, progressMonitor(counter, progress), mode)
+            val result = finishTransfer(localPath, start, counter.get() - existing, requests, rtt)
+            Log.d(TAG, "Downloaded $remotePath to $localPath from $existing at ${result.bytesPerSecond / 1024}KB/s")
+            Result.success(result)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to download file", e)
+            Result.failure(e)
+        }
+    }
+
+    /**
+     * 分段并行下载大文件：把远程文件切成 [workers] 段，每段在同一会话上各自的SFTP通道里读取，
+     * 直接写入预先分配好长度的本地文件的对应区域。单个通道受自身窗口限制，多个通道才能跑满链路。
+     * 小于 [PARALLEL_MIN_BYTES] 的文件直接走 [downloadFile]
+     *
+     * @param progress 所有分段合计的已下载字节数
+     * @param ranges 各段进度，传入已有进度且本地文件长度一致时从断点继续，段数以它为准
+     */
+    suspend fun downloadFileParallel(
+        remotePath: String,
+        localPath: String,
+        workers: Int = DEFAULT_PARALLEL_WORKERS,
+        progress: ((Long) -> Unit)? = null,
+        ranges: RangeProgress? = null
+    ): Result<TransferResult> {
+        val channel = sftpChannel ?: return Result.failure(Exception("Not connected"))
+        val broker = channelBroker ?: return Result.failure(Exception("Not connected"))
+        val size = try {
+            sshManager.io("sftp stat", channel) { channel.stat(remotePath).size }
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to stat $remotePath", e)
+            return Result.failure(e)
+        }
+        val count = ranges?.count ?: parallelRanges(size, workers)
+        if (count < 2) return downloadFile(remotePath, localPath, progress, resume = ranges != null)
+
+        return try {
+            val (requests, rtt) = sshManager.io("sftp tune", channel) { tune(channel, null) }
+            val progressOf = ranges ?: RangeProgress(count)
+            val start = SystemClock.elapsedRealtime()
+            val resumed = sshManager.io("prepare $localPath") {
+                RandomAccessFile(localPath, "rw").use { file ->
+                    // 本地文件被改动过时各段进度不可信，从头开始
+                    if (file.length() != size) progressOf.reset()
+                    file.setLength(size)
+                }
+                progressOf.total()
+            }
+            val transferred = AtomicLong(resumed)
+            RandomAccessFile(localPath, "rw").use { file ->
+                val rangeSize = (size + count - 1) / count
+                coroutineScope {
+                    (0 until count).map { index ->
+                        val offset = index * rangeSize
+                        val length = minOf(rangeSize, size - offset)
+                        async {
+                            downloadRange(broker, remotePath, file.channel, offset, length, index, progressOf, requests) { bytes ->
+                                progress?.invoke(transferred.addAndGet(bytes))
+                            }
+                        }
+                    }.awaitAll()
+                }
+            }
+            val result = finishTransfer(localPath, start, transferred.get() - resumed, requests * count, rtt)
+            Log.d(TAG, "Downloaded $remotePath in $count ranges from $resumed at ${result.bytesPerSecond / 1024}KB/s")
+            Result.success(result)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to download $remotePath in parallel", e)
+            Result.failure(e)
+        }
+    }
+
+    /**
+     * 在单独的SFTP通道上从该段断点读取到段尾，按位置写入本地文件，FileChannel 的定位写可并发
+     */
+    private suspend fun downloadRange(
+        broker: ChannelBroker,
+        remotePath: String,
+        target: FileChannel,
+        offset: Long,
+        length: Long,
+        index: Int,
+        ranges: RangeProgress,
+        requests: Int,
+        onBytes: (Long) -> Unit
+    ) {
+        val done = ranges.done(index).coerceIn(0, length)
+        if (done == length) return
+        val channel = broker.acquireSftp()
+        try {
+            sshManager.io("sftp range", channel) {
+                channel.bulkRequests = requests
+                channel.get(remotePath, null, offset + done).use { input ->
+                    val buffer = ByteArray(SftpTransferTuner.CHUNK_BYTES)
+                    var position = offset + done
+                    var remaining = length - done
+                    while (remaining > 0) {
+                        val read = input.read(buffer, 0, minOf(buffer.size.toLong(), remaining).toInt())
+                        if (read < 0) throw Exception("Unexpected end of $remotePath at $position")
+                        val chunk = ByteBuffer.wrap(buffer, 0, read)
+                        while (chunk.hasRemaining()) {
+                            position += target.write(chunk, position)
+                        }
+                        remaining -= read
+                        // 写入完成后才计入该段进度
+                        ranges.add(index, read.toLong())
+                        onBytes(read.toLong())
                     }
-                    override fun end() {}
                 }
             }
-            channel.get(remotePath, localPath, monitor)
-            Log.d(TAG, "Downloaded $remotePath to $localPath")
-            Result.success(Unit)
+        } finally {
+            broker.release(channel)
+        }
+    }
+
+    /**
+     * 并行上传完成后的校验方式
+     */
+    enum class Verify {
+        NONE,
+        /** 比较远程文件大小 */
+        SIZE,
+        /** 比较大小和 SHA-256（远程需要 sha256sum 或 shasum） */
+        CHECKSUM
+    }
+
+    /**
+     * 分段并行上传大文件：本地文件按段内存映射，每段在各自的SFTP通道上写成远程的分片文件，
+     * 全部完成后在服务端用 cat 按顺序拼接并删除分片，最后按 [verify] 校验。
+     * JSch 的 put 以覆盖模式打开会截断文件、以续传模式打开会按当前长度重算偏移，
+     * 无法让多个通道安全地写同一个远程文件的不同区域，所以在服务端拼接。
+     * 拼接需要能执行 cat/rm 的shell，且拼接期间分片和目标文件同时存在，约占两倍文件大小的磁盘空间；
+     * 只开放SFTP的服务端、空闲空间不足或拼接失败时，删除分片后改用 [uploadFile] 单通道从头上传。
+     * 小于 [PARALLEL_MIN_BYTES] 的文件直接走 [uploadFile]
+     *
+     * @param progress 所有分段合计的已上传字节数
+     * @param ranges 传入时按其段数分片，已有进度时以远程分片的实际长度为断点续传；失败时保留分片供下次续传
+     */
+    suspend fun uploadFileParallel(
+        localPath: String,
+        remotePath: String,
+        workers: Int = DEFAULT_PARALLEL_WORKERS,
+        verify: Verify = Verify.SIZE,
+        progress: ((Long) -> Unit)? = null,
+        ranges: RangeProgress? = null
+    ): Result<TransferResult> {
+        val channel = sftpChannel ?: return Result.failure(Exception("Not connected"))
+        val broker = channelBroker ?: return Result.failure(Exception("Not connected"))
+        val size = File(localPath).length()
+        val count = ranges?.count ?: parallelRanges(size, workers)
+        if (count < 2) return uploadFile(localPath, remotePath, progress, resume = ranges != null)
+
+        val parts = (0 until count).map { "$remotePath$PART_SUFFIX$it" }
+        return try {
+            val (requests, rtt) = sshManager.io("sftp tune", channel) { tune(channel, null) }
+            val progressOf = ranges ?: RangeProgress(count)
+            // 服务端已确认写入的长度就是各分片的断点；没有记录过进度时残留的分片不可信，覆盖重写
+            val resumed = sshManager.io("sftp stat parts", channel) {
+                val resuming = progressOf.total() > 0
+                parts.forEachIndexed { index, part ->
+                    progressOf.set(index, if (resuming) remoteSizeOrZero(channel, part) else 0L)
+                }
+                progressOf.total()
+            }
+            if (!canReassemble(channel, remotePath, size, size - resumed)) {
+                return uploadSingleStream(channel, localPath, remotePath, parts, progress)
+            }
+            val transferred = AtomicLong(resumed)
+            val start = SystemClock.elapsedRealtime()
+            val localChecksum = RandomAccessFile(localPath, "r").use { file ->
+                val rangeSize = (size + count - 1) / count
+                coroutineScope {
+                    // 本地校验和与上传同时计算，同样读映射区域
+                    val checksum = if (verify == Verify.CHECKSUM) {
+                        async(Dispatchers.IO) { sha256(file.channel, size) }
+                    } else null
+                    parts.mapIndexed { index, part ->
+                        val offset = index * rangeSize
+                        val length = minOf(rangeSize, size - offset)
+                        async {
+                            uploadRange(broker, file.channel, part, offset, length, index, progressOf, requests) { bytes ->
+                                progress?.invoke(transferred.addAndGet(bytes))
+                            }
+                        }
+                    }.awaitAll()
+                    checksum?.await()
+                }
+            }
+            try {
+                reassemble(parts, remotePath, size)
+            } catch (e: Exception) {
+                if (e is CancellationException) throw e
+                Log.w(TAG, "Reassembly of $remotePath failed: ${e.message}")
+                return uploadSingleStream(channel, localPath, remotePath, parts, progress)
+            }
+            verifyUpload(channel, remotePath, size, localChecksum, verify)
+            val result = finishTransfer(localPath, start, transferred.get() - resumed, requests * count, rtt)
+            Log.d(TAG, "Uploaded $localPath in $count parts from $resumed at ${result.bytesPerSecond / 1024}KB/s")
+            Result.success(result)
         } catch (e: Exception) {
-            Log.e(TAG, "Failed to download file", e)
+            Log.e(TAG, "Failed to upload $localPath in parallel", e)
+            if (ranges == null) {
+                withContext(NonCancellable) { sshManager.io("sftp rm") { removeParts(channel, parts) } }
+            }
             Result.failure(e)
         }
     }
 
+    /**
+     * 把本地文件该段断点之后的部分追加到远程分片，按窗口映射本地文件，不整段读入内存
+     */
+    private suspend fun uploadRange(
+        broker: ChannelBroker,
+        source: FileChannel,
+        part: String,
+        offset: Long,
+        length: Long,
+        index: Int,
+        ranges: RangeProgress,
+        requests: Int,
+        onBytes: (Long) -> Unit
+    ) {
+        val done = ranges.done(index)
+        if (done > length) throw Exception("Part $part is larger than its range")
+        if (done == length) return
+        val channel = broker.acquireSftp()
+        try {
+            sshManager.io("sftp part", channel) {
+                channel.bulkRequests = requests
+                // RESUME 模式下 JSch 从分片当前长度处继续写
+                val mode = if (done > 0) ChannelSftp.RESUME else ChannelSftp.OVERWRITE
+                channel.put(part, null, mode).use { output ->
+                    val buffer = ByteArray(SftpTransferTuner.CHUNK_BYTES)
+                    var position = offset + done
+                    val end = offset + length
+                    while (position < end) {
+                        val window = source.map(FileChannel.MapMode.READ_ONLY, position, minOf(MAP_WINDOW_BYTES, end - position))
+                        while (window.hasRemaining()) {
+                            val count = minOf(buffer.size, window.remaining())
+                            window.get(buffer, 0, count)
+                            output.write(buffer, 0, count)
+                            ranges.add(index, count.toLong())
+                            onBytes(count.toLong())
+                        }
+                        position += window.capacity()
+                    }
+                }
+            }
+        } finally {
+            broker.release(channel)
+        }
+    }
+
+    /**
+     * 服务端能否拼接分片：探测shell中的 cat/rm，并在服务端支持 statvfs 扩展时检查空闲空间，
+     * 需要容纳尚未上传的分片和拼接出的完整文件；不支持 statvfs 时不检查空间
+     *
+     * @param pending 尚未上传的分片字节数
+     */
+    private suspend fun canReassemble(channel: ChannelSftp, remotePath: String, size: Long, pending: Long): Boolean {
+        val probe = sshManager.execForOutput("command -v cat && command -v rm", SHELL_PROBE_TIMEOUT_MS).getOrNull()
+        if (probe?.exitStatus != 0) {
+            Log.w(TAG, "No shell to reassemble parts, uploading $remotePath in a single stream")
+            return false
+        }
+        val available = sshManager.io("sftp statvfs", channel) {
+            try {
+                val vfs = channel.statVFS(remotePath.substringBeforeLast('/', ".").ifEmpty { "/" })
+                vfs.availBlocks * vfs.fragmentSize
+            } catch (e: Exception) {
+                null
+            }
+        }
+        if (available != null && available < pending + size) {
+            Log.w(TAG, "Only $available bytes free for $remotePath, uploading in a single stream")
+            return false
+        }
+        return true
+    }
+
+    /**
+     * 删除分片后单通道从头上传；目标文件可能留有拼接到一半的内容，不续传
+     */
+    private suspend fun uploadSingleStream(
+        channel: ChannelSftp,
+        localPath: String,
+        remotePath: String,
+        parts: List<String>,
+        progress: ((Long) -> Unit)?
+    ): Result<TransferResult> {
+        sshManager.io("sftp rm") { removeParts(channel, parts) }
+        return uploadFile(localPath, remotePath, progress)
+    }
+
+    /**
+     * 在服务端按顺序拼接分片并删除，按文件大小放宽超时
+     */
+    private suspend fun reassemble(parts: List<String>, remotePath: String, size: Long) {
+        val quotedParts = parts.joinToString(" ") { shellQuote(it) }
+        val command = "cat $quotedParts > ${shellQuote(remotePath)} && rm -f $quotedParts"
+        val timeoutMs = maxOf(REASSEMBLE_MIN_TIMEOUT_MS, size / REASSEMBLE_BYTES_PER_MS)
+        val output = sshManager.execForOutput(command, timeoutMs).getOrThrow()
+        if (output.exitStatus != 0) {
+            throw Exception("Reassembly failed (${output.exitStatus}): ${output.stderr.trim()}")
+        }
+    }
+
+    private suspend fun verifyUpload(channel: ChannelSftp, remotePath: String, size: Long, checksum: String?, verify: Verify) {
+        if (verify == Verify.NONE) return
+        val remoteSize = sshManager.io("sftp stat", channel) { channel.stat(remotePath).size }
+        if (remoteSize != size) throw Exception("Size mismatch: local $size, remote $remoteSize")
+        if (checksum == null) return
+        val path = shellQuote(remotePath)
+        val output = sshManager.execForOutput("sha256sum $path 2>/dev/null || shasum -a 256 $path").getOrThrow()
+        val remoteChecksum = output.stdout.trim().substringBefore(' ').lowercase()
+        if (output.exitStatus != 0 || remoteChecksum != checksum) {
+            throw Exception("Checksum mismatch: local $checksum, remote ${remoteChecksum.ifEmpty { output.stderr.trim() }}")
+        }
+    }
+
+    private fun removeParts(channel: ChannelSftp, parts: List<String>) {
+        parts.forEach { part ->
+            try {
+                if (channel.isConnected) channel.rm(part)
+            } catch (e: Exception) {
+                // 分片可能未创建或已拼接删除
+            }
+        }
+    }
+
+    private fun sha256(source: FileChannel, size: Long): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        var position = 0L
+        while (position < size) {
+            val window = source.map(FileChannel.MapMode.READ_ONLY, position, minOf(MAP_WINDOW_BYTES, size - position))
+            digest.update(window)
+            position += window.capacity()
+        }
+        return digest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    private fun shellQuote(value: String): String = "'" + value.replace("'", "'\\''") + "'"
+
+    /**
+     * JSch 每次回调的是增量，累加后以总量回调
+     */
+    private fun progressMonitor(counter: AtomicLong, progress: ((Long) -> Unit)?): com.jcraft.jsch.SftpProgressMonitor =
+        object : com.jcraft.jsch.SftpProgressMonitor {
+            override fun init(op: Int, src: String?, dest: String?, max: Long) {}
+            override fun count(count: Long): Boolean {
+                val total = counter.addAndGet(count)
+                progress?.invoke(total)
+                return true
+            }
+            override fun end() {}
+        }
+
+    private fun remoteSizeOrZero(channel: ChannelSftp, path: String): Long = try {
+        channel.stat(path).size
+    } catch (e: SftpException) {
+        if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) 0L else throw e
+    }
+
+    /**
+     * 用一次 REALPATH 往返测量RTT，据此设置通道的在途请求数；返回 请求数 to RTT
+     */
+    private fun tune(channel: ChannelSftp, outstandingRequests: Int?): Pair<Int, Long> {
+        val start = SystemClock.elapsedRealtime()
+        channel.realpath(".")
+        val rtt = SystemClock.elapsedRealtime() - start
+        val requests = outstandingRequests ?: SftpTransferTuner.outstandingRequests(sshManager.getHostId(), rtt)
+        channel.bulkRequests = requests
+        return requests to rtt
+    }
+
+    private fun finishTransfer(localPath: String, start: Long, bytes: Long, requests: Int, rtt: Long): TransferResult {
+        val file = File(localPath)
+        val result = TransferResult(bytes, SystemClock.elapsedRealtime() - start, requests, rtt)
+        sshManager.recordTransfer(file, result.bytes, result.elapsedMs)
+        SftpTransferTuner.record(sshManager.getHostId(), result)
+        return result
+    }
+
+    /**
+     * 递归下载远程目录，见 [TreeTransfer]
+     *
+     * @param progress 进度快照，在多个传输线程上回调
+     */
+    suspend fun downloadDirectory(
+        remoteDir: String,
+        localDir: String,
+        walkers: Int = TreeTransfer.DEFAULT_WALKERS,
+        workers: Int = TreeTransfer.DEFAULT_WORKERS,
+        progress: ((TreeTransfer.Progress) -> Unit)? = null
+    ): Result<TreeTransfer.Progress> {
+        val broker = channelBroker ?: return Result.failure(Exception("Not connected"))
+        return TreeTransfer(sshManager, broker, walkers, workers).download(remoteDir, localDir, progress)
+    }
+
+    /**
+     * 递归上传本地目录，见 [TreeTransfer]
+     *
+     * @param progress 进度快照，在多个传输线程上回调
+     */
+    suspend fun uploadDirectory(
+        localDir: String,
+        remoteDir: String,
+        walkers: Int = TreeTransfer.DEFAULT_WALKERS,
+        workers: Int = TreeTransfer.DEFAULT_WORKERS,
+        progress: ((TreeTransfer.Progress) -> Unit)? = null
+    ): Result<TreeTransfer.Progress> {
+        val broker = channelBroker ?: return Result.failure(Exception("Not connected"))
+        return TreeTransfer(sshManager, broker, walkers, workers).upload(localDir, remoteDir, progress)
+    }
+
     /**
      * 删除文件
      */
-    suspend fun deleteFile(path: String): Result<Unit> = withContext(Dispatchers.IO) {
+    suspend fun deleteFile(path: String): Result<Unit> = sshManager.io("sftp rm", sftpChannel) {
         try {
-            val channel = sftpChannel ?: return@withContext Result.failure(Exception("Not connected"))
+            val channel = sftpChannel ?: return@io Result.failure(Exception("Not connected"))
             val attrs = channel.stat(path)
 
             if (attrs.isDir) {
@@ -217,9 +718,9 @@ class SftpManager(private val sshManager: SshManager) {
     /**
      * 重命名文件
      */
-    suspend fun renameFile(oldPath: String, newPath: String): Result<Unit> = withContext(Dispatchers.IO) {
+    suspend fun renameFile(oldPath: String, newPath: String): Result<Unit> = sshManager.io("sftp rename", sftpChannel) {
         try {
-            val channel = sftpChannel ?: return@withContext Result.failure(Exception("Not connected"))
+            val channel = sftpChannel ?: return@io Result.failure(Exception("Not connected"))
             channel.rename(oldPath, newPath)
             Log.d(TAG, "Renamed $oldPath to $newPath")
             Result.success(Unit)
@@ -232,9 +733,9 @@ class SftpManager(private val sshManager: SshManager) {
     /**
      * 创建目录
      */
-    suspend fun createDirectory(path: String): Result<Unit> = withContext(Dispatchers.IO) {
+    suspend fun createDirectory(path: String): Result<Unit> = sshManager.io("sftp mkdir", sftpChannel) {
         try {
-            val channel = sftpChannel ?: return@withContext Result.failure(Exception("Not connected"))
+            val channel = sftpChannel ?: return@io Result.failure(Exception("Not connected"))
             channel.mkdir(path)
             Log.d(TAG, "Created directory $path")
             Result.success(Unit)
@@ -245,29 +746,28 @@ class SftpManager(private val sshManager: SshManager) {
     }
 
     /**
-     * 获取文件内容作为InputStream
+     * 读取远程文件：在本主机的IO调度器上打开并交给 [read] 读完，取消时关闭通道
      */
-    fun getFileInputStream(path: String): Result<InputStream> {
-        return try {
-            val channel = sftpChannel ?: return Result.failure(Exception("Not connected"))
-            val inputStream = channel.get(path)
-            Result.success(inputStream)
+    suspend fun <T> readFile(path: String, read: (InputStream) -> T): Result<T> = sshManager.io("sftp read", sftpChannel) {
+        try {
+            val channel = sftpChannel ?: return@io Result.failure(Exception("Not connected"))
+            Result.success(channel.get(path).use(read))
         } catch (e: Exception) {
-            Log.e(TAG, "Failed to get file input stream", e)
+            Log.e(TAG, "Failed to read file", e)
             Result.failure(e)
         }
     }
 
     /**
-     * 获取文件输出流
+     * 写入远程文件（覆盖）：在本主机的IO调度器上打开并交给 [write] 写完，取消时关闭通道
      */
-    fun getFileOutputStream(path: String): Result<OutputStream> {
-        return try {
-            val channel = sftpChannel ?: return Result.failure(Exception("Not connected"))
-            val outputStream = channel.put(path)
-            Result.success(outputStream)
+    suspend fun writeFile(path: String, write: (OutputStream) -> Unit): Result<Unit> = sshManager.io("sftp write", sftpChannel) {
+        try {
+            val channel = sftpChannel ?: return@io Result.failure(Exception("Not connected"))
+            channel.put(path).use(write)
+            Result.success(Unit)
         } catch (e: Exception) {
-            Log.e(TAG, "Failed to get file output stream", e)
+            Log.e(TAG, "Failed to write file", e)
             Result.failure(e)
         }
     }
@@ -275,9 +775,9 @@ class SftpManager(private val sshManager: SshManager) {
     /**
      * 改变当前工作目录
      */
-    fun changeDirectory(path: String): Result<Unit> {
-        return try {
-            val channel = sftpChannel ?: return Result.failure(Exception("Not connected"))
+    suspend fun changeDirectory(path: String): Result<Unit> = sshManager.io("sftp cd", sftpChannel) {
+        try {
+            val channel = sftpChannel ?: return@io Result.failure(Exception("Not connected"))
             channel.cd(path)
             Result.success(Unit)
         } catch (e: Exception) {
@@ -289,9 +789,9 @@ class SftpManager(private val sshManager: SshManager) {
     /**
      * 获取当前工作目录
      */
-    fun pwd(): Result<String> {
-        return try {
-            val channel = sftpChannel ?: return Result.failure(Exception("Not connected"))
+    suspend fun pwd(): Result<String> = sshManager.io("sftp pwd", sftpChannel) {
+        try {
+            val channel = sftpChannel ?: return@io Result.failure(Exception("Not connected"))
             Result.success(channel.pwd())
         } catch (e: Exception) {
             Log.e(TAG, "Failed to get current directory", e)
@@ -302,9 +802,9 @@ class SftpManager(private val sshManager: SshManager) {
     /**
      * 获取文件信息
      */
-    fun stat(path: String): Result<com.jcraft.jsch.SftpATTRS> {
-        return try {
-            val channel = sftpChannel ?: return Result.failure(Exception("Not connected"))
+    suspend fun stat(path: String): Result<com.jcraft.jsch.SftpATTRS> = sshManager.io("sftp stat", sftpChannel) {
+        try {
+            val channel = sftpChannel ?: return@io Result.failure(Exception("Not connected"))
             Result.success(channel.stat(path))
         } catch (e: Exception) {
             Log.e(TAG, "Failed to stat file", e)
@@ -314,5 +814,21 @@ class SftpManager(private val sshManager: SshManager) {
 
     companion object {
         private const val TAG = "SftpManager"
+        const val DEFAULT_PARALLEL_WORKERS = 4
+        private const val PARALLEL_MIN_BYTES = 16 * 1024 * 1024L
+        private const val PARALLEL_MIN_RANGE_BYTES = 4 * 1024 * 1024L
+        private const val MAP_WINDOW_BYTES = 64 * 1024 * 1024L
+        private const val PART_SUFFIX = ".sshfp-part"
+        private const val REASSEMBLE_MIN_TIMEOUT_MS = 60 * 1000L
+        private const val SHELL_PROBE_TIMEOUT_MS = 10 * 1000L
+
+        /** 按服务端磁盘至少 10MB/s 估算拼接耗时 */
+        private const val REASSEMBLE_BYTES_PER_MS = 10 * 1024L
+
+        /**
+         * 按文件大小决定分段数，小于2表示不值得分段
+         */
+        fun parallelRanges(size: Long, workers: Int = DEFAULT_PARALLEL_WORKERS): Int =
+            if (size < PARALLEL_MIN_BYTES) 1 else workers.coerceAtMost((size / PARALLEL_MIN_RANGE_BYTES).toInt())
     }
 }
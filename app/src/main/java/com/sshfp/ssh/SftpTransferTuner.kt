@@ -0,0 +1,64 @@
+package com.sshfp.ssh
+
+import android.util.Log
+import kotlin.math.ceil
+
+/**
+ * SFTP传输调优 - 按带宽时延积（BDP）决定同时在途的 READ/WRITE 请求数
+ *
+ * 单个请求往返一次才能发下一个时吞吐量上限为 请求大小/RTT，在途 N 个请求时为 N*请求大小/RTT，
+ * 要跑满带宽需要 N >= 带宽*RTT/请求大小。RTT 在每次传输前实测，带宽取该主机以往传输的结果：
+ * 吞吐量接近在途请求数决定的上限时，说明瓶颈在请求数而不是链路，下次按加倍的带宽估计探测。
+ * 估计只保存在内存中。
+ */
+object SftpTransferTuner {
+
+    private const val TAG = "SftpTransferTuner"
+
+    /** JSch 按对端最大包长切分请求，每个 READ/WRITE 约 32KB */
+    const val CHUNK_BYTES = 32 * 1024
+
+    /** JSch 的默认在途请求数 */
+    const val DEFAULT_REQUESTS = 16
+    private const val MIN_REQUESTS = 4
+
+    /** SFTP通道本地窗口 2MB，在途数据超过窗口也无法继续发送 */
+    private const val MAX_REQUESTS = 64
+
+    /** 没有历史时按 100Mbit/s 估算 */
+    private const val INITIAL_BANDWIDTH_BPS = 100_000_000.0 / 8
+    private const val HEADROOM = 1.5
+    private const val WINDOW_LIMITED_RATIO = 0.8
+    private const val SMOOTHING = 0.5
+    private const val MIN_SAMPLE_BYTES = 1024 * 1024L
+
+    private val bandwidths = HashMap<Long, Double>()
+
+    /**
+     * 按主机的带宽估计和本次测得的RTT计算在途请求数
+     */
+    fun outstandingRequests(hostId: Long, rttMs: Long): Int {
+        val bandwidth = synchronized(bandwidths) { bandwidths[hostId] } ?: INITIAL_BANDWIDTH_BPS
+        val bdpBytes = bandwidth * rttMs.coerceAtLeast(1) / 1000 * HEADROOM
+        return ceil(bdpBytes / CHUNK_BYTES).toInt().coerceIn(MIN_REQUESTS, MAX_REQUESTS)
+    }
+
+    /**
+     * 记录一次传输结果，更新主机的带宽估计
+     */
+    fun record(hostId: Long, result: SftpManager.TransferResult) {
+        if (result.bytes < MIN_SAMPLE_BYTES || result.elapsedMs <= 0) return
+        val achieved = result.bytesPerSecond.toDouble()
+        val windowLimit = result.outstandingRequests.toDouble() * CHUNK_BYTES * 1000 / result.rttMs.coerceAtLeast(1)
+        val windowLimited = achieved >= windowLimit * WINDOW_LIMITED_RATIO && result.outstandingRequests < MAX_REQUESTS
+        val sample = if (windowLimited) achieved * 2 else achieved
+        val estimate = synchronized(bandwidths) {
+            val previous = bandwidths[hostId]
+            val next = if (previous == null) sample else previous + (sample - previous) * SMOOTHING
+            bandwidths[hostId] = next
+            next
+        }
+        Log.d(TAG, "Host $hostId: ${result.bytesPerSecond / 1024}KB/s with ${result.outstandingRequests} requests, " +
+            "rtt=${result.rttMs}ms, windowLimited=$windowLimited, estimate=${(estimate / 1024).toLong()}KB/s")
+    }
+}
@@ -0,0 +1,93 @@
+package com.sshfp.ssh
+
+import java.io.DataInputStream
+import java.io.IOException
+import java.net.InetAddress
+import java.nio.ByteBuffer
+import java.nio.channels.SocketChannel
+
+/**
+ * SOCKS5 握手（RFC 1928）- 只支持无认证的 CONNECT 命令
+ *
+ * 在阻塞模式下读写本地Socket，握手完成后再交给 [NioRelay] 切换为非阻塞。
+ * 只按字节精确读取，不会多读走客户端随后发送的数据。
+ */
+object Socks5Handshake {
+
+    private const val VERSION = 5
+    private const val METHOD_NO_AUTH = 0
+    private const val METHOD_NONE_ACCEPTABLE = 0xFF
+    private const val CMD_CONNECT = 1
+    private const val ATYP_IPV4 = 1
+    private const val ATYP_DOMAIN = 3
+    private const val ATYP_IPV6 = 4
+
+    const val REPLY_SUCCEEDED = 0
+    const val REPLY_GENERAL_FAILURE = 1
+    const val REPLY_HOST_UNREACHABLE = 4
+    const val REPLY_COMMAND_NOT_SUPPORTED = 7
+    const val REPLY_ADDRESS_NOT_SUPPORTED = 8
+
+    /**
+     * 客户端请求连接的目标
+     */
+    data class Request(val host: String, val port: Int)
+
+    /**
+     * 完成方法协商并读取 CONNECT 请求；不支持的请求会先回复错误再抛出异常
+     */
+    @Throws(IOException::class)
+    fun negotiate(socket: SocketChannel, timeoutMs: Int): Request {
+        socket.configureBlocking(true)
+        socket.socket().soTimeout = timeoutMs
+        val input = DataInputStream(socket.socket().getInputStream())
+
+        if (input.readUnsignedByte() != VERSION) throw IOException("Not a SOCKS5 client")
+        val methods = ByteArray(input.readUnsignedByte())
+        input.readFully(methods)
+        if (methods.none { it.toInt() == METHOD_NO_AUTH }) {
+            write(socket, byteArrayOf(VERSION.toByte(), METHOD_NONE_ACCEPTABLE.toByte()))
+            throw IOException("No acceptable SOCKS5 auth method")
+        }
+        write(socket, byteArrayOf(VERSION.toByte(), METHOD_NO_AUTH.toByte()))
+
+        if (input.readUnsignedByte() != VERSION) throw IOException("Bad SOCKS5 request")
+        val command = input.readUnsignedByte()
+        input.readUnsignedByte()
+        val host = when (val type = input.readUnsignedByte()) {
+            ATYP_IPV4 -> readAddress(input, 4)
+            ATYP_IPV6 -> readAddress(input, 16)
+            ATYP_DOMAIN -> ByteArray(input.readUnsignedByte()).also { input.readFully(it) }.toString(Charsets.US_ASCII)
+            else -> {
+                reply(socket, REPLY_ADDRESS_NOT_SUPPORTED)
+                throw IOException("Unsupported SOCKS5 address type $type")
+            }
+        }
+        val port = input.readUnsignedShort()
+        if (command != CMD_CONNECT) {
+            reply(socket, REPLY_COMMAND_NOT_SUPPORTED)
+            throw IOException("Unsupported SOCKS5 command $command")
+        }
+        socket.socket().soTimeout = 0
+        return Request(host, port)
+    }
+
+    /**
+     * 回复 CONNECT 结果，绑定地址固定为 0.0.0.0:0
+     */
+    @Throws(IOException::class)
+    fun reply(socket: SocketChannel, code: Int) {
+        write(socket, byteArrayOf(VERSION.toByte(), code.toByte(), 0, ATYP_IPV4.toByte(), 0, 0, 0, 0, 0, 0))
+    }
+
+    private fun readAddress(input: DataInputStream, length: Int): String {
+        val bytes = ByteArray(length)
+        input.readFully(bytes)
+        return InetAddress.getByAddress(bytes).hostAddress ?: throw IOException("Bad SOCKS5 address")
+    }
+
+    private fun write(socket: SocketChannel, bytes: ByteArray) {
+        val buffer = ByteBuffer.wrap(bytes)
+        while (buffer.hasRemaining()) socket.write(buffer)
+    }
+}
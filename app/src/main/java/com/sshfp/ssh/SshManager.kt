@@ -1,77 +1,74 @@
 package com.sshfp.ssh
 
+import android.content.Context
 import android.util.Log
-import com.jcraft.jsch.JSch
+import com.jcraft.jsch.Channel
+import com.jcraft.jsch.ChannelExec
 import com.jcraft.jsch.Session
-import com.jcraft.jsch.UIKeyboardInteractive
-import com.jcraft.jsch.UserInfo
+import com.sshfp.model.ConnectionTiming
 import com.sshfp.model.Host
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.fold
+import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeout
+import java.io.ByteArrayOutputStream
+import java.io.File
 import java.io.InputStream
 import java.io.OutputStream
 
 /**
  * SSH连接管理器
+ *
+ * Session 由 [SshSessionPool] 按主机共享，本类只持有一次引用；
+ * 通道经 [ChannelBroker] 打开，disconnect 仅归还本实例打开的通道和 Session。
+ * 阻塞的JSch调用经 [io] 在主机独立的 [SessionDispatcher] 上执行。
  */
-class SshManager {
+class SshManager(context: Context) {
 
+    private val pool = SshSessionPool.getInstance(context)
+    private val telemetry = ConnectionTelemetry.getInstance(context)
     private var session: Session? = null
-    private val jsch = JSch()
+    private var hostId: Long = -1
+    private val openChannels = mutableListOf<Channel>()
+    private val shellTimelines = HashMap<Channel, ConnectionTimeline>()
 
     /**
      * 连接到SSH服务器
      */
     suspend fun connect(host: Host, password: String? = null): Result<Unit> = withContext(Dispatchers.IO) {
-        try {
-            disconnect()
-
-            val session = jsch.getSession(host.username, host.address, host.port)
-            session.setConfig("StrictHostKeyChecking", "no")
-            session.setConfig("UserKnownHostsFile", "/dev/null")
-            session.setConfig("PreferredAuthentications", "publickey,password")
-
-            if (host.authMethod == Host.AuthMethod.PASSWORD) {
-                session.setPassword(password)
-            } else {
-                // 使用私钥认证
-                if (host.privateKeyPath.isNotEmpty()) {
-                    val passphrase = if (host.encryptedPassphrase.isNotEmpty()) password else null
-                    if (passphrase != null) {
-                        jsch.addIdentity(host.privateKeyPath, passphrase)
-                    } else {
-                        jsch.addIdentity(host.privateKeyPath)
-                    }
-                }
-            }
-
-            session.userInfo = object : UserInfo {
-                override fun getPassword(): String = password ?: ""
-                override fun promptPassword(message: String?): Boolean = true
-                override fun promptPassphrase(message: String?): Boolean = true
-                override fun promptYesNo(message: String?): Boolean = true
-                override fun showMessage(message: String?) {}
-                override fun getPassphrase(): String = password ?: ""
-            }
-
-            session.connect(15000) // 15秒超时
+        disconnect()
+        pool.acquire(host, password).map { session ->
             this@SshManager.session = session
+            hostId = host.id
             Log.d(TAG, "Connected to ${host.address}:${host.port}")
-            Result.success(Unit)
-        } catch (e: Exception) {
-            Log.e(TAG, "Connection failed", e)
-            Result.failure(e)
         }
     }
 
     /**
      * 断开连接
+     *
+     * @param closeIfIdle 没有其他使用者时立即关闭会话，不在池中保留
      */
-    fun disconnect() {
+    fun disconnect(closeIfIdle: Boolean = false) {
         try {
-            session?.disconnect()
+            val broker = channelBroker()
+            synchronized(openChannels) {
+                openChannels.forEach { channel ->
+                    if (broker != null) broker.release(channel) else channel.disconnect()
+                }
+                openChannels.clear()
+            }
+            // 未收到首字节就关闭的Shell也记录下来
+            val unfinished = synchronized(shellTimelines) {
+                shellTimelines.values.toList().also { shellTimelines.clear() }
+            }
+            unfinished.forEach { recordTiming(ConnectionTiming.Kind.SHELL, it, false) }
+            session?.let { pool.release(hostId, it, closeIfIdle) }
             session = null
-            Log.d(TAG, "Disconnected")
+            ioStats()?.let { Log.d(TAG, "Disconnected, io stats: $it") } ?: Log.d(TAG, "Disconnected")
         } catch (e: Exception) {
             Log.e(TAG, "Disconnect error", e)
         }
@@ -84,19 +81,157 @@ class SshManager {
         return session?.isConnected == true
     }
 
+    /**
+     * 当前主机的连接状态，会话被 keepalive 判定失联后变为 DISCONNECTED
+     */
+    fun connectionState(): StateFlow<ConnectionState> = pool.connectionState(hostId)
+
     /**
      * 获取当前Session
      */
     fun getSession(): Session? = session
 
+    /**
+     * 当前主机id，未连接过时为 -1
+     */
+    fun getHostId(): Long = hostId
+
+    /**
+     * 忘记主机公钥（用户确认服务器公钥确实已更换后调用）
+     */
+    fun forgetHostKey(host: Host) {
+        pool.forgetHostKey(host)
+    }
+
+    /**
+     * 上报一次文件传输的耗时，供自动压缩模式评估链路
+     */
+    fun recordTransfer(localFile: File, bytes: Long, elapsedMs: Long) {
+        if (session != null) pool.recordTransfer(hostId, localFile, bytes, elapsedMs)
+    }
+
+    /**
+     * 记录本连接上一次通道建立的分阶段耗时
+     */
+    fun recordTiming(kind: ConnectionTiming.Kind, timeline: ConnectionTimeline, success: Boolean) {
+        if (hostId >= 0) telemetry.record(timeline.toTiming(hostId, kind, success))
+    }
+
+    /**
+     * Shell通道收到第一个字节时调用，补全该通道的首字节耗时并记录
+     */
+    fun markFirstByte(channel: Channel) {
+        val timeline = synchronized(shellTimelines) { shellTimelines.remove(channel) } ?: return
+        timeline.mark(ConnectionTimeline.Phase.FIRST_BYTE)
+        recordTiming(ConnectionTiming.Kind.SHELL, timeline, true)
+    }
+
+    /**
+     * 在当前主机的IO调度器上执行阻塞调用；未连接时退回 Dispatchers.IO
+     *
+     * @param channel 调用期间读写的通道，协程被取消时关闭它，阻塞在该通道上的读写随即返回
+     */
+    suspend fun <T> io(operation: String, channel: Channel? = null, block: suspend () -> T): T {
+        val onCancel = channel?.let { { closeQuietly(it) } }
+        if (hostId < 0) return withContext(Dispatchers.IO) { block() }
+        return pool.sessionDispatcher(hostId).io(operation, onCancel, block)
+    }
+
+    /**
+     * 当前主机IO调度器的统计（排队等线程的时间和实际IO时间），未连接过时为 null
+     */
+    fun ioStats(): SessionDispatcher.Stats? = if (hostId >= 0) pool.sessionDispatcher(hostId).stats() else null
+
+    private fun closeQuietly(channel: Channel) {
+        try {
+            channel.disconnect()
+        } catch (e: Exception) {
+            Log.e(TAG, "Channel close error", e)
+        }
+    }
+
+    /**
+     * 获取当前Session的通道调度器
+     */
+    fun channelBroker(): ChannelBroker? = session?.let { pool.channelBroker(it) }
+
+    /**
+     * 通过调度器打开通道并记录，disconnect 时一并归还
+     */
+    private suspend fun <T : Channel> openTracked(
+        type: String,
+        connectTimeout: Int,
+        configure: (T) -> Unit = {}
+    ): T {
+        val broker = channelBroker() ?: throw Exception("Session not connected")
+        val channel = broker.open(type, connectTimeout, configure)
+        synchronized(openChannels) {
+            openChannels.removeAll { it.isClosed }
+            openChannels.add(channel)
+        }
+        return channel
+    }
+
+    /**
+     * 归还 openTracked 打开的通道
+     */
+    private fun releaseTracked(channel: Channel) {
+        synchronized(openChannels) { openChannels.remove(channel) }
+        channelBroker()?.release(channel) ?: channel.disconnect()
+    }
+
+    /**
+     * 在exec通道上执行命令，不经过终端；同一会话上可同时执行多个命令（受 [ChannelBroker] 通道上限约束）
+     *
+     * @param env 环境变量，服务端 AcceptEnv 未放行的会被忽略
+     */
+    suspend fun exec(command: String, env: Map<String, String> = emptyMap()): Result<ExecProcess> =
+        io("exec") {
+            try {
+                var stdout: InputStream? = null
+                var stderr: InputStream? = null
+                // 输出流必须在连接前取得，否则命令的早期输出会丢失
+                val channel = openTracked<ChannelExec>("exec", EXEC_CONNECT_TIMEOUT_MS) { channel ->
+                    channel.setCommand(command)
+                    env.forEach { (key, value) -> channel.setEnv(key, value) }
+                    stdout = channel.inputStream
+                    stderr = channel.extInputStream
+                }
+                Result.success(ExecProcess(channel, stdout!!, stderr!!, ::releaseTracked))
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to exec: $command", e)
+                Result.failure(e)
+            }
+        }
+
+    /**
+     * 执行命令并收集全部输出，超时后终止命令
+     */
+    suspend fun execForOutput(command: String, timeoutMs: Long = EXEC_TIMEOUT_MS): Result<ExecProcess.Output> {
+        val process = exec(command).getOrElse { return Result.failure(it) }
+        return try {
+            withTimeout(timeoutMs) {
+                coroutineScope {
+                    // 两路输出同时读取，任一路堵塞都不会卡住另一路
+                    val stdout = async { process.stdout.fold(ByteArrayOutputStream()) { out, chunk -> out.apply { write(chunk) } } }
+                    val stderr = async { process.stderr.fold(ByteArrayOutputStream()) { out, chunk -> out.apply { write(chunk) } } }
+                    val exitStatus = process.awaitExit()
+                    Result.success(ExecProcess.Output(stdout.await().toString(), stderr.await().toString(), exitStatus))
+                }
+            }
+        } catch (e: Exception) {
+            process.cancel()
+            Log.e(TAG, "Exec failed: $command", e)
+            Result.failure(e)
+        }
+    }
+
     /**
      * 打开Shell通道
      */
-    fun openShell(): Result<ShellChannel> {
+    suspend fun openShell(): Result<ShellChannel> {
         return try {
-            val channel = session?.openChannel("shell") as? com.jcraft.jsch.ChannelShell
-                ?: return Result.failure(Exception("Session not connected"))
-            channel.connect()
+            val channel = openTracked<com.jcraft.jsch.ChannelShell>("shell", 0)
             Result.success(ShellChannel(channel))
         } catch (e: Exception) {
             Log.e(TAG, "Failed to open shell", e)
@@ -107,73 +242,62 @@ class SshManager {
     /**
      * 打开Shell通道（直接返回 ChannelShell）- 在 IO 线程执行
      */
-    suspend fun openShellDirect(): com.jcraft.jsch.ChannelShell? = withContext(Dispatchers.IO) {
+    suspend fun openShellDirect(): com.jcraft.jsch.ChannelShell? = io("shell") {
         try {
             val session = this@SshManager.session
             if (session == null) {
                 Log.e(TAG, "Session is null, not connected")
-                return@withContext null
+                return@io null
             }
 
             if (!session.isConnected) {
                 Log.e(TAG, "Session is not connected")
-                return@withContext null
+                return@io null
             }
 
             Log.d(TAG, "Opening shell channel...")
 
-            // 创建shell通道
-            val channel = session.openChannel("shell") as? com.jcraft.jsch.ChannelShell
-            if (channel == null) {
-                Log.e(TAG, "Failed to create shell channel")
-                return@withContext null
-            }
+            val timeline = ConnectionTimeline()
 
             // 首先尝试使用PTY（完整终端功能）
             try {
                 Log.d(TAG, "Trying to open shell with PTY...")
-                channel.setPtyType("xterm-256color")
-                channel.setPtySize(80, 24, 0, 0)
+                val channel = openTracked<com.jcraft.jsch.ChannelShell>("shell", 10000) { channel ->
+                    channel.setPtyType("xterm-256color")
+                    channel.setPtySize(80, 24, 0, 0)
 
-                try {
-                    channel.setEnv("TERM", "xterm-256color")
-                } catch (e: Exception) {
-                    Log.w(TAG, "Failed to set TERM environment variable", e)
+                    try {
+                        channel.setEnv("TERM", "xterm-256color")
+                    } catch (e: Exception) {
+                        Log.w(TAG, "Failed to set TERM environment variable", e)
+                    }
                 }
 
-                channel.connect(10000)
-
                 if (channel.isConnected) {
                     Log.d(TAG, "Shell channel with PTY connected successfully")
-                    return@withContext channel
+                    return@io channel.also { trackShell(it, timeline) }
                 }
             } catch (e: Exception) {
                 Log.w(TAG, "Failed to connect with PTY: ${e.message}, trying without PTY", e)
-                // 如果PTY失败，尝试断开并重新创建通道
-                try {
-                    channel.disconnect()
-                } catch (ignored: Exception) {
-                }
             }
 
             // 如果PTY模式失败，尝试不使用PTY的模式
             Log.d(TAG, "Trying to open shell without PTY...")
-            val plainChannel = session.openChannel("shell") as? com.jcraft.jsch.ChannelShell
-                ?: return@withContext null
-
             try {
-                plainChannel.connect(10000)
+                val plainChannel = openTracked<com.jcraft.jsch.ChannelShell>("shell", 10000)
 
                 if (plainChannel.isConnected) {
                     Log.d(TAG, "Shell channel without PTY connected successfully")
-                    return@withContext plainChannel
+                    return@io plainChannel.also { trackShell(it, timeline) }
                 } else {
                     Log.e(TAG, "Plain shell channel failed to connect")
-                    return@withContext null
+                    recordTiming(ConnectionTiming.Kind.SHELL, timeline, false)
+                    return@io null
                 }
             } catch (e: Exception) {
                 Log.e(TAG, "Failed to open plain shell: ${e.message}", e)
-                return@withContext null
+                recordTiming(ConnectionTiming.Kind.SHELL, timeline, false)
+                return@io null
             }
         } catch (e: Exception) {
             Log.e(TAG, "Failed to open shell: ${e.message}", e)
@@ -181,6 +305,11 @@ class SshManager {
         }
     }
 
+    private fun trackShell(channel: Channel, timeline: ConnectionTimeline) {
+        timeline.mark(ConnectionTimeline.Phase.CHANNEL_OPEN)
+        synchronized(shellTimelines) { shellTimelines[channel] = timeline }
+    }
+
     /**
      * Shell通道包装类
      */
@@ -199,33 +328,9 @@ class SshManager {
         fun isConnected(): Boolean = channel.isConnected
     }
 
-    /**
-     * 调整PTY大小
-     */
-    suspend fun resizePty(columns: Int, rows: Int): Result<Unit> = withContext(Dispatchers.IO) {
-        try {
-            session?.let { sess ->
-                // 尝试获取当前shell通道并调整大小
-                val channel = sess.openChannel("shell") as? com.jcraft.jsch.ChannelShell
-                if (channel != null && channel.isConnected) {
-                    channel.setPtySize(columns, rows, 0, 0)
-                    channel.setEnv("COLUMNS", columns.toString())
-                    channel.setEnv("LINES", rows.toString())
-                    Result.success(Unit)
-                } else {
-                    // 如果没有活动的shell通道，只设置会话级别的环境变量
-                    sess.setConfig("COLUMNS", columns.toString())
-                    sess.setConfig("LINES", rows.toString())
-                    Result.success(Unit)
-                }
-            } ?: Result.failure(Exception("Not connected"))
-        } catch (e: Exception) {
-            Log.e(TAG, "Failed to resize pty", e)
-            Result.failure(e)
-        }
-    }
-
     companion object {
         private const val TAG = "SshManager"
+        private const val EXEC_CONNECT_TIMEOUT_MS = 10000
+        private const val EXEC_TIMEOUT_MS = 30 * 1000L
     }
 }
@@ -0,0 +1,46 @@
+package com.sshfp.ssh
+
+import android.content.Context
+import android.os.SystemClock
+import com.sshfp.model.Host
+
+/**
+ * 预测性预连接 - 主机列表或终端页可见时，为最可能被点击的主机提前握手
+ *
+ * 只在无需用户输入即可认证的主机上进行（已保存密码或私钥口令，或未设口令的私钥）。
+ */
+class SshPreconnector(context: Context) {
+
+    private val pool = SshSessionPool.getInstance(context)
+
+    /**
+     * 对排名第一的主机进行预连接
+     */
+    suspend fun preconnect(hosts: List<Host>) {
+        val host = rank(hosts).firstOrNull() ?: return
+        if (pool.isPooled(host.id)) return
+
+        val now = SystemClock.elapsedRealtime()
+        synchronized(lastAttempts) {
+            val last = lastAttempts[host.id]
+            if (last != null && now - last < RETRY_COOLDOWN_MS) return
+            lastAttempts[host.id] = now
+        }
+
+        val password = pool.savedCredentials(host) ?: return
+        pool.prewarm(host, password.ifEmpty { null })
+    }
+
+    companion object {
+        private const val RETRY_COOLDOWN_MS = 30 * 1000L
+
+        private val lastAttempts = HashMap<Long, Long>()
+
+        /**
+         * 按最近连接时间排序，从未连接过的主机不参与预测
+         */
+        fun rank(hosts: List<Host>): List<Host> =
+            hosts.filter { it.lastConnectedAt > 0 }
+                .sortedByDescending { it.lastConnectedAt }
+    }
+}
@@ -0,0 +1,662 @@
+package com.sshfp.ssh
+
+import android.content.Context
+import android.net.ConnectivityManager
+import android.net.Network
+import android.os.SystemClock
+import android.util.Log
+import com.jcraft.jsch.JSch
+import com.jcraft.jsch.JSchException
+import com.jcraft.jsch.Session
+import com.jcraft.jsch.UIKeyboardInteractive
+import com.jcraft.jsch.UserInfo
+import com.sshfp.model.ConnectionTiming
+import com.sshfp.model.Host
+import com.sshfp.model.HostAlgorithmProfile
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * SSH会话池 - 进程内按 Host.id 共享已认证的 Session
+ *
+ * 每个界面通过 [acquire] 取得同一个 Session 并增加引用计数，用完后 [release]。
+ * 引用计数归零的 Session 会保留 [IDLE_TIMEOUT_MS]，期间再次 acquire 无需重新握手。
+ * 每个会话由 [KeepaliveMonitor] 保活，状态变化通过 [connectionState] 发布。
+ */
+class SshSessionPool private constructor(context: Context) {
+
+    private val jsch = JSch()
+    private val entries = HashMap<Long, PooledSession>()
+    private val dispatchers = HashMap<Long, SessionDispatcher>()
+    private val hostLocks = HashMap<Long, Mutex>()
+    private val states = HashMap<Long, MutableStateFlow<ConnectionState>>()
+    private val keepalive = KeepaliveMonitor()
+    private val dnsCache = DnsCache()
+    private val socketFactory = HappyEyeballsSocketFactory(dnsCache, CONNECT_TIMEOUT_MS)
+    private val profileDao = HostDatabase.getInstance(context).hostProfileDao()
+    private val knownHosts = KnownHostsRepository(HostDatabase.getInstance(context).knownHostDao())
+    private val compressionAdvisor = CompressionAdvisor(context)
+    private val identityCache = IdentityCache()
+    private val telemetry = ConnectionTelemetry.getInstance(context)
+    private val hostDao = HostDatabase.getInstance(context).hostDao()
+    private val passwordEncryption = PasswordEncryption(context.applicationContext)
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private var janitor: Job? = null
+
+    init {
+        MeteredCompression.install()
+        JSch.setLogger(ConnectionTimeline.JSchLogger)
+        jsch.hostKeyRepository = knownHosts
+
+        // 网络切换后NAT映射通常已失效，立即探测所有会话
+        val connectivityManager = context.applicationContext
+            .getSystemService(Context.CONNECTIVITY_SERVICE) as? ConnectivityManager
+        connectivityManager?.registerDefaultNetworkCallback(object : ConnectivityManager.NetworkCallback() {
+            override fun onAvailable(network: Network) = probeAll()
+            override fun onLost(network: Network) = probeAll()
+        })
+    }
+
+    /**
+     * 池中的一个会话
+     */
+    private class PooledSession(
+        val session: Session,
+        val configKey: String,
+        val compression: Host.Compression,
+        var compressed: Boolean,
+        val jumpHostId: Long? = null,
+        val jumpSession: Session? = null
+    ) {
+        val broker = ChannelBroker(session)
+        var refCount = 0
+        var closing = false
+        var idleTimeoutMs = IDLE_TIMEOUT_MS
+        var idleSince = SystemClock.elapsedRealtime()
+        var lastCheckedAt = SystemClock.elapsedRealtime()
+    }
+
+    /**
+     * 获取指定主机的共享Session，不存在或已失效时新建连接
+     */
+    suspend fun acquire(host: Host, password: String?): Result<Session> = withContext(Dispatchers.IO) {
+        try {
+            Result.success(acquireEntry(host, password, emptySet()).session)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to acquire session for ${host.address}", e)
+            Result.failure(e)
+        }
+    }
+
+    /**
+     * @param chain 正在建立的跳板链上的主机，用于发现循环引用
+     */
+    private suspend fun acquireEntry(host: Host, password: String?, chain: Set<Long>): PooledSession =
+        lockFor(host.id).withLock {
+            val reused = synchronized(entries) { entries[host.id] }?.let { entry ->
+                if (entry.configKey == configKeyOf(host) && isHealthy(entry)) entry else {
+                    evict(host.id, entry)
+                    null
+                }
+            }
+            var entry = reused ?: openPooled(host, password, chain)
+            // 检查和计数之间可能被空闲回收，已移出池的会话不能再用
+            if (!claim(host.id, entry)) {
+                entry = openPooled(host, password, chain)
+                if (!claim(host.id, entry)) throw IOException("Session closed while connecting")
+            }
+            ensureJanitor()
+            entry
+        }
+
+    /**
+     * 会话仍在池中时增加引用计数；与 [evict] 的空闲检查在同一把锁下进行
+     */
+    private fun claim(hostId: Long, entry: PooledSession): Boolean = synchronized(entries) {
+        if (entries[hostId] !== entry) return false
+        entry.refCount++
+        entry.idleTimeoutMs = IDLE_TIMEOUT_MS
+        true
+    }
+
+    /**
+     * 预连接：在后台完成握手和认证，把会话放入短TTL的预热槽位，
+     * 随后的 acquire 直接复用，不会重复握手
+     */
+    suspend fun prewarm(host: Host, password: String?): Result<Unit> = lockFor(host.id).withLock {
+        withContext(Dispatchers.IO) {
+            try {
+                val existing = synchronized(entries) { entries[host.id] }
+                if (existing != null && existing.configKey == configKeyOf(host) && existing.session.isConnected) {
+                    return@withContext Result.success(Unit)
+                }
+                existing?.let { evict(host.id, it) }
+                val entry = openPooled(host, password, emptySet())
+                synchronized(entries) {
+                    if (entry.refCount == 0) entry.idleTimeoutMs = WARM_TTL_MS
+                }
+                ensureJanitor()
+                Log.d(TAG, "Pre-connected ${host.address}:${host.port}")
+                Result.success(Unit)
+            } catch (e: Exception) {
+                Log.w(TAG, "Pre-connect to ${host.address} failed: ${e.message}")
+                Result.failure(e)
+            }
+        }
+    }
+
+    /**
+     * 是否已有可用的会话
+     */
+    fun isPooled(hostId: Long): Boolean = synchronized(entries) {
+        entries[hostId]?.session?.isConnected == true
+    }
+
+    private suspend fun openPooled(host: Host, password: String?, chain: Set<Long>): PooledSession {
+        val state = stateFlow(host.id)
+        state.value = ConnectionState.CONNECTING
+        val profile = profileDao.getProfile(host.id)
+        knownHosts.load()
+        val compressed = when (host.compression) {
+            Host.Compression.OFF -> false
+            Host.Compression.ON -> true
+            Host.Compression.AUTO -> compressionAdvisor.shouldCompress(host.id)
+        }
+        val jump = try {
+            host.jumpHostId?.let { acquireJump(host, it, chain) }
+        } catch (e: Exception) {
+            state.value = ConnectionState.DISCONNECTED
+            throw e
+        }
+        // 握手也在本主机的调度器上进行，取消时断开半建立的会话让 connect 立即返回
+        val connecting = AtomicReference<Session>()
+        val session = try {
+            sessionDispatcher(host.id).io("connect", onCancel = { connecting.get()?.disconnect() }) {
+                openSession(host, password, profile, compressed, jump?.let { JumpProxy(it.session) }, connecting::set)
+            }
+        } catch (e: Exception) {
+            state.value = ConnectionState.DISCONNECTED
+            jump?.let { release(host.jumpHostId!!, it.session) }
+            throw e
+        }
+        val entry = PooledSession(
+            session, configKeyOf(host), host.compression, compressed,
+            host.jumpHostId, jump?.session
+        )
+        synchronized(entries) { entries[host.id] = entry }
+        state.value = ConnectionState.CONNECTED
+        watch(host.id, entry)
+        if (profile == null) benchmark(host.id)
+        Log.d(TAG, "Opened pooled session for ${host.address}:${host.port}")
+        return entry
+    }
+
+    /**
+     * 取得跳板机的共享会话（引用计数加一），跳板机自身也可以再经跳板连接
+     */
+    private suspend fun acquireJump(host: Host, jumpHostId: Long, chain: Set<Long>): PooledSession {
+        val visited = chain + host.id
+        if (jumpHostId in visited) throw Exception("Jump host loop at ${host.address}")
+        val jumpHost = hostDao.getHostById(jumpHostId) ?: throw Exception("Jump host $jumpHostId not found")
+        return acquireEntry(jumpHost, savedCredentials(jumpHost), visited)
+    }
+
+    /**
+     * 取得已保存的认证凭据（密码或私钥口令），无法免交互认证时返回 null；
+     * 无口令的私钥返回空字符串
+     */
+    fun savedCredentials(host: Host): String? {
+        return when (host.authMethod) {
+            Host.AuthMethod.PASSWORD -> decryptOrNull(host.encryptedPassword)
+            Host.AuthMethod.KEY -> when {
+                host.privateKeyPath.isEmpty() -> null
+                host.encryptedPassphrase.isEmpty() -> ""
+                else -> decryptOrNull(host.encryptedPassphrase)
+            }
+        }
+    }
+
+    private fun decryptOrNull(encrypted: String): String? {
+        if (encrypted.isEmpty()) return null
+        return try {
+            passwordEncryption.decrypt(encrypted)
+        } catch (e: Exception) {
+            Log.w(TAG, "Cannot decrypt saved credentials")
+            null
+        }
+    }
+
+    /**
+     * 首次连接后在后台测试本机算法速度，生成该主机的算法配置供下次连接使用
+     */
+    private fun benchmark(hostId: Long) {
+        scope.launch(Dispatchers.Default) {
+            try {
+                val profile = CipherBenchmark.profileFor(hostId)
+                profileDao.insertProfile(profile)
+                Log.d(TAG, "Saved algorithm profile for host $hostId: ${profile.cipherOrder}")
+            } catch (e: Exception) {
+                Log.e(TAG, "Benchmark failed", e)
+            }
+        }
+    }
+
+    /**
+     * 监视会话存活：JSch 在 keepalive 连续无回应后断开会话，这里据此发布状态并回收
+     */
+    private fun watch(hostId: Long, entry: PooledSession) {
+        scope.launch {
+            while (isActive && entry.session.isConnected) {
+                delay(WATCH_INTERVAL_MS)
+                if (entry.session.isConnected) keepalive.onHealthy(hostId, entry.session)
+            }
+            if (!entry.closing) {
+                Log.w(TAG, "Session for host $hostId lost")
+                keepalive.onPeerLost(hostId)
+            }
+            evict(hostId, entry)
+        }
+    }
+
+    /**
+     * 主机的连接状态
+     */
+    fun connectionState(hostId: Long): StateFlow<ConnectionState> = stateFlow(hostId).asStateFlow()
+
+    private fun stateFlow(hostId: Long): MutableStateFlow<ConnectionState> = synchronized(states) {
+        states.getOrPut(hostId) { MutableStateFlow(ConnectionState.DISCONNECTED) }
+    }
+
+    /**
+     * 立即探测所有会话是否仍然可用
+     */
+    fun probeAll() {
+        val all = synchronized(entries) { entries.toList() }
+        if (all.isEmpty()) return
+        scope.launch {
+            all.forEach { (hostId, entry) ->
+                if (entry.session.isConnected) keepalive.probe(hostId, entry.session)
+            }
+        }
+    }
+
+    /**
+     * 归还Session，引用计数归零后进入空闲状态等待回收
+     *
+     * @param closeIfIdle 引用计数归零时立即关闭，不保留空闲会话（批量任务用，避免同时保留大量会话）
+     */
+    fun release(hostId: Long, session: Session, closeIfIdle: Boolean = false) {
+        val idle = synchronized(entries) {
+            val entry = entries[hostId]
+            if (entry == null || entry.session !== session) return
+            entry.refCount = (entry.refCount - 1).coerceAtLeast(0)
+            if (entry.refCount == 0) {
+                entry.idleSince = SystemClock.elapsedRealtime()
+                entry
+            } else null
+        }
+        if (closeIfIdle && idle != null) evict(hostId, idle, onlyIfIdle = true)
+    }
+
+    /**
+     * 记录文件传输样本；自动压缩模式下结论变化时通过重新密钥交换切换压缩
+     */
+    fun recordTransfer(hostId: Long, localFile: File, bytes: Long, elapsedMs: Long) {
+        val entry = synchronized(entries) { entries[hostId] } ?: return
+        compressionAdvisor.recordTransfer(hostId, localFile, bytes, elapsedMs, entry.compressed)
+        if (entry.compression != Host.Compression.AUTO) return
+        val wanted = compressionAdvisor.shouldCompress(hostId)
+        if (wanted == entry.compressed) return
+        scope.launch {
+            try {
+                setCompression(entry.session, wanted)
+                entry.session.rekey()
+                entry.compressed = wanted
+                Log.d(TAG, "Compression ${if (wanted) "enabled" else "disabled"} for host $hostId")
+            } catch (e: Exception) {
+                Log.w(TAG, "Rekey for compression failed: ${e.message}")
+            }
+        }
+    }
+
+    /**
+     * 主机的IO调度器，跨重连保留，统计数据也随之累计
+     */
+    fun sessionDispatcher(hostId: Long): SessionDispatcher = synchronized(dispatchers) {
+        dispatchers.getOrPut(hostId) { SessionDispatcher("host $hostId") }
+    }
+
+    /**
+     * 各主机IO调度器的统计
+     */
+    fun dispatcherStats(): Map<Long, SessionDispatcher.Stats> = synchronized(dispatchers) {
+        dispatchers.mapValues { it.value.stats() }
+    }
+
+    /**
+     * 获取Session对应的通道调度器
+     */
+    fun channelBroker(session: Session): ChannelBroker? = synchronized(entries) {
+        entries.values.firstOrNull { it.session === session }?.broker
+    }
+
+    /**
+     * 丢弃指定主机的会话（无论引用计数）
+     */
+    fun invalidate(hostId: Long) {
+        val entry = synchronized(entries) { entries[hostId] } ?: return
+        evict(hostId, entry)
+    }
+
+    /**
+     * 设置解密后私钥在内存中的保留时间
+     */
+    fun setIdentityTtl(ttlMs: Long) {
+        identityCache.ttlMs = ttlMs
+    }
+
+    /**
+     * 忘记主机已记录的公钥，下次连接重新记录
+     */
+    fun forgetHostKey(host: Host) {
+        knownHosts.forget(host)
+    }
+
+    /**
+     * 关闭池中所有会话
+     */
+    fun closeAll() {
+        val all = synchronized(entries) {
+            entries.values.toList().also { entries.clear() }
+        }
+        all.forEach {
+            it.closing = true
+            it.broker.close()
+            disconnectQuietly(it.session)
+        }
+        synchronized(states) { states.values.forEach { it.value = ConnectionState.DISCONNECTED } }
+        identityCache.clear()
+    }
+
+    private fun lockFor(hostId: Long): Mutex = synchronized(hostLocks) {
+        hostLocks.getOrPut(hostId) { Mutex() }
+    }
+
+    /**
+     * 健康检查：已断开的直接判定失效，长时间未检查的做一次往返探测。
+     * sendKeepAliveMsg 不等待回复，写出成功不代表对端还在；JSch 0.1.55 没有等待全局请求回复的接口，
+     * 所以打开一个空的 session 通道并等待服务端应答，确认或拒绝（如超过 MaxSessions）都说明连接可用，
+     * [HEALTH_CHECK_TIMEOUT_MS] 内没有应答判定失效。在IO线程调用
+     */
+    private fun isHealthy(entry: PooledSession): Boolean {
+        if (!entry.session.isConnected) return false
+        val now = SystemClock.elapsedRealtime()
+        if (now - entry.lastCheckedAt < HEALTH_CHECK_INTERVAL_MS) return true
+        val channel = try {
+            entry.session.openChannel("session")
+        } catch (e: Exception) {
+            Log.w(TAG, "Health check failed: ${e.message}")
+            return false
+        }
+        return try {
+            channel.connect(HEALTH_CHECK_TIMEOUT_MS)
+            entry.lastCheckedAt = now
+            true
+        } catch (e: JSchException) {
+            // 服务端拒绝打开时 JSch 把原因码记为退出码，超时或断开时仍为 -1
+            val replied = entry.session.isConnected && channel.exitStatus != -1
+            if (replied) entry.lastCheckedAt = now else Log.w(TAG, "Health check failed: ${e.message}")
+            replied
+        } finally {
+            channel.disconnect()
+        }
+    }
+
+    /**
+     * @param onlyIfIdle 因空闲而回收：持锁再次确认引用计数为0，期间被重新获取的会话保留
+     */
+    private fun evict(hostId: Long, entry: PooledSession, onlyIfIdle: Boolean = false) {
+        val removed = synchronized(entries) {
+            if (onlyIfIdle && entry.refCount > 0) return
+            entry.closing = entry.closing || entry.session.isConnected
+            if (entries[hostId] === entry) {
+                entries.remove(hostId)
+                true
+            } else false
+        }
+        if (removed) stateFlow(hostId).value = ConnectionState.DISCONNECTED
+        entry.broker.close()
+        disconnectQuietly(entry.session)
+        // 归还跳板机会话，最后一个目标断开后跳板机按空闲超时回收
+        if (removed && entry.jumpHostId != null && entry.jumpSession != null) {
+            release(entry.jumpHostId, entry.jumpSession)
+        }
+        Log.d(TAG, "Evicted session for host $hostId")
+    }
+
+    private fun disconnectQuietly(session: Session) {
+        try {
+            session.disconnect()
+        } catch (e: Exception) {
+            Log.e(TAG, "Disconnect error", e)
+        }
+    }
+
+    private fun ensureJanitor() {
+        synchronized(entries) {
+            if (janitor?.isActive == true) return
+            janitor = scope.launch {
+                while (isActive) {
+                    delay(JANITOR_INTERVAL_MS)
+                    evictIdle()
+                }
+            }
+        }
+    }
+
+    /**
+     * 回收空闲超时或已断开的会话，并清理各会话的空闲通道
+     */
+    private fun evictIdle() {
+        val now = SystemClock.elapsedRealtime()
+        synchronized(entries) { entries.values.toList() }.forEach { it.broker.sweep() }
+        identityCache.evictExpired()
+        val expired = synchronized(entries) {
+            entries.filter { (_, entry) ->
+                !entry.session.isConnected ||
+                    (entry.refCount == 0 && now - entry.idleSince > entry.idleTimeoutMs)
+            }
+        }
+        expired.forEach { (hostId, entry) -> evict(hostId, entry, onlyIfIdle = entry.session.isConnected) }
+    }
+
+    /**
+     * 建立新的SSH连接
+     */
+    private fun openSession(
+        host: Host,
+        password: String?,
+        profile: HostAlgorithmProfile?,
+        compressed: Boolean,
+        proxy: JumpProxy?,
+        created: (Session) -> Unit = {}
+    ): Session {
+        val session = jsch.getSession(host.username, host.address, host.port)
+        created(session)
+        if (proxy != null) {
+            // 目标地址由跳板机解析和连接
+            session.setProxy(proxy)
+        } else {
+            // 解析全部地址并竞速连接，替代单地址顺序连接
+            session.setSocketFactory(socketFactory)
+        }
+        // 首次连接记录公钥（TOFU），之后严格校验，并把已知的公钥类型排在协商列表最前
+        session.setConfig("StrictHostKeyChecking", if (knownHosts.isKnown(host)) "yes" else "no")
+        KnownHostsRepository.pinnedOrder(knownHosts.knownTypes(host))?.let {
+            session.setConfig("server_host_key", it)
+        }
+        // 上次成功的认证方式排在最前，省去被拒方式的往返
+        session.setConfig("PreferredAuthentications", authOrder(host))
+        profile?.let { applyProfile(session, it) }
+        setCompression(session, compressed)
+
+        // 使用私钥认证，私钥解密后缓存，每个会话只提供本主机的私钥；认证结束后归还占用
+        var identity: IdentityCache.Lease? = null
+        if (host.authMethod == Host.AuthMethod.PASSWORD) {
+            session.setPassword(password)
+        } else if (host.privateKeyPath.isNotEmpty()) {
+            val passphrase = if (host.encryptedPassphrase.isNotEmpty()) password else null
+            identity = identityCache.repositoryFor(jsch, host.privateKeyPath, passphrase)
+            session.setIdentityRepository(identity.repository)
+        }
+
+        session.userInfo = object : UserInfo, UIKeyboardInteractive {
+            override fun getPassword(): String = password ?: ""
+            override fun promptPassword(message: String?): Boolean = true
+            override fun promptPassphrase(message: String?): Boolean = true
+            override fun promptYesNo(message: String?): Boolean = true
+            override fun showMessage(message: String?) {}
+            override fun getPassphrase(): String = password ?: ""
+
+            override fun promptKeyboardInteractive(
+                destination: String?,
+                name: String?,
+                instruction: String?,
+                prompt: Array<String>,
+                echo: BooleanArray
+            ): Array<String>? = keyboardInteractiveAnswers(password, prompt, echo)
+        }
+
+        keepalive.configure(host.id, session)
+        val timeline = ConnectionTimeline.begin()
+        try {
+            session.connect(CONNECT_TIMEOUT_MS)
+            telemetry.record(timeline.toTiming(host.id, ConnectionTiming.Kind.SESSION, true))
+            timeline.authMethod?.let { learnAuthMethod(host, it) }
+        } catch (e: Exception) {
+            telemetry.record(timeline.toTiming(host.id, ConnectionTiming.Kind.SESSION, false))
+            throw e
+        } finally {
+            ConnectionTimeline.end()
+            identity?.close()
+        }
+        return session
+    }
+
+    /**
+     * 记住主机认证成功的方式，变化时写入数据库
+     */
+    private fun learnAuthMethod(host: Host, method: String) {
+        if (host.lastAuthMethod == method) return
+        host.lastAuthMethod = method
+        scope.launch {
+            try {
+                hostDao.updateLastAuthMethod(host.id, method)
+                Log.d(TAG, "Learned auth method $method for ${host.address}")
+            } catch (e: Exception) {
+                Log.w(TAG, "Failed to save auth method: ${e.message}")
+            }
+        }
+    }
+
+    /**
+     * 按本机测得的速度调整算法提案的顺序，协商时服务端会选中客户端列表里第一个双方都支持的算法。
+     * 测过的算法排在前面，JSch 默认列表中的其余算法保留在后面，只支持 CBC 或 hmac-sha1 的服务端仍能连接。
+     * 旧版本保存的配置可能含有弱算法，只把允许列表中的提前
+     */
+    private fun applyProfile(session: Session, profile: HostAlgorithmProfile) {
+        supportedOrder(profile.cipherOrder, CipherBenchmark.ALLOWED_CIPHERS, "cipher.s2c")?.let {
+            session.setConfig("cipher.s2c", it)
+            session.setConfig("cipher.c2s", it)
+        }
+        supportedOrder(profile.macOrder, CipherBenchmark.ALLOWED_MACS, "mac.s2c")?.let {
+            session.setConfig("mac.s2c", it)
+            session.setConfig("mac.c2s", it)
+        }
+    }
+
+    /**
+     * 延迟压缩（zlib@openssh.com）在认证完成后才启用，避免认证前的压缩攻击面
+     */
+    private fun setCompression(session: Session, enabled: Boolean) {
+        val algorithms = if (enabled) "zlib@openssh.com,zlib,none" else "none"
+        session.setConfig("compression.s2c", algorithms)
+        session.setConfig("compression.c2s", algorithms)
+    }
+
+    private fun supportedOrder(order: String, allowed: List<String>, defaultsKey: String): String? {
+        val measured = order.split(",").filter { it in allowed && JSch.getConfig(it) != null }
+        if (measured.isEmpty()) return null
+        val defaults = JSch.getConfig(defaultsKey)?.split(",") ?: emptyList()
+        return (measured + defaults).distinct().joinToString(",")
+    }
+
+    private fun configKeyOf(host: Host): String =
+        "${host.username}@${host.address}:${host.port}/${host.authMethod}/${host.privateKeyPath}/${host.compression}/${host.jumpHostId}"
+
+    companion object {
+        private const val TAG = "SshSessionPool"
+        private const val CONNECT_TIMEOUT_MS = 15000 // 15秒超时
+        private const val IDLE_TIMEOUT_MS = 5 * 60 * 1000L
+        private const val WARM_TTL_MS = 60 * 1000L
+        private const val JANITOR_INTERVAL_MS = 30 * 1000L
+        private const val HEALTH_CHECK_INTERVAL_MS = 30 * 1000L
+        private const val HEALTH_CHECK_TIMEOUT_MS = 5000
+        private const val WATCH_INTERVAL_MS = 1000L
+        private val PASSWORD_PROMPT = Regex("password|密码", RegexOption.IGNORE_CASE)
+
+        @Volatile
+        private var INSTANCE: SshSessionPool? = null
+
+        fun getInstance(context: Context): SshSessionPool {
+            return INSTANCE ?: synchronized(this) {
+                INSTANCE ?: SshSessionPool(context).also { INSTANCE = it }
+            }
+        }
+
+        /**
+         * 主机的认证方式顺序：上次成功的方式在前，其余按认证类型的默认顺序
+         *
+         * 私钥主机只用 publickey，口令是私钥口令，不能当作登录密码发给服务器。
+         */
+        fun authOrder(host: Host): String {
+            val defaults = when (host.authMethod) {
+                Host.AuthMethod.PASSWORD -> listOf("password", "keyboard-interactive")
+                Host.AuthMethod.KEY -> listOf("publickey")
+            }
+            val learned = host.lastAuthMethod.takeIf { it in defaults }
+            return (listOfNotNull(learned) + defaults).distinct().joinToString(",")
+        }
+
+        /**
+         * 用保存的密码回答 keyboard-interactive 提示；无提示时返回空数组，
+         * 出现密码以外的提示（如动态验证码）时返回 null 放弃该方式
+         */
+        fun keyboardInteractiveAnswers(password: String?, prompt: Array<String>, echo: BooleanArray): Array<String>? {
+            if (prompt.isEmpty()) return emptyArray()
+            if (password == null) return null
+            val answers = prompt.mapIndexed { i, text ->
+                if (!echo.getOrElse(i) { false } && (PASSWORD_PROMPT.containsMatchIn(text) || prompt.size == 1)) {
+                    password
+                } else {
+                    return null
+                }
+            }
+            return answers.toTypedArray()
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.sshfp.ssh
+
+import android.app.Notification
+import android.app.NotificationChannel
+import android.app.NotificationManager
+import android.app.PendingIntent
+import android.app.Service
+import android.content.ComponentName
+import android.content.Context
+import android.content.Intent
+import android.content.ServiceConnection
+import android.content.pm.ServiceInfo
+import android.os.Binder
+import android.os.Build
+import android.os.IBinder
+import android.util.Log
+import androidx.core.app.NotificationCompat
+import androidx.core.app.ServiceCompat
+import androidx.core.content.ContextCompat
+import com.sshfp.MainActivity
+import com.sshfp.R
+import com.sshfp.model.Host
+import jackpal.androidterm.emulatorview.TermSession
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+
+/**
+ * SSH前台服务 - 持有各主机的会话、通道和转发，生命周期独立于界面
+ *
+ * 界面通过 [Client] 绑定后按主机取 [HostConnection]，Activity 重建或 Fragment 销毁视图时只解绑，
+ * 重新绑定后直接附着已有的终端会话，不重新握手。有连接时以前台服务运行，全部断开后自行停止。
+ */
+class SshTerminalService : Service() {
+
+    private val binder = LocalBinder()
+    private val _connections = MutableStateFlow<Map<Long, HostConnection>>(emptyMap())
+
+    /** 当前持有的连接，键为主机id */
+    val connections: StateFlow<Map<Long, HostConnection>> = _connections.asStateFlow()
+
+    inner class LocalBinder : Binder() {
+        val service: SshTerminalService get() = this@SshTerminalService
+    }
+
+    /**
+     * 单个主机的连接，终端、转发和SFTP共用同一个 [SshManager]
+     */
+    class HostConnection internal constructor(context: Context, val host: Host) {
+        val sshManager = SshManager(context)
+        val forwardManager = PortForwardManager(context, sshManager)
+        val transferQueue = TransferQueue.getInstance(context)
+        var password: String? = null
+            internal set
+
+        /** 传输等长任务的作用域，不随界面取消，连接关闭时取消 */
+        val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+        /** 终端会话，断线重连由其自身处理 */
+        var terminal: TerminalSession? = null
+
+        /** 终端模拟器会话，保存屏幕内容，界面重建后重新附着到新的视图 */
+        var emulator: TermSession? = null
+
+        private var sftp: SftpManager? = null
+
+        /**
+         * 本连接的SFTP管理器，首次调用时创建
+         */
+        @Synchronized
+        fun sftpManager(): SftpManager = sftp ?: SftpManager(sshManager).also { sftp = it }
+
+        fun isConnected(): Boolean = sshManager.isConnected()
+
+        /**
+         * 把日志中未完成的传输重新加入传输队列，由后台任务续传（断线重试由 WorkManager 负责）
+         */
+        fun resumeTransfers() {
+            transferQueue.rememberCredentials(host.id, password)
+            scope.launch {
+                try {
+                    val count = transferQueue.resumeInterrupted(host.id)
+                    if (count > 0) Log.d(TAG, "Requeued $count transfers for ${host.address}")
+                } catch (e: Exception) {
+                    Log.w(TAG, "Requeue transfers for ${host.address} failed: ${e.message}")
+                }
+            }
+        }
+
+        internal fun hasSftp(): Boolean = synchronized(this) { sftp != null }
+
+        internal fun closeTerminal() {
+            forwardManager.stopAll()
+            terminal?.disconnect()
+            terminal = null
+            emulator?.finish()
+            emulator = null
+        }
+
+        internal fun closeSftp() {
+            synchronized(this) {
+                sftp?.disconnect()
+                sftp = null
+            }
+        }
+
+        internal fun close() {
+            scope.cancel()
+            closeTerminal()
+            closeSftp()
+            sshManager.disconnect()
+        }
+    }
+
+    override fun onBind(intent: Intent): IBinder = binder
+
+    override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
+        if (intent?.action == ACTION_DISCONNECT_ALL) {
+            closeAll()
+            return START_NOT_STICKY
+        }
+        // startForegroundService 之后必须先 startForeground，连接在此之前已全部关闭时再停止
+        startForegroundCompat()
+        if (_connections.value.isEmpty()) {
+            ServiceCompat.stopForeground(this, ServiceCompat.STOP_FOREGROUND_REMOVE)
+            stopSelf()
+        }
+        return START_NOT_STICKY
+    }
+
+    override fun onDestroy() {
+        closeAll()
+        super.onDestroy()
+    }
+
+    /**
+     * 已持有的连接，可能已断开（由终端会话自行重连）
+     */
+    fun connection(hostId: Long): HostConnection? = _connections.value[hostId]
+
+    /**
+     * 连接主机；已有可用连接时直接返回，不重新握手
+     */
+    suspend fun connect(host: Host, password: String?): Result<HostConnection> {
+        val existing = connection(host.id)
+        if (existing != null && existing.isConnected()) return Result.success(existing)
+
+        val connection = existing ?: HostConnection(applicationContext, host)
+        return connection.sshManager.connect(host, password).map {
+            connection.password = password
+            if (existing == null) {
+                _connections.value = _connections.value + (host.id to connection)
+                Log.d(TAG, "Holding connection to ${host.address}")
+            }
+            updateForeground()
+            connection.resumeTransfers()
+            connection
+        }
+    }
+
+    /**
+     * 断开并释放主机连接
+     */
+    fun close(hostId: Long) {
+        val connection = connection(hostId) ?: return
+        _connections.value = _connections.value - hostId
+        connection.close()
+        updateForeground()
+        Log.d(TAG, "Closed connection to ${connection.host.address}")
+    }
+
+    /**
+     * 关闭主机的终端和转发，SFTP 仍在使用时保留连接
+     */
+    fun closeTerminal(hostId: Long) {
+        val connection = connection(hostId) ?: return
+        connection.closeTerminal()
+        if (!connection.hasSftp()) close(hostId)
+    }
+
+    /**
+     * 关闭主机的SFTP，终端仍在使用时保留连接
+     */
+    fun closeSftp(hostId: Long) {
+        val connection = connection(hostId) ?: return
+        connection.closeSftp()
+        if (connection.terminal == null) close(hostId)
+    }
+
+    /**
+     * 断开全部连接
+     */
+    fun closeAll() {
+        _connections.value.keys.toList().forEach { close(it) }
+    }
+
+    /**
+     * 忘记主机公钥（用户确认服务器公钥确实已更换后调用）
+     */
+    fun forgetHostKey(host: Host) {
+        SshSessionPool.getInstance(this).forgetHostKey(host)
+    }
+
+    /**
+     * 有连接时转为已启动的前台服务，解绑后仍保持运行；没有连接时停止
+     */
+    private fun updateForeground() {
+        if (_connections.value.isEmpty()) {
+            ServiceCompat.stopForeground(this, ServiceCompat.STOP_FOREGROUND_REMOVE)
+            stopSelf()
+        } else {
+            ContextCompat.startForegroundService(this, Intent(this, SshTerminalService::class.java))
+        }
+    }
+
+    /**
+     * 远程SSH会话不属于任何预定义的前台服务类型，Android 14 起按 specialUse 声明
+     */
+    private fun startForegroundCompat() {
+        val type = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+            ServiceInfo.FOREGROUND_SERVICE_TYPE_SPECIAL_USE
+        } else 0
+        ServiceCompat.startForeground(this, NOTIFICATION_ID, buildNotification(), type)
+    }
+
+    private fun buildNotification(): Notification {
+        val manager = getSystemService(NotificationManager::class.java)
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            manager.createNotificationChannel(
+                NotificationChannel(CHANNEL_ID, getString(R.string.ssh_service_channel), NotificationManager.IMPORTANCE_LOW)
+            )
+        }
+        val hosts = _connections.value.values.map { it.host }
+        val openApp = PendingIntent.getActivity(
+            this, 0, Intent(this, MainActivity::class.java), PendingIntent.FLAG_IMMUTABLE
+        )
+        val disconnectAll = PendingIntent.getService(
+            this, 0,
+            Intent(this, SshTerminalService::class.java).setAction(ACTION_DISCONNECT_ALL),
+            PendingIntent.FLAG_IMMUTABLE
+        )
+        return NotificationCompat.Builder(this, CHANNEL_ID)
+            .setSmallIcon(R.drawable.ic_lock)
+            .setContentTitle(getString(R.string.ssh_service_title, hosts.size))
+            .setContentText(hosts.joinToString { it.name })
+            .setContentIntent(openApp)
+            .addAction(0, getString(R.string.ssh_service_disconnect_all), disconnectAll)
+            .setOngoing(true)
+            .build()
+    }
+
+    /**
+     * 界面侧的服务绑定，在 onCreate 中 bind，在 onDestroy 中 unbind
+     */
+    class Client(private val context: Context) : ServiceConnection {
+
+        private var bound = false
+        private var deferred = CompletableDeferred<SshTerminalService>()
+
+        /** 已绑定的服务，未绑定时为 null */
+        var service: SshTerminalService? = null
+            private set
+
+        fun bind() {
+            if (bound) return
+            bound = context.bindService(Intent(context, SshTerminalService::class.java), this, Context.BIND_AUTO_CREATE)
+        }
+
+        fun unbind() {
+            if (!bound) return
+            context.unbindService(this)
+            bound = false
+            service = null
+            if (deferred.isCompleted) deferred = CompletableDeferred()
+        }
+
+        /**
+         * 等待绑定完成
+         */
+        suspend fun await(): SshTerminalService = service ?: deferred.await()
+
+        override fun onServiceConnected(name: ComponentName?, binder: IBinder?) {
+            val connected = (binder as LocalBinder).service
+            service = connected
+            deferred.complete(connected)
+        }
+
+        override fun onServiceDisconnected(name: ComponentName?) {
+            service = null
+            deferred = CompletableDeferred()
+        }
+    }
+
+    companion object {
+        private const val TAG = "SshTerminalService"
+        private const val CHANNEL_ID = "ssh_sessions"
+        private const val NOTIFICATION_ID = 1001
+        private const val ACTION_DISCONNECT_ALL = "com.sshfp.action.DISCONNECT_ALL"
+    }
+}
@@ -2,36 +2,120 @@ package com.sshfp.ssh
 
 import android.util.Log
 import com.jcraft.jsch.ChannelShell
+import com.sshfp.model.Host
+import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.withContext
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import java.io.ByteArrayOutputStream
+import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
 import java.nio.charset.Charset
+import java.util.concurrent.LinkedBlockingQueue
 
 /**
  * 终端会话管理器
+ *
+ * 对终端模拟器提供一对不随重连变化的输入/输出流。开启自动重连后，
+ * 链路断开时按退避间隔重建SSH会话并重新附着到服务器上的 tmux/screen 会话，
+ * 断线期间输入的按键会缓存下来，重连成功后补发。
+ * 建立通道等调用在主机的IO调度器上执行；持续阻塞读取的输出泵不占用该调度器的线程，
+ * 断开时关闭通道使其返回。
  */
 class TerminalSession(
     private val sshManager: SshManager
 ) {
-    private var shellChannel: SshManager.ShellChannel? = null
+    /**
+     * 服务器端终端复用器
+     */
+    enum class Multiplexer {
+        NONE,
+        TMUX,
+        SCREEN
+    }
+
+    /**
+     * 终端会话状态
+     */
+    enum class State {
+        DISCONNECTED,
+        CONNECTED,
+        RECONNECTING
+    }
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val writeLock = Any()
+    private val pending = ByteArrayOutputStream()
+    private val terminalInput = TerminalInputStream()
+    private val terminalOutput = object : OutputStream() {
+        override fun write(b: Int) = write(byteArrayOf(b.toByte()), 0, 1)
+        override fun write(b: ByteArray, off: Int, len: Int) = this@TerminalSession.write(b, off, len)
+    }
+
+    @Volatile
+    private var shellChannel: ChannelShell? = null
+    private var channelOutput: OutputStream? = null
+    private var pumpJob: Job? = null
+    @Volatile
     private var isConnected = false
+    @Volatile
+    private var closed = false
+
+    private var host: Host? = null
+    private var password: String? = null
+    private var autoReconnect = false
+    private var columns = DEFAULT_COLUMNS
+    private var rows = DEFAULT_ROWS
+
+    @Volatile
+    var multiplexer: Multiplexer = Multiplexer.NONE
+
+    /** 复用器会话名，会直接拼进输入远程shell的命令，只允许字母、数字和 _ . - */
+    var multiplexerSessionName: String = DEFAULT_SESSION_NAME
+        set(value) {
+            require(SESSION_NAME_PATTERN.matches(value)) { "Invalid multiplexer session name: $value" }
+            field = value
+        }
+
+    private val _state = MutableStateFlow(State.DISCONNECTED)
+
+    /**
+     * 会话状态
+     */
+    val state: StateFlow<State> = _state.asStateFlow()
+
+    /**
+     * 开启自动重连
+     */
+    fun enableAutoReconnect(host: Host, password: String?) {
+        this.host = host
+        this.password = password
+        autoReconnect = true
+        if (multiplexerSessionName == DEFAULT_SESSION_NAME) {
+            multiplexerSessionName = "sshfp-${host.id}"
+        }
+    }
 
     /**
      * 连接终端
      */
-    suspend fun connect(): Result<Unit> = withContext(Dispatchers.IO) {
+    suspend fun connect(): Result<Unit> = sshManager.io("terminal connect") {
         try {
-            disconnect()
+            closeChannel()
+            closed = false
 
-            val result = sshManager.openShell()
-            if (result.isFailure) {
-                return@withContext Result.failure(result.exceptionOrNull() ?: Exception("Failed to open shell"))
+            if (!attach()) {
+                return@io Result.failure(Exception("Failed to open shell"))
             }
 
-            shellChannel = result.getOrNull()
-            isConnected = true
-
             Log.d(TAG, "Terminal connected")
             Result.success(Unit)
         } catch (e: Exception) {
@@ -40,36 +124,169 @@ class TerminalSession(
         }
     }
 
+    /**
+     * 打开shell通道，附着复用器会话并开始转发输出
+     */
+    private suspend fun attach(): Boolean = sshManager.io("terminal attach") {
+        val channel = sshManager.openShellDirect() ?: return@io false
+        channel.setPtySize(columns, rows, 0, 0)
+        val input = channel.inputStream
+        val output = channel.outputStream
+
+        reattachCommand()?.let { command ->
+            output.write(command.toByteArray())
+            output.flush()
+        }
+
+        synchronized(writeLock) {
+            shellChannel = channel
+            channelOutput = output
+            isConnected = true
+            // 补发断线期间的按键
+            if (pending.size() > 0) {
+                output.write(pending.toByteArray())
+                output.flush()
+                pending.reset()
+            }
+        }
+        _state.value = State.CONNECTED
+        startPump(channel, input)
+        true
+    }
+
+    private fun reattachCommand(): String? {
+        val name = multiplexerSessionName
+        return when (multiplexer) {
+            Multiplexer.NONE -> null
+            Multiplexer.TMUX -> "tmux new-session -A -s $name\r"
+            Multiplexer.SCREEN -> "screen -D -RR $name\r"
+        }
+    }
+
+    /**
+     * 把通道输出搬运到终端输入流，通道结束后判断是否需要重连
+     */
+    private fun startPump(channel: ChannelShell, input: InputStream) {
+        pumpJob = scope.launch {
+            val buffer = ByteArray(BUFFER_SIZE)
+            var firstByte = true
+            try {
+                while (isActive) {
+                    val count = input.read(buffer)
+                    if (count < 0) break
+                    if (count > 0) {
+                        if (firstByte) {
+                            firstByte = false
+                            sshManager.markFirstByte(channel)
+                        }
+                        terminalInput.offer(buffer.copyOf(count))
+                    }
+                }
+            } catch (e: IOException) {
+                Log.w(TAG, "Terminal read failed: ${e.message}")
+            }
+            onChannelClosed(channel)
+        }
+    }
+
+    private suspend fun onChannelClosed(channel: ChannelShell) {
+        synchronized(writeLock) {
+            if (shellChannel !== channel) return
+            isConnected = false
+            shellChannel = null
+            channelOutput = null
+        }
+        val sessionAlive = sshManager.isConnected()
+        // 会话仍在而通道退出，说明是用户主动 exit，不重连
+        if (closed || !autoReconnect || (sessionAlive && channel.exitStatus >= 0)) {
+            finish()
+            return
+        }
+        reconnect()
+    }
+
+    /**
+     * 指数退避重连，直到成功或被 disconnect
+     */
+    private suspend fun reconnect() {
+        _state.value = State.RECONNECTING
+        var backoff = INITIAL_BACKOFF_MS
+        var attempt = 0
+        while (!closed && attempt < MAX_RECONNECT_ATTEMPTS) {
+            attempt++
+            delay(backoff)
+            val target = host ?: break
+            Log.d(TAG, "Reconnecting, attempt $attempt")
+            val reconnected = try {
+                sshManager.connect(target, password).isSuccess && attach()
+            } catch (e: Exception) {
+                Log.w(TAG, "Reconnect attempt failed: ${e.message}")
+                false
+            }
+            if (reconnected) {
+                Log.d(TAG, "Terminal reconnected")
+                return
+            }
+            backoff = (backoff * 2).coerceAtMost(MAX_BACKOFF_MS)
+        }
+        finish()
+    }
+
+    private fun finish() {
+        closed = true
+        _state.value = State.DISCONNECTED
+        terminalInput.finish()
+    }
+
     /**
      * 断开连接
      */
     fun disconnect() {
         try {
-            shellChannel?.disconnect()
-            shellChannel = null
-            isConnected = false
+            closed = true
+            closeChannel()
+            _state.value = State.DISCONNECTED
+            terminalInput.finish()
+            scope.cancel()
             Log.d(TAG, "Terminal disconnected")
         } catch (e: Exception) {
             Log.e(TAG, "Terminal disconnect error", e)
         }
     }
 
+    private fun closeChannel() {
+        val channel = synchronized(writeLock) {
+            isConnected = false
+            channelOutput = null
+            shellChannel.also { shellChannel = null }
+        }
+        pumpJob?.cancel()
+        channel?.disconnect()
+    }
+
     /**
      * 检查是否已连接
      */
-    fun isSessionConnected(): Boolean = isConnected && shellChannel?.isConnected() == true
+    fun isSessionConnected(): Boolean = isConnected && shellChannel?.isConnected == true
 
     /**
-     * 写入数据到终端
+     * 写入数据到终端，断线重连期间缓存起来
      */
-    fun write(data: ByteArray) {
-        if (!isConnected) return
-        try {
-            val output = shellChannel?.outputStream ?: return
-            output.write(data)
-            output.flush()
-        } catch (e: Exception) {
-            Log.e(TAG, "Failed to write to terminal", e)
+    fun write(data: ByteArray, offset: Int = 0, length: Int = data.size) {
+        synchronized(writeLock) {
+            val output = channelOutput
+            if (isConnected && output != null) {
+                try {
+                    output.write(data, offset, length)
+                    output.flush()
+                    return
+                } catch (e: Exception) {
+                    Log.e(TAG, "Failed to write to terminal", e)
+                }
+            }
+            if (autoReconnect && !closed && pending.size() + length <= MAX_PENDING_BYTES) {
+                pending.write(data, offset, length)
+            }
         }
     }
 
@@ -81,20 +298,85 @@ class TerminalSession(
     }
 
     /**
-     * 获取输出流
+     * 调整PTY大小，重连后自动沿用
      */
-    fun getOutputStream(): OutputStream? {
-        return shellChannel?.outputStream
+    fun resize(columns: Int, rows: Int) {
+        this.columns = columns
+        this.rows = rows
+        try {
+            shellChannel?.setPtySize(columns, rows, 0, 0)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to resize pty", e)
+        }
     }
 
+    /**
+     * 获取输出流
+     */
+    fun getOutputStream(): OutputStream = terminalOutput
+
     /**
      * 获取输入流
      */
-    fun getInputStream(): InputStream? {
-        return shellChannel?.inputStream
+    fun getInputStream(): InputStream = terminalInput
+
+    /**
+     * 重连期间保持打开的终端输入流
+     */
+    private class TerminalInputStream : InputStream() {
+        private val queue = LinkedBlockingQueue<ByteArray>()
+        private var current: ByteArray? = null
+        private var position = 0
+
+        fun offer(bytes: ByteArray) {
+            queue.put(bytes)
+        }
+
+        fun finish() {
+            queue.put(EOF)
+        }
+
+        override fun read(): Int {
+            val single = ByteArray(1)
+            return if (read(single, 0, 1) < 0) -1 else single[0].toInt() and 0xff
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0) return 0
+            var chunk = current
+            if (chunk == null || position >= chunk.size) {
+                chunk = queue.take()
+                if (chunk === EOF) {
+                    // 保留结束标记，后续读取同样返回-1
+                    queue.put(EOF)
+                    return -1
+                }
+                current = chunk
+                position = 0
+            }
+            val count = minOf(len, chunk.size - position)
+            System.arraycopy(chunk, position, b, off, count)
+            position += count
+            return count
+        }
+
+        override fun available(): Int = current?.let { it.size - position } ?: 0
+
+        companion object {
+            private val EOF = ByteArray(0)
+        }
     }
 
     companion object {
         private const val TAG = "TerminalSession"
+        private const val BUFFER_SIZE = 8192
+        private const val DEFAULT_COLUMNS = 80
+        private const val DEFAULT_ROWS = 24
+        private const val DEFAULT_SESSION_NAME = "sshfp"
+        private val SESSION_NAME_PATTERN = Regex("[A-Za-z0-9_.-]+")
+        private const val INITIAL_BACKOFF_MS = 1000L
+        private const val MAX_BACKOFF_MS = 30 * 1000L
+        private const val MAX_RECONNECT_ATTEMPTS = 20
+        private const val MAX_PENDING_BYTES = 64 * 1024
     }
 }
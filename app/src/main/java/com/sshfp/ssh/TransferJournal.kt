@@ -0,0 +1,277 @@
+package com.sshfp.ssh
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.Log
+import com.jcraft.jsch.ChannelSftp
+import com.jcraft.jsch.SftpException
+import com.sshfp.model.TransferRecord
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.File
+
+/**
+ * 传输日志 - 把传输记录到 transfer_journal 表，中断后从已确认的位置续传
+ *
+ * 单流传输用 [ChannelSftp.RESUME] 从目标文件已有长度处继续；分段传输按各段进度继续
+ * （上传以远程分片的实际长度为准）。续传前比较源文件的大小和修改时间，有变化则从头开始。
+ * 完成的记录直接删除，表中只留下未完成的传输。记录由 [TransferQueue] 调度执行。
+ */
+class TransferJournal private constructor(context: Context) {
+
+    private val dao = HostDatabase.getInstance(context).transferJournalDao()
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val running = HashSet<Long>()
+
+    /**
+     * 主机的未完成传输
+     */
+    fun observe(hostId: Long): Flow<List<TransferRecord>> = dao.observe(hostId)
+
+    /**
+     * 未完成且可自动续传（排队中、进行中或中断）的记录
+     */
+    suspend fun resumable(hostId: Long): List<TransferRecord> = dao.getResumable(hostId)
+
+    suspend fun get(id: Long): TransferRecord? = dao.get(id)
+
+    /**
+     * 登记一次传输；同一源和目标已有未完成记录时沿用它，执行时从断点续传。
+     * 源文件的大小和修改时间在执行时读取
+     *
+     * @param recursive 源是目录，递归传输其内容
+     * @param options 队列选项，随记录保存；沿用已有记录时以本次为准
+     */
+    suspend fun create(
+        hostId: Long,
+        direction: TransferRecord.Direction,
+        source: String,
+        destination: String,
+        recursive: Boolean = false,
+        options: TransferQueue.Options = TransferQueue.Options()
+    ): TransferRecord {
+        val existing = dao.find(hostId, direction, source, destination)
+        if (existing != null) {
+            if (existing.state == TransferRecord.State.FAILED) {
+                existing.state = TransferRecord.State.QUEUED
+                existing.error = null
+            }
+            existing.priority = options.priority.name
+            existing.unmeteredOnly = options.unmeteredOnly
+            existing.requiresCharging = options.requiresCharging
+            dao.update(existing)
+            return existing
+        }
+        val record = TransferRecord(
+            hostId = hostId,
+            direction = direction,
+            source = source,
+            destination = destination,
+            size = UNKNOWN,
+            mtime = UNKNOWN,
+            recursive = recursive,
+            priority = options.priority.name,
+            unmeteredOnly = options.unmeteredOnly,
+            requiresCharging = options.requiresCharging,
+            state = TransferRecord.State.QUEUED
+        )
+        return record.copy(id = dao.insert(record))
+    }
+
+    /**
+     * 执行一条记录；源文件未变时从已确认的位置续传，成功后删除记录
+     *
+     * @param progress 已传输的字节数（含续传前已有部分）和总字节数
+     */
+    suspend fun run(
+        id: Long,
+        sftp: SftpManager,
+        progress: ((Long, Long) -> Unit)? = null
+    ): Result<SftpManager.TransferResult> = withContext(Dispatchers.IO) {
+        val record = dao.get(id) ?: return@withContext Result.failure(Exception("Transfer $id not found"))
+        if (record.recursive) return@withContext executeTree(record, sftp, progress)
+        try {
+            val current = when (record.direction) {
+                TransferRecord.Direction.DOWNLOAD -> sourceInfo(sftp, record.source)
+                TransferRecord.Direction.UPLOAD -> File(record.source).let { it.length() to it.lastModified() }
+            }
+            val refreshed = refresh(record, current)
+            execute(refreshed, sftp, progress?.let { { bytes: Long -> it(bytes, refreshed.size) } })
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to start transfer of ${record.source}", e)
+            withContext(NonCancellable) { fail(record, e) }
+            Result.failure(e)
+        }
+    }
+
+    /**
+     * 放弃一条记录（不删除已传输的部分）
+     */
+    suspend fun discard(id: Long) = dao.delete(id)
+
+    private suspend fun sourceInfo(sftp: SftpManager, remotePath: String): Pair<Long, Long> {
+        val attrs = sftp.stat(remotePath).getOrThrow()
+        return attrs.size to attrs.mTime * 1000L
+    }
+
+    /**
+     * 源文件大小或修改时间变了（或是新登记的记录），已传输的部分作废
+     */
+    private suspend fun refresh(record: TransferRecord, current: Pair<Long, Long>): TransferRecord {
+        if (record.size == current.first && record.mtime == current.second) return record
+        Log.d(TAG, "Source ${record.source} changed, restarting transfer")
+        val restarted = record.copy(size = current.first, mtime = current.second, verifiedOffset = 0, ranges = "")
+        dao.update(restarted)
+        return restarted
+    }
+
+    private suspend fun execute(
+        record: TransferRecord,
+        sftp: SftpManager,
+        progress: ((Long) -> Unit)?
+    ): Result<SftpManager.TransferResult> {
+        if (!markRunning(record.id)) return Result.failure(Exception("Transfer already running"))
+        try {
+            val resumed = record.verifiedOffset > 0 || record.ranges.isNotEmpty()
+            // 分段数随记录保存，续传时保持同样的切分
+            val ranges = if (record.ranges.isNotEmpty()) {
+                SftpManager.RangeProgress.decode(record.ranges)
+            } else {
+                SftpManager.parallelRanges(record.size).takeIf { it >= 2 }?.let { SftpManager.RangeProgress(it) }
+            }
+            record.state = TransferRecord.State.RUNNING
+            record.error = null
+            record.ranges = ranges?.encode() ?: ""
+            dao.update(record)
+
+            var savedAt = 0L
+            val onProgress: (Long) -> Unit = { bytes ->
+                progress?.invoke(bytes)
+                val now = SystemClock.elapsedRealtime()
+                if (now - savedAt >= SAVE_INTERVAL_MS) {
+                    savedAt = now
+                    saveProgress(record, bytes, ranges)
+                }
+            }
+            val result = when (record.direction) {
+                TransferRecord.Direction.DOWNLOAD -> if (ranges != null) {
+                    sftp.downloadFileParallel(record.source, record.destination, progress = onProgress, ranges = ranges)
+                } else {
+                    sftp.downloadFile(record.source, record.destination, onProgress, resume = resumed)
+                }
+                TransferRecord.Direction.UPLOAD -> if (ranges != null) {
+                    sftp.uploadFileParallel(record.source, record.destination, progress = onProgress, ranges = ranges)
+                } else {
+                    sftp.uploadFile(record.source, record.destination, onProgress, resume = resumed)
+                }
+            }
+            withContext(NonCancellable) {
+                val error = result.exceptionOrNull()
+                if (error == null) {
+                    dao.delete(record.id)
+                } else {
+                    record.ranges = ranges?.encode() ?: ""
+                    ranges?.let { record.verifiedOffset = it.total() }
+                    fail(record, error)
+                }
+            }
+            return result
+        } finally {
+            synchronized(running) { running.remove(record.id) }
+        }
+    }
+
+    /**
+     * 目录传输：已传完的文件由 [TreeTransfer] 按目标端的大小和修改时间跳过，记录只保存已传输的字节数。
+     * 部分文件失败时记为中断，重试时只传未完成的文件
+     */
+    private suspend fun executeTree(
+        record: TransferRecord,
+        sftp: SftpManager,
+        progress: ((Long, Long) -> Unit)?
+    ): Result<SftpManager.TransferResult> {
+        if (!markRunning(record.id)) return Result.failure(Exception("Transfer already running"))
+        try {
+            record.state = TransferRecord.State.RUNNING
+            record.error = null
+            dao.update(record)
+
+            var savedAt = 0L
+            val onProgress: (TreeTransfer.Progress) -> Unit = { snapshot ->
+                val done = snapshot.bytes + snapshot.skippedBytes
+                progress?.invoke(done, snapshot.discoveredBytes)
+                val now = SystemClock.elapsedRealtime()
+                if (now - savedAt >= SAVE_INTERVAL_MS) {
+                    savedAt = now
+                    saveProgress(record, done, null)
+                }
+            }
+            val tree = when (record.direction) {
+                TransferRecord.Direction.DOWNLOAD -> sftp.downloadDirectory(record.source, record.destination, progress = onProgress)
+                TransferRecord.Direction.UPLOAD -> sftp.uploadDirectory(record.source, record.destination, progress = onProgress)
+            }
+            val result = tree.mapCatching { summary ->
+                if (summary.failed > 0) throw Exception("${summary.failed} 个文件传输失败: ${summary.firstError}")
+                SftpManager.TransferResult(summary.bytes, summary.elapsedMs, 0, 0, summary.files)
+            }
+            withContext(NonCancellable) {
+                val error = result.exceptionOrNull()
+                if (error == null) dao.delete(record.id) else fail(record, error)
+            }
+            return result
+        } finally {
+            synchronized(running) { running.remove(record.id) }
+        }
+    }
+
+    private fun saveProgress(record: TransferRecord, bytes: Long, ranges: SftpManager.RangeProgress?) {
+        record.verifiedOffset = ranges?.total() ?: bytes
+        val encoded = ranges?.encode() ?: ""
+        val offset = record.verifiedOffset
+        scope.launch {
+            try {
+                dao.updateProgress(record.id, offset, encoded, System.currentTimeMillis())
+            } catch (e: Exception) {
+                Log.w(TAG, "Failed to save transfer progress: ${e.message}")
+            }
+        }
+    }
+
+    private suspend fun fail(record: TransferRecord, e: Throwable) {
+        record.state = if (isPermanent(e)) TransferRecord.State.FAILED else TransferRecord.State.INTERRUPTED
+        record.error = e.message
+        record.updatedAt = System.currentTimeMillis()
+        dao.update(record)
+        Log.d(TAG, "Transfer ${record.id} ${record.state} at ${record.verifiedOffset}: ${e.message}")
+    }
+
+    /**
+     * 文件不存在、权限不足、校验不一致等重试也不会成功；JSch 把连接类错误都包装成 SSH_FX_FAILURE
+     */
+    fun isPermanent(e: Throwable): Boolean = when (e) {
+        is SftpException -> e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE || e.id == ChannelSftp.SSH_FX_PERMISSION_DENIED
+        else -> e.message?.contains("mismatch") == true
+    }
+
+    private fun markRunning(id: Long): Boolean = synchronized(running) { running.add(id) }
+
+    companion object {
+        private const val TAG = "TransferJournal"
+        private const val SAVE_INTERVAL_MS = 1000L
+        private const val UNKNOWN = -1L
+
+        @Volatile
+        private var INSTANCE: TransferJournal? = null
+
+        fun getInstance(context: Context): TransferJournal {
+            return INSTANCE ?: synchronized(this) {
+                INSTANCE ?: TransferJournal(context.applicationContext).also { INSTANCE = it }
+            }
+        }
+    }
+}
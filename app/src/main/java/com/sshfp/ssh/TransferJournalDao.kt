@@ -0,0 +1,42 @@
+package com.sshfp.ssh
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.Query
+import androidx.room.Update
+import com.sshfp.model.TransferRecord
+import kotlinx.coroutines.flow.Flow
+
+/**
+ * 传输日志数据访问对象
+ */
+@Dao
+interface TransferJournalDao {
+
+    @Insert
+    suspend fun insert(record: TransferRecord): Long
+
+    @Update
+    suspend fun update(record: TransferRecord)
+
+    @Query("UPDATE transfer_journal SET verifiedOffset = :offset, ranges = :ranges, updatedAt = :updatedAt WHERE id = :id")
+    suspend fun updateProgress(id: Long, offset: Long, ranges: String, updatedAt: Long)
+
+    @Query("SELECT * FROM transfer_journal WHERE id = :id")
+    suspend fun get(id: Long): TransferRecord?
+
+    @Query("SELECT * FROM transfer_journal WHERE hostId = :hostId ORDER BY id")
+    fun observe(hostId: Long): Flow<List<TransferRecord>>
+
+    @Query("SELECT * FROM transfer_journal WHERE hostId = :hostId AND state != 'FAILED' ORDER BY id")
+    suspend fun getResumable(hostId: Long): List<TransferRecord>
+
+    @Query(
+        "SELECT * FROM transfer_journal WHERE hostId = :hostId AND direction = :direction " +
+            "AND source = :source AND destination = :destination LIMIT 1"
+    )
+    suspend fun find(hostId: Long, direction: TransferRecord.Direction, source: String, destination: String): TransferRecord?
+
+    @Query("DELETE FROM transfer_journal WHERE id = :id")
+    suspend fun delete(id: Long)
+}
@@ -0,0 +1,227 @@
+package com.sshfp.ssh
+
+import android.content.Context
+import android.util.Log
+import androidx.work.BackoffPolicy
+import androidx.work.Constraints
+import androidx.work.ExistingWorkPolicy
+import androidx.work.NetworkType
+import androidx.work.OneTimeWorkRequestBuilder
+import androidx.work.OutOfQuotaPolicy
+import androidx.work.WorkManager
+import androidx.work.workDataOf
+import com.sshfp.model.TransferRecord
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import java.util.PriorityQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 传输队列 - 把传输日志中的记录交给 WorkManager 执行，进程被杀或重启后继续
+ *
+ * 每条记录一个唯一任务（[workName]），重复加入不会重复执行。约束（网络、充电）和失败重试的指数退避
+ * 由 WorkManager 处理；WorkManager 不保证执行顺序，所以优先级和每台主机的并发数由进程内的
+ * [PriorityGate] 控制：同一主机最多 [HOST_CONCURRENCY] 个传输同时进行，其余按优先级、再按加入顺序等待。
+ * 高优先级的任务以加急方式提交，配额用完时退化为普通任务。
+ */
+class TransferQueue private constructor(context: Context) {
+
+    private val workManager = WorkManager.getInstance(context)
+    private val journal = TransferJournal.getInstance(context)
+    private val gates = HashMap<Long, PriorityGate>()
+    private val credentials = HashMap<Long, String>()
+
+    enum class Priority {
+        LOW,
+        NORMAL,
+        HIGH
+    }
+
+    /**
+     * 执行条件
+     *
+     * @param unmeteredOnly 只在不计流量的网络（如WLAN）上传输
+     * @param requiresCharging 只在充电时传输
+     */
+    data class Options(
+        val priority: Priority = Priority.NORMAL,
+        val unmeteredOnly: Boolean = false,
+        val requiresCharging: Boolean = false
+    )
+
+    /**
+     * 加入下载，返回传输记录id
+     *
+     * @param recursive 远程路径是目录，递归下载
+     */
+    suspend fun enqueueDownload(
+        hostId: Long,
+        remotePath: String,
+        localPath: String,
+        options: Options = Options(),
+        recursive: Boolean = false
+    ): Long {
+        val record = journal.create(hostId, TransferRecord.Direction.DOWNLOAD, remotePath, localPath, recursive, options)
+        enqueue(record, options)
+        return record.id
+    }
+
+    /**
+     * 加入上传，返回传输记录id
+     *
+     * @param recursive 本地路径是目录，递归上传
+     */
+    suspend fun enqueueUpload(
+        hostId: Long,
+        localPath: String,
+        remotePath: String,
+        options: Options = Options(),
+        recursive: Boolean = false
+    ): Long {
+        val record = journal.create(hostId, TransferRecord.Direction.UPLOAD, localPath, remotePath, recursive, options)
+        enqueue(record, options)
+        return record.id
+    }
+
+    /**
+     * 按记录中保存的选项重新加入主机所有未完成的传输（已在队列中的不受影响），返回加入的数量
+     */
+    suspend fun resumeInterrupted(hostId: Long): Int {
+        val records = journal.resumable(hostId)
+        records.forEach { enqueue(it, optionsOf(it)) }
+        return records.size
+    }
+
+    /**
+     * 取消传输并删除记录（已传输的部分保留）
+     */
+    suspend fun cancel(recordId: Long) {
+        workManager.cancelUniqueWork(workName(recordId))
+        journal.discard(recordId)
+    }
+
+    /**
+     * 记住交互输入的密码供后台任务使用，只保存在内存中；进程重启后只能使用主机保存的凭据
+     */
+    fun rememberCredentials(hostId: Long, password: String?) {
+        synchronized(credentials) {
+            if (password == null) credentials.remove(hostId) else credentials[hostId] = password
+        }
+    }
+
+    internal fun credentials(hostId: Long): String? = synchronized(credentials) { credentials[hostId] }
+
+    /**
+     * 主机的传输并发控制
+     */
+    internal fun gate(hostId: Long): PriorityGate = synchronized(gates) {
+        gates.getOrPut(hostId) { PriorityGate(HOST_CONCURRENCY) }
+    }
+
+    private fun optionsOf(record: TransferRecord) = Options(
+        Priority.values().firstOrNull { it.name == record.priority } ?: Priority.NORMAL,
+        record.unmeteredOnly,
+        record.requiresCharging
+    )
+
+    private fun enqueue(record: TransferRecord, options: Options) {
+        val constraints = Constraints.Builder()
+            .setRequiredNetworkType(if (options.unmeteredOnly) NetworkType.UNMETERED else NetworkType.CONNECTED)
+            .setRequiresCharging(options.requiresCharging)
+            .build()
+        val request = OneTimeWorkRequestBuilder<TransferWorker>()
+            .setInputData(
+                workDataOf(
+                    TransferWorker.KEY_RECORD_ID to record.id,
+                    TransferWorker.KEY_HOST_ID to record.hostId,
+                    TransferWorker.KEY_PRIORITY to options.priority.name
+                )
+            )
+            .setConstraints(constraints)
+            .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, RETRY_BACKOFF_SECONDS, TimeUnit.SECONDS)
+            .addTag(TAG_TRANSFER)
+            .addTag(hostTag(record.hostId))
+            .apply {
+                if (options.priority == Priority.HIGH) setExpedited(OutOfQuotaPolicy.RUN_AS_NON_EXPEDITED_WORK_REQUEST)
+            }
+            .build()
+        workManager.enqueueUniqueWork(workName(record.id), ExistingWorkPolicy.KEEP, request)
+        Log.d(TAG, "Queued ${record.direction} ${record.source} (${options.priority})")
+    }
+
+    /**
+     * 带优先级的计数信号量：许可释放时交给优先级最高（同级时最早）的等待者
+     */
+    internal class PriorityGate(private val permits: Int) {
+
+        private class Waiter(val priority: Priority, val sequence: Long) {
+            val granted = CompletableDeferred<Unit>()
+        }
+
+        private val sequence = AtomicLong()
+        private var available = permits
+        private val waiters = PriorityQueue<Waiter>(
+            compareByDescending<Waiter> { it.priority }.thenBy { it.sequence }
+        )
+
+        suspend fun <T> withPermit(priority: Priority, block: suspend () -> T): T {
+            acquire(priority)
+            try {
+                return block()
+            } finally {
+                release()
+            }
+        }
+
+        private suspend fun acquire(priority: Priority) {
+            val waiter = synchronized(this) {
+                if (available > 0) {
+                    available--
+                    return
+                }
+                Waiter(priority, sequence.incrementAndGet()).also { waiters.add(it) }
+            }
+            try {
+                waiter.granted.await()
+            } catch (e: CancellationException) {
+                // 取消与交付许可同时发生时，已交付的许可要转给下一个等待者
+                val granted = synchronized(this) { !waiters.remove(waiter) }
+                if (granted) release()
+                throw e
+            }
+        }
+
+        private fun release() {
+            val next = synchronized(this) {
+                waiters.poll() ?: run {
+                    available = (available + 1).coerceAtMost(permits)
+                    null
+                }
+            }
+            next?.granted?.complete(Unit)
+        }
+    }
+
+    companion object {
+        private const val TAG = "TransferQueue"
+        private const val TAG_TRANSFER = "transfer"
+        private const val RETRY_BACKOFF_SECONDS = 30L
+
+        /** 同一主机同时进行的传输数，每个传输自身还会分段并行 */
+        const val HOST_CONCURRENCY = 2
+
+        fun workName(recordId: Long): String = "transfer-$recordId"
+
+        fun hostTag(hostId: Long): String = "transfer-host-$hostId"
+
+        @Volatile
+        private var INSTANCE: TransferQueue? = null
+
+        fun getInstance(context: Context): TransferQueue {
+            return INSTANCE ?: synchronized(this) {
+                INSTANCE ?: TransferQueue(context.applicationContext).also { INSTANCE = it }
+            }
+        }
+    }
+}
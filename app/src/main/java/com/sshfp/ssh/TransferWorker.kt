@@ -0,0 +1,208 @@
+package com.sshfp.ssh
+
+import android.app.Notification
+import android.app.NotificationChannel
+import android.app.NotificationManager
+import android.content.Context
+import android.content.pm.ServiceInfo
+import android.os.Build
+import android.os.SystemClock
+import android.text.format.Formatter
+import android.util.Log
+import androidx.core.app.NotificationCompat
+import androidx.work.CoroutineWorker
+import androidx.work.ForegroundInfo
+import androidx.work.WorkInfo
+import androidx.work.WorkManager
+import androidx.work.WorkerParameters
+import androidx.work.workDataOf
+import com.sshfp.R
+import com.sshfp.model.Host
+import com.sshfp.model.TransferRecord
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.withContext
+
+/**
+ * 传输任务 - 执行 [TransferQueue] 中的一条传输记录
+ *
+ * 尽量以前台任务运行（dataSync），切到其他应用或锁屏后继续，通知中显示进度并可取消。
+ * Android 12 起应用在后台时非加急任务不能转为前台（退避重试、进程重启后恢复、约束满足时启动都属于这种情况），
+ * 此时不显示通知，作为普通后台任务继续执行，受系统对后台任务的时长限制，超时被停止后按中断重试续传。
+ * 使用独立的 [SshManager] 和 SFTP 通道，会话经 [SshSessionPool] 与界面共享。
+ * 连接失败或传输中断时交给 WorkManager 按退避重试，下次从传输日志记录的位置续传；
+ * 被用户取消时删除记录，因约束不满足被停止时保留记录等待重新调度。
+ */
+class TransferWorker(
+    context: Context,
+    params: WorkerParameters
+) : CoroutineWorker(context, params) {
+
+    private val journal = TransferJournal.getInstance(context)
+    private val queue = TransferQueue.getInstance(context)
+    private val pool = SshSessionPool.getInstance(context)
+
+    @Volatile
+    private var foreground = false
+
+    override suspend fun doWork(): Result {
+        val recordId = inputData.getLong(KEY_RECORD_ID, -1)
+        val hostId = inputData.getLong(KEY_HOST_ID, -1)
+        val priority = inputData.getString(KEY_PRIORITY)
+            ?.let { name -> TransferQueue.Priority.values().firstOrNull { it.name == name } }
+            ?: TransferQueue.Priority.NORMAL
+
+        // 记录已被删除说明已完成或已放弃
+        val record = journal.get(recordId) ?: return Result.success()
+        if (record.state == TransferRecord.State.FAILED) return Result.failure(errorData(record.error))
+        val host = HostDatabase.getInstance(applicationContext).hostDao().getHostById(hostId)
+            ?: return Result.failure(errorData("主机不存在"))
+        // 没有可用凭据时不重试，用户连接主机后会重新加入
+        val password = queue.credentials(hostId) ?: pool.savedCredentials(host)
+            ?: return Result.failure(errorData("需要保存密码"))
+
+        foreground = try {
+            setForeground(foregroundInfo(record, 0, record.size))
+            true
+        } catch (e: IllegalStateException) {
+            // ForegroundServiceStartNotAllowedException 是 IllegalStateException 的子类
+            Log.w(TAG, "Running transfer ${record.id} without foreground: ${e.message}")
+            false
+        }
+        return queue.gate(hostId).withPermit(priority) {
+            transfer(record, host, password)
+        }
+    }
+
+    override suspend fun getForegroundInfo(): ForegroundInfo {
+        val record = journal.get(inputData.getLong(KEY_RECORD_ID, -1))
+        return foregroundInfo(record, 0, record?.size ?: 0)
+    }
+
+    private suspend fun transfer(record: TransferRecord, host: Host, password: String): Result {
+        val sshManager = SshManager(applicationContext)
+        val sftpManager = SftpManager(sshManager)
+        try {
+            sshManager.connect(host, password.ifEmpty { null }).getOrThrow()
+            sftpManager.connect().getOrThrow()
+
+            var reportedAt = 0L
+            val result = journal.run(record.id, sftpManager) { bytes, total ->
+                val now = SystemClock.elapsedRealtime()
+                if (now - reportedAt >= PROGRESS_INTERVAL_MS) {
+                    reportedAt = now
+                    setProgressAsync(workDataOf(KEY_BYTES to bytes, KEY_TOTAL to total))
+                    if (foreground) setForegroundAsync(foregroundInfo(record, bytes, total))
+                }
+            }
+            val error = result.exceptionOrNull()
+            return when {
+                error == null -> {
+                    val transferred = result.getOrThrow()
+                    Result.success(
+                        workDataOf(
+                            KEY_BYTES to transferred.bytes,
+                            KEY_RATE to transferred.bytesPerSecond,
+                            KEY_FILES to transferred.files,
+                            KEY_FILE_RATE to transferred.filesPerSecond
+                        )
+                    )
+                }
+                journal.get(record.id)?.state == TransferRecord.State.FAILED -> Result.failure(errorData(error.message))
+                else -> retryOrFail(error)
+            }
+        } catch (e: Exception) {
+            if (isStopped) throw e
+            return retryOrFail(e)
+        } finally {
+            withContext(NonCancellable) {
+                if (isStopped && cancelledByUser()) {
+                    Log.d(TAG, "Transfer ${record.id} cancelled")
+                    journal.discard(record.id)
+                }
+                sftpManager.disconnect()
+                sshManager.disconnect(closeIfIdle = true)
+            }
+        }
+    }
+
+    private fun retryOrFail(error: Throwable): Result {
+        Log.w(TAG, "Transfer attempt $runAttemptCount failed: ${error.message}")
+        return if (runAttemptCount + 1 < MAX_ATTEMPTS) Result.retry() else Result.failure(errorData(error.message))
+    }
+
+    /**
+     * 被停止的原因也可能是约束不再满足，只有任务状态为已取消时才是用户取消
+     */
+    private suspend fun cancelledByUser(): Boolean = withContext(Dispatchers.IO) {
+        try {
+            WorkManager.getInstance(applicationContext).getWorkInfoById(id).get()?.state == WorkInfo.State.CANCELLED
+        } catch (e: Exception) {
+            false
+        }
+    }
+
+    private fun errorData(message: String?) = workDataOf(KEY_ERROR to (message ?: "传输失败"))
+
+    private fun foregroundInfo(record: TransferRecord?, bytes: Long, total: Long): ForegroundInfo {
+        val notificationId = NOTIFICATION_BASE_ID + ((record?.id ?: 0) % NOTIFICATION_ID_RANGE).toInt()
+        val notification = buildNotification(record, bytes, total)
+        return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            ForegroundInfo(notificationId, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC)
+        } else {
+            ForegroundInfo(notificationId, notification)
+        }
+    }
+
+    private fun buildNotification(record: TransferRecord?, bytes: Long, total: Long): Notification {
+        val context = applicationContext
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.getSystemService(NotificationManager::class.java).createNotificationChannel(
+                NotificationChannel(CHANNEL_ID, context.getString(R.string.transfer_channel), NotificationManager.IMPORTANCE_LOW)
+            )
+        }
+        val name = record?.fileName() ?: ""
+        val title = if (record?.direction == TransferRecord.Direction.UPLOAD) {
+            context.getString(R.string.transfer_upload, name)
+        } else {
+            context.getString(R.string.transfer_download, name)
+        }
+        val cancel = WorkManager.getInstance(context).createCancelPendingIntent(id)
+        val builder = NotificationCompat.Builder(context, CHANNEL_ID)
+            .setSmallIcon(R.drawable.ic_lock)
+            .setContentTitle(title)
+            .setOnlyAlertOnce(true)
+            .setOngoing(true)
+            .addAction(0, context.getString(R.string.cancel), cancel)
+        if (total > 0 && bytes > 0) {
+            val percent = (bytes * 100 / total).toInt().coerceIn(0, 100)
+            builder.setProgress(100, percent, false)
+                .setContentText("${Formatter.formatFileSize(context, bytes)} / ${Formatter.formatFileSize(context, total)}")
+        } else {
+            builder.setProgress(0, 0, true)
+                .setContentText(context.getString(R.string.transfer_waiting))
+        }
+        return builder.build()
+    }
+
+    companion object {
+        private const val TAG = "TransferWorker"
+        private const val CHANNEL_ID = "file_transfers"
+        private const val NOTIFICATION_BASE_ID = 2000
+        private const val NOTIFICATION_ID_RANGE = 10000
+        private const val PROGRESS_INTERVAL_MS = 1000L
+        private const val MAX_ATTEMPTS = 10
+
+        const val KEY_RECORD_ID = "record_id"
+        const val KEY_HOST_ID = "host_id"
+        const val KEY_PRIORITY = "priority"
+
+        /** 进度和结果：已传输字节数、总字节数、平均速率（字节/秒）、文件数、文件速率（个/秒）、错误信息 */
+        const val KEY_BYTES = "bytes"
+        const val KEY_TOTAL = "total"
+        const val KEY_RATE = "rate"
+        const val KEY_FILES = "files"
+        const val KEY_FILE_RATE = "file_rate"
+        const val KEY_ERROR = "error"
+    }
+}
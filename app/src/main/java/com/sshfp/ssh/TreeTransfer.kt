@@ -0,0 +1,332 @@
+package com.sshfp.ssh
+
+import android.os.SystemClock
+import android.util.Log
+import com.jcraft.jsch.ChannelSftp
+import com.jcraft.jsch.SftpException
+import com.jcraft.jsch.SftpProgressMonitor
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
+import java.io.File
+import java.util.Vector
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 目录树传输 - 递归上传或下载整个目录，由 [SftpManager.downloadDirectory] / [SftpManager.uploadDirectory] 创建
+ *
+ * 遍历和传输分成两组协程：[walkers] 个遍历者并发列目录，先在目标端建好子目录再把它放进待遍历队列，
+ * 所以文件进入传输队列时所在目录一定已存在；[workers] 个传输者从有界的文件队列中取文件，队列满时遍历暂停。
+ * 每个协程在整个传输期间占用一个SFTP通道，小文件的时间主要花在打开/关闭的往返上，靠多个通道并发掩盖。
+ * 目标已有同样大小且不旧于源的文件时跳过，中断后再次执行即从未完成的文件继续。符号链接不跟随。
+ * 单个文件或目录失败只计数，不中止整个传输；通道断开时整体失败。每个实例只用于一次传输。
+ */
+class TreeTransfer internal constructor(
+    private val sshManager: SshManager,
+    private val broker: ChannelBroker,
+    private val walkers: Int = DEFAULT_WALKERS,
+    private val workers: Int = DEFAULT_WORKERS
+) {
+
+    /**
+     * 传输进度快照；discovered* 是遍历到目前为止发现的文件，遍历结束前会继续增长
+     */
+    data class Progress(
+        val directories: Int,
+        val files: Int,
+        val skipped: Int,
+        val failed: Int,
+        val bytes: Long,
+        val skippedBytes: Long,
+        val discoveredFiles: Int,
+        val discoveredBytes: Long,
+        val elapsedMs: Long,
+        val firstError: String? = null
+    ) {
+        /** 每秒完成的文件数 */
+        val filesPerSecond: Double get() = if (elapsedMs > 0) files * 1000.0 / elapsedMs else 0.0
+
+        /** 实际吞吐量 */
+        val bytesPerSecond: Long get() = if (elapsedMs > 0) bytes * 1000 / elapsedMs else 0
+    }
+
+    /**
+     * 待遍历的目录；targetExisted 为目标目录在传输前是否已存在，新建的目录不用检查已有文件
+     */
+    private class Node(val source: String, val destination: String, val targetExisted: Boolean = true)
+
+    private class FileTask(val source: String, val destination: String)
+
+    private val start = SystemClock.elapsedRealtime()
+    private val directories = AtomicInteger()
+    private val files = AtomicInteger()
+    private val skipped = AtomicInteger()
+    private val failed = AtomicInteger()
+    private val bytes = AtomicLong()
+    private val skippedBytes = AtomicLong()
+    private val discoveredFiles = AtomicInteger()
+    private val discoveredBytes = AtomicLong()
+    @Volatile
+    private var firstError: String? = null
+
+    /**
+     * 把远程目录 [remoteDir] 的内容下载到本地目录 [localDir]
+     */
+    suspend fun download(remoteDir: String, localDir: String, progress: ((Progress) -> Unit)? = null): Result<Progress> =
+        transfer(Node(remoteDir, localDir), "download", progress,
+            prepare = { _, node -> createLocalDirectory(node.destination) },
+            walk = { channel, node, onDirectory, onFile -> walkRemote(channel, node, onDirectory, onFile) },
+            move = { channel, task, monitor -> channel.get(quote(task.source), task.destination, monitor, ChannelSftp.OVERWRITE) }
+        )
+
+    /**
+     * 把本地目录 [localDir] 的内容上传到远程目录 [remoteDir]
+     */
+    suspend fun upload(localDir: String, remoteDir: String, progress: ((Progress) -> Unit)? = null): Result<Progress> =
+        transfer(Node(localDir, remoteDir), "upload", progress,
+            prepare = { channel, node -> createRemoteDirectory(channel, node.destination) },
+            walk = { channel, node, onDirectory, onFile -> walkLocal(channel, node, onDirectory, onFile) },
+            move = { channel, task, monitor -> channel.put(task.source, quote(task.destination), monitor, ChannelSftp.OVERWRITE) }
+        )
+
+    private suspend fun transfer(
+        root: Node,
+        operation: String,
+        progress: ((Progress) -> Unit)?,
+        prepare: (ChannelSftp, Node) -> Boolean,
+        walk: (ChannelSftp, Node, (Node) -> Unit, (FileTask) -> Unit) -> Unit,
+        move: (ChannelSftp, FileTask, SftpProgressMonitor) -> Unit
+    ): Result<Progress> = try {
+        val existed = withChannel { channel -> sshManager.io("sftp tree mkdir", channel) { prepare(channel, root) } }
+        coroutineScope {
+            // 待遍历目录数（含正在遍历的），降为0时遍历结束
+            val pending = AtomicInteger(1)
+            val nodes = Channel<Node>(Channel.UNLIMITED)
+            val tasks = Channel<FileTask>(FILE_QUEUE_CAPACITY)
+            nodes.trySend(Node(root.source, root.destination, existed))
+
+            val walking = List(walkers.coerceAtLeast(1)) {
+                launch {
+                    withChannel { channel ->
+                        for (node in nodes) {
+                            try {
+                                val found = ArrayList<FileTask>()
+                                sshManager.io("sftp tree walk", channel) {
+                                    walk(channel, node, { child ->
+                                        pending.incrementAndGet()
+                                        nodes.trySend(child)
+                                    }, { task -> found.add(task) })
+                                }
+                                directories.incrementAndGet()
+                                for (task in found) tasks.send(task)
+                            } catch (e: CancellationException) {
+                                throw e
+                            } catch (e: Exception) {
+                                if (!channel.isConnected) throw e
+                                recordFailure("list ${node.source}", e)
+                            } finally {
+                                if (pending.decrementAndGet() == 0) nodes.close()
+                            }
+                            progress?.invoke(snapshot())
+                        }
+                    }
+                }
+            }
+            val moving = List(workers.coerceAtLeast(1)) {
+                launch {
+                    withChannel { channel ->
+                        for (task in tasks) {
+                            moveFile(channel, task, operation, move)
+                            progress?.invoke(snapshot())
+                        }
+                    }
+                }
+            }
+            walking.joinAll()
+            tasks.close()
+            moving.joinAll()
+        }
+        val result = snapshot()
+        Log.d(TAG, "Tree $operation ${root.source}: ${result.files} files (${result.skipped} skipped, " +
+            "${result.failed} failed) in ${result.elapsedMs}ms, " +
+            "${"%.1f".format(result.filesPerSecond)} files/s, ${result.bytesPerSecond / 1024}KB/s")
+        Result.success(result)
+    } catch (e: Exception) {
+        Log.e(TAG, "Tree $operation of ${root.source} failed", e)
+        Result.failure(e)
+    }
+
+    private suspend fun moveFile(
+        channel: ChannelSftp,
+        task: FileTask,
+        operation: String,
+        move: (ChannelSftp, FileTask, SftpProgressMonitor) -> Unit
+    ) {
+        val moved = AtomicLong()
+        try {
+            sshManager.io("sftp tree $operation", channel) {
+                move(channel, task, object : SftpProgressMonitor {
+                    override fun init(op: Int, src: String?, dest: String?, max: Long) {}
+                    override fun count(count: Long): Boolean {
+                        moved.addAndGet(count)
+                        bytes.addAndGet(count)
+                        return true
+                    }
+                    override fun end() {}
+                })
+            }
+            files.incrementAndGet()
+        } catch (e: CancellationException) {
+            bytes.addAndGet(-moved.get())
+            throw e
+        } catch (e: Exception) {
+            // 失败的文件不计入已传输字节
+            bytes.addAndGet(-moved.get())
+            if (!channel.isConnected) throw e
+            recordFailure("$operation ${task.source}", e)
+        }
+    }
+
+    /**
+     * 列出远程目录：子目录在本地建好后交给 onDirectory，需要传输的文件交给 onFile
+     */
+    private fun walkRemote(channel: ChannelSftp, node: Node, onDirectory: (Node) -> Unit, onFile: (FileTask) -> Unit) {
+        for (entry in list(channel, node.source)) {
+            val name = entry.filename
+            if (name == "." || name == "..") continue
+            val attrs = entry.attrs
+            val source = "${node.source.trimEnd('/')}/$name"
+            val destination = File(node.destination, name)
+            when {
+                attrs.isLink -> continue
+                attrs.isDir -> onDirectory(Node(source, destination.path, createLocalDirectory(destination.path)))
+                else -> found(source, destination.path, attrs.size, attrs.mTime * 1000L,
+                    destination.takeIf { it.isFile }?.let { it.length() to it.lastModified() }, onFile)
+            }
+        }
+    }
+
+    /**
+     * 列出本地目录：子目录在远程建好后交给 onDirectory；目标目录已存在时先列一次远程，跳过已传完的文件
+     */
+    private fun walkLocal(channel: ChannelSftp, node: Node, onDirectory: (Node) -> Unit, onFile: (FileTask) -> Unit) {
+        val children = File(node.source).listFiles() ?: throw Exception("Cannot list ${node.source}")
+        val existing = HashMap<String, Pair<Long, Long>>()
+        if (node.targetExisted) {
+            for (entry in list(channel, node.destination)) {
+                if (!entry.attrs.isDir) existing[entry.filename] = entry.attrs.size to entry.attrs.mTime * 1000L
+            }
+        }
+        val base = node.destination.trimEnd('/')
+        for (child in children) {
+            val destination = "$base/${child.name}"
+            when {
+                isSymlink(child) -> continue
+                child.isDirectory -> onDirectory(Node(child.path, destination, createRemoteDirectory(channel, destination)))
+                else -> found(child.path, destination, child.length(), child.lastModified(), existing[child.name], onFile)
+            }
+        }
+    }
+
+    /**
+     * 统计发现的文件；目标大小相同且修改时间不早于源时视为已传输
+     */
+    private fun found(source: String, destination: String, size: Long, mtime: Long, target: Pair<Long, Long>?, onFile: (FileTask) -> Unit) {
+        discoveredFiles.incrementAndGet()
+        discoveredBytes.addAndGet(size)
+        // SFTP 的修改时间精确到秒
+        if (target != null && target.first == size && target.second / 1000 >= mtime / 1000) {
+            skipped.incrementAndGet()
+            skippedBytes.addAndGet(size)
+            return
+        }
+        onFile(FileTask(source, destination))
+    }
+
+    private fun list(channel: ChannelSftp, path: String): List<ChannelSftp.LsEntry> {
+        @Suppress("UNCHECKED_CAST")
+        val entries = channel.ls(quote(path)) as? Vector<ChannelSftp.LsEntry> ?: return emptyList()
+        return entries
+    }
+
+    /**
+     * 创建本地目录，返回目录是否原已存在
+     */
+    private fun createLocalDirectory(path: String): Boolean {
+        val dir = File(path)
+        if (dir.isDirectory) return true
+        if (!dir.mkdirs() && !dir.isDirectory) throw Exception("Cannot create $path")
+        return false
+    }
+
+    /**
+     * 创建远程目录，返回目录是否原已存在
+     */
+    private fun createRemoteDirectory(channel: ChannelSftp, path: String): Boolean {
+        return try {
+            channel.mkdir(path)
+            false
+        } catch (e: SftpException) {
+            // 已存在时服务端一般只返回 SSH_FX_FAILURE，需要再 stat 确认
+            val attrs = try {
+                channel.stat(quote(path))
+            } catch (statError: SftpException) {
+                throw e
+            }
+            if (!attrs.isDir) throw e
+            true
+        }
+    }
+
+    private fun isSymlink(file: File): Boolean = try {
+        file.canonicalFile != file.absoluteFile.parentFile?.canonicalFile?.let { File(it, file.name) }
+    } catch (e: Exception) {
+        true
+    }
+
+    private suspend fun <T> withChannel(block: suspend (ChannelSftp) -> T): T {
+        val channel = broker.acquireSftp()
+        try {
+            return block(channel)
+        } finally {
+            broker.release(channel)
+        }
+    }
+
+    private fun recordFailure(what: String, e: Exception) {
+        failed.incrementAndGet()
+        if (firstError == null) firstError = "$what: ${e.message}"
+        Log.w(TAG, "Failed to $what: ${e.message}")
+    }
+
+    private fun snapshot(): Progress = Progress(
+        directories.get(),
+        files.get(),
+        skipped.get(),
+        failed.get(),
+        bytes.get(),
+        skippedBytes.get(),
+        discoveredFiles.get(),
+        discoveredBytes.get(),
+        SystemClock.elapsedRealtime() - start,
+        firstError
+    )
+
+    companion object {
+        private const val TAG = "TreeTransfer"
+
+        /** 遍历者和传输者合计 8 个通道，低于 [ChannelBroker.DEFAULT_MAX_SESSIONS]，给终端和界面留出余量 */
+        const val DEFAULT_WALKERS = 2
+        const val DEFAULT_WORKERS = 6
+        private const val FILE_QUEUE_CAPACITY = 256
+
+        /**
+         * JSch 把路径中的 * 和 ? 当作通配符，需要转义
+         */
+        private fun quote(path: String): String =
+            path.replace("\\", "\\\\").replace("*", "\\*").replace("?", "\\?")
+    }
+}
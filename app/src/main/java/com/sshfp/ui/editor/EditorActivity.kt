@@ -48,7 +48,7 @@ class EditorActivity : AppCompatActivity() {
 
         hostDao = HostDatabase.getInstance(this).hostDao()
         passwordEncryption = PasswordEncryption(this)
-        sshManager = SshManager()
+        sshManager = SshManager(this)
         sftpManager = SftpManager(sshManager)
 
         setupUI()
@@ -115,35 +115,47 @@ class EditorActivity : AppCompatActivity() {
         }
     }
 
-    private suspend fun loadRemoteFile(path: String): String = withContext(Dispatchers.IO) {
-        try {
-            val host = hostDao.getHostById(hostId)
-            if (host == null) return@withContext "Host not found"
+    /**
+     * 确保SFTP已连接，会话来自共享连接池，已连接时不再重复握手
+     */
+    private suspend fun ensureSftpConnected(): Result<Unit> {
+        if (sftpManager.isConnected()) return Result.success(Unit)
 
-            val password = try {
-                passwordEncryption.decrypt(host.encryptedPassword)
-            } catch (e: Exception) {
-                return@withContext "Failed to decrypt password"
-            }
+        val host = hostDao.getHostById(hostId)
+            ?: return Result.failure(Exception("Host not found"))
+
+        val password = try {
+            withContext(Dispatchers.IO) { passwordEncryption.decrypt(host.encryptedPassword) }
+        } catch (e: Exception) {
+            return Result.failure(Exception("Failed to decrypt password"))
+        }
 
+        if (!sshManager.isConnected()) {
             val connectResult = sshManager.connect(host, password)
             if (connectResult.isFailure) {
-                return@withContext "Failed to connect"
+                return Result.failure(Exception("Failed to connect"))
             }
+        }
 
-            val sftpResult = sftpManager.connect()
-            if (sftpResult.isFailure) {
-                return@withContext "Failed to connect SFTP"
+        val sftpResult = sftpManager.connect()
+        if (sftpResult.isFailure) {
+            return Result.failure(Exception("Failed to connect SFTP"))
+        }
+        return Result.success(Unit)
+    }
+
+    private suspend fun loadRemoteFile(path: String): String {
+        return try {
+            val connected = ensureSftpConnected()
+            if (connected.isFailure) {
+                return connected.exceptionOrNull()?.message ?: "Failed to connect"
             }
 
-            val inputStream = sftpManager.getFileInputStream(path)
-            if (inputStream.isSuccess) {
-                val reader = BufferedReader(InputStreamReader(inputStream.getOrNull()))
-                val content = reader.use { it.readText() }
-                content
-            } else {
-                "Failed to open remote file"
+            // 打开和读取都在主机的IO调度器上进行
+            val content = sftpManager.readFile(path) { input ->
+                BufferedReader(InputStreamReader(input)).readText()
             }
+            content.getOrNull() ?: "Failed to open remote file"
         } catch (e: Exception) {
             "Error: ${e.message}"
         }
@@ -189,29 +201,11 @@ class EditorActivity : AppCompatActivity() {
         }
     }
 
-    private suspend fun saveRemoteFile(path: String, content: String): Boolean = withContext(Dispatchers.IO) {
-        try {
-            val host = hostDao.getHostById(hostId) ?: return@withContext false
-
-            val password = try {
-                passwordEncryption.decrypt(host.encryptedPassword)
-            } catch (e: Exception) {
-                return@withContext false
-            }
-
-            val connectResult = sshManager.connect(host, password)
-            if (connectResult.isFailure) return@withContext false
+    private suspend fun saveRemoteFile(path: String, content: String): Boolean {
+        return try {
+            if (ensureSftpConnected().isFailure) return false
 
-            val sftpResult = sftpManager.connect()
-            if (sftpResult.isFailure) return@withContext false
-
-            val outputStream = sftpManager.getFileOutputStream(path)
-            if (outputStream.isSuccess) {
-                outputStream.getOrNull()?.use { it.write(content.toByteArray()) }
-                true
-            } else {
-                false
-            }
+            sftpManager.writeFile(path) { it.write(content.toByteArray()) }.isSuccess
         } catch (e: Exception) {
             false
         }
@@ -25,6 +25,7 @@ class HostEditActivity : AppCompatActivity() {
     private lateinit var passwordEncryption: PasswordEncryption
     private var hostId: Long = 0
     private var originalPassword: String? = null
+    private var jumpHosts: List<Host> = emptyList()
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -56,40 +57,62 @@ class HostEditActivity : AppCompatActivity() {
 
             override fun onNothingSelected(parent: android.widget.AdapterView<*>?) {}
         })
+
+        // 压缩模式选择器，顺序与 Host.Compression 一致
+        val compressionModes = arrayOf(
+            getString(R.string.compression_off),
+            getString(R.string.compression_on),
+            getString(R.string.compression_auto)
+        )
+        val compressionAdapter = ArrayAdapter(this, android.R.layout.simple_spinner_item, compressionModes)
+        compressionAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item)
+        binding.compressionSpinner.adapter = compressionAdapter
     }
 
     private fun loadHost() {
         hostId = intent.getLongExtra("host_id", 0)
-        if (hostId > 0) {
-            lifecycleScope.launch {
-                val host = hostDao.getHostById(hostId)
-                host?.let {
-                    binding.nameEditText.setText(it.name)
-                    binding.addressEditText.setText(it.address)
-                    binding.portEditText.setText(it.port.toString())
-                    binding.usernameEditText.setText(it.username)
-                    binding.authSpinner.setSelection(if (it.authMethod == Host.AuthMethod.PASSWORD) 0 else 1)
-                    binding.keyPathEditText.setText(it.privateKeyPath)
-                    binding.initialDirEditText.setText(it.initialDirectory)
-
-                    // 解密并显示密码（如果是密码认证）
-                    if (it.authMethod == Host.AuthMethod.PASSWORD && it.encryptedPassword.isNotEmpty()) {
-                        try {
-                            val decryptedPassword = passwordEncryption.decrypt(it.encryptedPassword)
-                            binding.passwordEditText.setText(decryptedPassword)
-                            originalPassword = it.encryptedPassword
-                        } catch (e: Exception) {
-                            originalPassword = it.encryptedPassword
-                        }
-                    } else {
+        lifecycleScope.launch {
+            setupJumpHosts()
+            if (hostId == 0L) return@launch
+            val host = hostDao.getHostById(hostId)
+            host?.let {
+                binding.nameEditText.setText(it.name)
+                binding.addressEditText.setText(it.address)
+                binding.portEditText.setText(it.port.toString())
+                binding.usernameEditText.setText(it.username)
+                binding.authSpinner.setSelection(if (it.authMethod == Host.AuthMethod.PASSWORD) 0 else 1)
+                binding.keyPathEditText.setText(it.privateKeyPath)
+                binding.initialDirEditText.setText(it.initialDirectory)
+                binding.compressionSpinner.setSelection(it.compression.ordinal)
+                val jumpIndex = jumpHosts.indexOfFirst { jump -> jump.id == it.jumpHostId }
+                binding.jumpHostSpinner.setSelection(jumpIndex + 1)
+
+                // 解密并显示密码（如果是密码认证）
+                if (it.authMethod == Host.AuthMethod.PASSWORD && it.encryptedPassword.isNotEmpty()) {
+                    try {
+                        val decryptedPassword = passwordEncryption.decrypt(it.encryptedPassword)
+                        binding.passwordEditText.setText(decryptedPassword)
+                        originalPassword = it.encryptedPassword
+                    } catch (e: Exception) {
                         originalPassword = it.encryptedPassword
                     }
+                } else {
+                    originalPassword = it.encryptedPassword
                 }
             }
-            title = getString(R.string.edit_host)
-        } else {
-            title = getString(R.string.add_host)
         }
+        title = getString(if (hostId > 0) R.string.edit_host else R.string.add_host)
+    }
+
+    /**
+     * 跳板机选择器：第一项为不使用，其余为除本主机外的所有主机
+     */
+    private suspend fun setupJumpHosts() {
+        jumpHosts = hostDao.getAllHostsList().filter { it.id != hostId }
+        val names = listOf(getString(R.string.jump_host_none)) + jumpHosts.map { it.displayName() }
+        val adapter = ArrayAdapter(this, android.R.layout.simple_spinner_item, names)
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item)
+        binding.jumpHostSpinner.adapter = adapter
     }
 
     private fun updateAuthMethodUI(isPassword: Boolean) {
@@ -133,6 +156,8 @@ class HostEditActivity : AppCompatActivity() {
 
         val isPasswordAuth = binding.authSpinner.selectedItemPosition == 0
         val authMethod = if (isPasswordAuth) Host.AuthMethod.PASSWORD else Host.AuthMethod.KEY
+        val compression = Host.Compression.values()[binding.compressionSpinner.selectedItemPosition]
+        val jumpHostId = jumpHosts.getOrNull(binding.jumpHostSpinner.selectedItemPosition - 1)?.id
 
         lifecycleScope.launch {
             val sortOrder = if (hostId == 0L) {
@@ -160,7 +185,9 @@ class HostEditActivity : AppCompatActivity() {
                     ""
                 },
                 initialDirectory = initialDir.ifEmpty { "/home/$username" },
-                sortOrder = sortOrder
+                sortOrder = sortOrder,
+                compression = compression,
+                jumpHostId = jumpHostId
             )
 
             if (hostId > 0) {
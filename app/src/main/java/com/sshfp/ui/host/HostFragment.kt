@@ -5,14 +5,22 @@ import android.os.Bundle
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
+import android.widget.EditText
+import android.widget.ScrollView
+import android.widget.TextView
+import android.widget.Toast
+import androidx.appcompat.app.AlertDialog
 import androidx.fragment.app.Fragment
 import androidx.lifecycle.lifecycleScope
 import androidx.recyclerview.widget.LinearLayoutManager
 import com.sshfp.R
 import com.sshfp.databinding.FragmentHostBinding
 import com.sshfp.model.Host
+import com.sshfp.ssh.FleetRunner
 import com.sshfp.ssh.HostDao
 import com.sshfp.ssh.HostDatabase
+import com.sshfp.ssh.SshPreconnector
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.flow.collect
 import kotlinx.coroutines.launch
 
@@ -26,6 +34,7 @@ class HostFragment : Fragment() {
 
     private lateinit var hostAdapter: HostAdapter
     private lateinit var hostDao: HostDao
+    private lateinit var preconnector: SshPreconnector
     private var fabAction: (() -> Unit)? = null
 
     override fun onCreateView(
@@ -41,6 +50,7 @@ class HostFragment : Fragment() {
         super.onViewCreated(view, savedInstanceState)
 
         hostDao = HostDatabase.getInstance(requireContext()).hostDao()
+        preconnector = SshPreconnector(requireContext())
 
         setupRecyclerView()
         loadHosts()
@@ -52,7 +62,7 @@ class HostFragment : Fragment() {
                 openHostDetail(host)
             },
             onHostLongClick = { host ->
-                // 显示操作菜单
+                showFleetHostPicker(host)
             }
         )
 
@@ -89,6 +99,95 @@ class HostFragment : Fragment() {
         startActivity(intent)
     }
 
+    /**
+     * 批量执行：选择主机（默认选中长按的主机）
+     */
+    private fun showFleetHostPicker(selected: Host) {
+        lifecycleScope.launch {
+            val hosts = hostDao.getAllHostsList()
+            val checked = BooleanArray(hosts.size) { hosts[it].id == selected.id }
+            AlertDialog.Builder(requireContext())
+                .setTitle("批量执行 - 选择主机")
+                .setMultiChoiceItems(hosts.map { it.displayName() }.toTypedArray(), checked) { _, which, isChecked ->
+                    checked[which] = isChecked
+                }
+                .setNeutralButton("全选", null)
+                .setPositiveButton("下一步") { _, _ ->
+                    val targets = hosts.filterIndexed { i, _ -> checked[i] }
+                    if (targets.isNotEmpty()) showFleetCommandDialog(targets)
+                }
+                .setNegativeButton("取消", null)
+                .create()
+                .apply {
+                    setOnShowListener {
+                        getButton(AlertDialog.BUTTON_NEUTRAL).setOnClickListener {
+                            checked.fill(true)
+                            hosts.indices.forEach { listView.setItemChecked(it, true) }
+                        }
+                    }
+                }
+                .show()
+        }
+    }
+
+    private fun showFleetCommandDialog(targets: List<Host>) {
+        val input = EditText(requireContext()).apply { hint = "uptime" }
+        AlertDialog.Builder(requireContext())
+            .setTitle("在 ${targets.size} 台主机上执行")
+            .setView(input)
+            .setPositiveButton("执行") { _, _ ->
+                val command = input.text.toString().trim()
+                if (command.isEmpty()) {
+                    Toast.makeText(requireContext(), "请输入命令", Toast.LENGTH_SHORT).show()
+                } else {
+                    runFleet(targets, command)
+                }
+            }
+            .setNegativeButton("取消", null)
+            .show()
+    }
+
+    /**
+     * 执行并实时显示按输出分组的结果，关闭对话框即取消
+     */
+    private fun runFleet(targets: List<Host>, command: String) {
+        val output = TextView(requireContext()).apply {
+            setTextIsSelectable(true)
+            typeface = android.graphics.Typeface.MONOSPACE
+            val padding = (16 * resources.displayMetrics.density).toInt()
+            setPadding(padding, padding, padding, padding)
+        }
+        var job: Job? = null
+        val dialog = AlertDialog.Builder(requireContext())
+            .setTitle(command)
+            .setView(ScrollView(requireContext()).apply { addView(output) })
+            .setPositiveButton("关闭", null)
+            .setOnDismissListener { job?.cancel() }
+            .show()
+
+        job = lifecycleScope.launch {
+            FleetRunner(requireContext()).run(targets, command).collect { report ->
+                dialog.setTitle("$command  (${report.finished}/${report.total})")
+                output.text = formatFleetReport(report)
+            }
+        }
+    }
+
+    private fun formatFleetReport(report: FleetRunner.Report): String = buildString {
+        report.groups.sortedByDescending { it.hosts.size }.forEach { group ->
+            append("── ${group.hosts.size} 台 [退出码 ${group.exitStatus}]: ")
+            appendLine(group.hosts.joinToString { it.displayName() })
+            appendLine(group.output)
+            if (group.truncated) appendLine("…（输出已截断）")
+            appendLine()
+        }
+        report.errors.forEach { (host, error) ->
+            appendLine("✗ ${host.displayName()}: $error")
+        }
+        val running = report.statuses.values.count { it == FleetRunner.Status.RUNNING }
+        if (!report.isDone) append("执行中 $running 台，等待 ${report.total - report.finished - running} 台")
+    }
+
     fun onFabClicked() {
         fabAction?.invoke()
     }
@@ -96,6 +195,10 @@ class HostFragment : Fragment() {
     override fun onResume() {
         super.onResume()
         loadHosts()
+        // 列表可见时为最可能使用的主机提前握手
+        lifecycleScope.launch {
+            preconnector.preconnect(hostDao.getAllHostsList())
+        }
     }
 
     override fun onDestroyView() {
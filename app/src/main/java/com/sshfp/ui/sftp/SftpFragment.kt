@@ -5,9 +5,13 @@ import android.os.Bundle
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
+import android.widget.Toast
 import androidx.fragment.app.Fragment
+import androidx.lifecycle.Observer
 import androidx.lifecycle.lifecycleScope
 import androidx.recyclerview.widget.LinearLayoutManager
+import androidx.work.WorkInfo
+import androidx.work.WorkManager
 import com.sshfp.R
 import com.sshfp.databinding.FragmentSftpBinding
 import com.sshfp.model.Host
@@ -15,7 +19,9 @@ import com.sshfp.ssh.HostDao
 import com.sshfp.ssh.HostDatabase
 import com.sshfp.ssh.PasswordEncryption
 import com.sshfp.ssh.SftpManager
-import com.sshfp.ssh.SshManager
+import com.sshfp.ssh.SshTerminalService
+import com.sshfp.ssh.TransferQueue
+import com.sshfp.ssh.TransferWorker
 import com.sshfp.ui.host.HostEditActivity
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
@@ -24,6 +30,8 @@ import kotlinx.coroutines.withContext
 
 /**
  * SFTP文件管理Fragment
+ *
+ * 连接由 [SshTerminalService] 持有，视图销毁或屏幕旋转后重新附着；传输交给 [TransferQueue] 在后台执行，不受页面影响。
  */
 class SftpFragment : Fragment() {
 
@@ -31,8 +39,9 @@ class SftpFragment : Fragment() {
     private val binding get() = _binding!!
 
     private lateinit var hostDao: HostDao
-    private lateinit var sshManager: SshManager
-    private lateinit var sftpManager: SftpManager
+    private lateinit var serviceClient: SshTerminalService.Client
+    private var connection: SshTerminalService.HostConnection? = null
+    private val sftpManager: SftpManager? get() = connection?.sftpManager()
     private lateinit var localAdapter: FileAdapter
     private lateinit var remoteAdapter: FileAdapter
     private lateinit var passwordEncryption: PasswordEncryption
@@ -57,8 +66,8 @@ class SftpFragment : Fragment() {
 
         hostDao = HostDatabase.getInstance(requireContext()).hostDao()
         passwordEncryption = PasswordEncryption(requireContext())
-        sshManager = SshManager()
-        sftpManager = SftpManager(sshManager)
+        serviceClient = SshTerminalService.Client(requireContext())
+        serviceClient.bind()
 
         setupUI()
         lifecycleScope.launch {
@@ -66,6 +75,36 @@ class SftpFragment : Fragment() {
             loadHosts()
         }
         loadLocalFiles(currentLocalPath)
+
+        val heldHostId = currentHost?.id ?: savedInstanceState?.getLong(KEY_HOST_ID, -1) ?: -1
+        savedInstanceState?.getString(KEY_REMOTE_PATH)?.let { currentRemotePath = it }
+        if (heldHostId > 0) {
+            lifecycleScope.launch { reattach(heldHostId) }
+        }
+    }
+
+    override fun onSaveInstanceState(outState: Bundle) {
+        super.onSaveInstanceState(outState)
+        currentHost?.let { outState.putLong(KEY_HOST_ID, it.id) }
+        outState.putString(KEY_REMOTE_PATH, currentRemotePath)
+    }
+
+    /**
+     * 视图重建后重新附着服务中仍在的SFTP连接
+     */
+    private suspend fun reattach(hostId: Long) {
+        val held = serviceClient.await().connection(hostId)
+        if (held == null || !held.isConnected() || !held.sftpManager().isConnected()) {
+            isConnected = false
+            currentHost = null
+            return
+        }
+        connection = held
+        currentHost = held.host
+        isConnected = true
+        binding.connectButton.text = "Disconnect"
+        binding.statusText.text = "Connected"
+        loadRemoteFiles(currentRemotePath)
     }
 
     private fun setupUI() {
@@ -217,6 +256,7 @@ class SftpFragment : Fragment() {
 
     private suspend fun loadRemoteFiles(path: String) {
         if (!isConnected) return
+        val sftpManager = sftpManager ?: return
 
         lifecycleScope.launch {
             try {
@@ -283,12 +323,16 @@ class SftpFragment : Fragment() {
             binding.connectButton.isEnabled = false
             binding.statusText.text = "Connecting..."
 
-            val result = sshManager.connect(host, password)
+            val result = serviceClient.await().connect(host, password)
             if (result.isSuccess) {
-                val sftpResult = sftpManager.connect()
+                val connected = result.getOrThrow()
+                connection = connected
+                val sftp = connected.sftpManager()
+                val sftpResult = if (sftp.isConnected()) Result.success(Unit) else sftp.connect()
                 if (sftpResult.isSuccess) {
                     isConnected = true
                     currentHost = host
+                    hostDao.updateLastConnected(host.id, System.currentTimeMillis())
                     binding.connectButton.text = "Disconnect"
                     binding.statusText.text = "Connected"
                     binding.connectButton.isEnabled = true
@@ -305,8 +349,8 @@ class SftpFragment : Fragment() {
     }
 
     private fun disconnect() {
-        sftpManager.disconnect()
-        sshManager.disconnect()
+        currentHost?.let { serviceClient.service?.closeSftp(it.id) }
+        connection = null
         isConnected = false
         currentHost = null
         remoteAdapter.submitList(emptyList())
@@ -371,30 +415,74 @@ class SftpFragment : Fragment() {
                 }
                 loadLocalFiles(currentLocalPath)
             } else if (isConnected) {
-                sftpManager.deleteFile(file.path)
+                sftpManager?.deleteFile(file.path)
                 loadRemoteFiles(currentRemotePath)
             }
         }
     }
 
     private fun downloadFile(file: com.sshfp.model.FileItem) {
+        val connected = connection ?: return
         lifecycleScope.launch {
             val localPath = "$currentLocalPath/${file.name}"
-            sftpManager.downloadFile(file.path, localPath) { transferred ->
-                // Update progress
-            }
-            loadLocalFiles(currentLocalPath)
+            // 交给传输队列在后台执行，页面销毁、切到其他应用或进程被杀后继续；断线后按退避重试并续传
+            val recordId = connected.transferQueue.enqueueDownload(
+                connected.host.id, file.path, localPath, recursive = file.isDirectory
+            )
+            watchTransfer(file.name, recordId) { loadLocalFiles(currentLocalPath) }
         }
     }
 
     private fun uploadFile(file: com.sshfp.model.FileItem) {
+        val connected = connection ?: return
         lifecycleScope.launch {
             val remotePath = "$currentRemotePath/${file.name}"
-            sftpManager.uploadFile(file.path, remotePath) { transferred ->
-                // Update progress
+            val recordId = connected.transferQueue.enqueueUpload(
+                connected.host.id, file.path, remotePath, recursive = file.isDirectory
+            )
+            watchTransfer(file.name, recordId) { loadRemoteFiles(currentRemotePath) }
+        }
+    }
+
+    /**
+     * 页面存在期间等待传输结束，提示结果并刷新列表
+     */
+    private fun watchTransfer(name: String, recordId: Long, onFinished: () -> Unit) {
+        val context = context ?: return
+        Toast.makeText(context, getString(R.string.transfer_queued, name), Toast.LENGTH_SHORT).show()
+        val work = WorkManager.getInstance(context).getWorkInfosForUniqueWorkLiveData(TransferQueue.workName(recordId))
+        work.observe(viewLifecycleOwner, object : Observer<List<WorkInfo>> {
+            override fun onChanged(value: List<WorkInfo>) {
+                val info = value.lastOrNull() ?: return
+                if (!info.state.isFinished) return
+                work.removeObserver(this)
+                showTransferResult(name, info)
+                onFinished()
             }
-            loadRemoteFiles(currentRemotePath)
+        })
+    }
+
+    /**
+     * 提示传输结果和实际吞吐量
+     */
+    private fun showTransferResult(name: String, info: WorkInfo) {
+        val context = context ?: return
+        val message = when (info.state) {
+            WorkInfo.State.SUCCEEDED -> {
+                val rate = info.outputData.getLong(TransferWorker.KEY_RATE, 0)
+                val files = info.outputData.getInt(TransferWorker.KEY_FILES, 1)
+                val speed = "${android.text.format.Formatter.formatFileSize(context, rate)}/s"
+                if (files > 1) {
+                    val fileRate = info.outputData.getDouble(TransferWorker.KEY_FILE_RATE, 0.0)
+                    "$name: $files 个文件, $speed, ${"%.1f".format(fileRate)} 个/秒"
+                } else {
+                    "$name: $speed"
+                }
+            }
+            WorkInfo.State.FAILED -> "$name: ${info.outputData.getString(TransferWorker.KEY_ERROR)}"
+            else -> return
         }
+        Toast.makeText(context, message, Toast.LENGTH_SHORT).show()
     }
 
     private fun getSelectedHost(): Host? {
@@ -429,9 +517,13 @@ class SftpFragment : Fragment() {
 
     override fun onDestroyView() {
         super.onDestroyView()
-        if (isConnected) {
-            disconnect()
-        }
+        // 只解绑，连接留在服务中，重建视图后重新附着
+        serviceClient.unbind()
         _binding = null
     }
+
+    companion object {
+        private const val KEY_HOST_ID = "sftp_host_id"
+        private const val KEY_REMOTE_PATH = "sftp_remote_path"
+    }
 }
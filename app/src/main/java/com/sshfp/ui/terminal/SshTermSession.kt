@@ -0,0 +1,49 @@
+package com.sshfp.ui.terminal
+
+import jackpal.androidterm.emulatorview.TermSession
+
+/**
+ * 终端模拟器会话 - 由 [com.sshfp.ssh.SshTerminalService] 持有，跨 Activity 重建保留屏幕内容
+ *
+ * 不引用任何 Activity；当前附着的界面通过回调接收刷新通知和拦截按键，分离时置空。
+ */
+class SshTermSession(private val title: String) : TermSession() {
+
+    /** 单个字母输入的拦截器（用于Ctrl组合键），返回 true 表示已处理 */
+    @Volatile
+    var letterInterceptor: ((Char) -> Boolean)? = null
+
+    /** 收到服务器输出后回调，用于刷新视图 */
+    @Volatile
+    var onOutput: (() -> Unit)? = null
+
+    override fun getTitle(): String = title
+
+    /**
+     * 处理从SSH服务器接收到的数据（终端输出）
+     */
+    override fun processInput(data: ByteArray?, offset: Int, count: Int) {
+        // 不过滤任何数据，直接传递给终端模拟器
+        super.processInput(data, offset, count)
+        onOutput?.invoke()
+    }
+
+    /**
+     * 处理键盘输入的字符（字节数组版本）
+     */
+    override fun write(data: ByteArray?, offset: Int, count: Int) {
+        if (data != null && count > 0) {
+            val str = String(data, offset, count)
+            if (str.length == 1 && str[0].isLetter() && letterInterceptor?.invoke(str[0]) == true) return
+        }
+        super.write(data, offset, count)
+    }
+
+    /**
+     * 处理键盘输入的字符（字符串版本）
+     */
+    override fun write(data: String?) {
+        if (data != null && data.length == 1 && data[0].isLetter() && letterInterceptor?.invoke(data[0]) == true) return
+        super.write(data)
+    }
+}
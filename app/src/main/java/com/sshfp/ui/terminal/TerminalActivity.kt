@@ -2,6 +2,8 @@ package com.sshfp.ui.terminal
 
 import android.content.SharedPreferences
 import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
 import android.util.DisplayMetrics
 import android.util.Log
 import android.view.KeyEvent
@@ -15,31 +17,42 @@ import com.google.android.material.appbar.MaterialToolbar
 import com.google.android.material.button.MaterialButton
 import com.sshfp.R
 import com.sshfp.databinding.ActivityTerminalBinding
+import com.sshfp.model.ForwardRule
 import com.sshfp.model.Host
 import com.sshfp.ssh.HostDao
 import com.sshfp.ssh.HostDatabase
+import com.sshfp.ssh.KnownHostsRepository
 import com.sshfp.ssh.PasswordEncryption
-import com.sshfp.ssh.SshManager
+import com.sshfp.ssh.SshTerminalService
+import com.sshfp.ssh.TerminalSession
 import jackpal.androidterm.emulatorview.EmulatorView
-import jackpal.androidterm.emulatorview.TermSession
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.launch
 import org.json.JSONArray
 import org.json.JSONObject
 
 /**
  * 终端Activity - 使用 EmulatorView 显示终端
+ *
+ * 连接和终端会话由 [SshTerminalService] 持有，本页面只负责附着显示；
+ * 旋转屏幕或退到后台后重新进入时直接附着已有会话，不重新握手。
  */
 class TerminalActivity : AppCompatActivity() {
 
     private lateinit var binding: ActivityTerminalBinding
     private lateinit var hostDao: HostDao
     private lateinit var passwordEncryption: PasswordEncryption
-    private lateinit var sshManager: SshManager
+    private val serviceClient = SshTerminalService.Client(this)
+    private val refreshHandler = Handler(Looper.getMainLooper())
     private lateinit var prefs: SharedPreferences
     private lateinit var imm: InputMethodManager
 
-    private var termSession: TermSession? = null
+    private var connection: SshTerminalService.HostConnection? = null
+    private val termSession: SshTermSession? get() = connection?.emulator as? SshTermSession
+    private val terminalSession: TerminalSession? get() = connection?.terminal
     private var currentHost: Host? = null
+    private var currentPassword: String? = null
     private var hostId: Long = -1
     private var currentFontSize: Int = 16  // 跟踪当前字体大小
     private var isCtrlPressed: Boolean = false  // Ctrl键是否被按下
@@ -50,6 +63,8 @@ class TerminalActivity : AppCompatActivity() {
         private const val TAG = "TerminalActivity"
         private const val PREFS_NAME = "terminal_prefs"
         private const val KEY_CUSTOM_CMDS = "custom_cmds"
+        private const val KEY_MULTIPLEXER_PREFIX = "multiplexer_"
+        private const val MAX_SHOWN_DESTINATIONS = 3
         private const val DEFAULT_CMDS = "[\n" +
                 "    {\"name\": \"查看文件列表\", \"cmd\": \"ls -la\"},\n" +
                 "    {\"name\": \"查看当前目录\", \"cmd\": \"pwd\"},\n" +
@@ -70,7 +85,7 @@ class TerminalActivity : AppCompatActivity() {
         imm = getSystemService(INPUT_METHOD_SERVICE) as InputMethodManager
         hostDao = HostDatabase.getInstance(this).hostDao()
         passwordEncryption = PasswordEncryption(this)
-        sshManager = SshManager()
+        serviceClient.bind()
         prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE)
 
         setupToolbar()
@@ -79,7 +94,17 @@ class TerminalActivity : AppCompatActivity() {
 
         hostId = intent.getLongExtra(EXTRA_HOST_ID, -1)
         if (hostId > 0) {
-            loadHostAndConnect()
+            lifecycleScope.launch {
+                val existing = serviceClient.await().connection(hostId)
+                val held = existing?.terminal
+                if (existing != null && existing.emulator != null && held != null &&
+                    held.state.value != TerminalSession.State.DISCONNECTED
+                ) {
+                    reattach(existing)
+                } else {
+                    loadHostAndConnect()
+                }
+            }
         } else {
             Toast.makeText(this, R.string.please_select_host, Toast.LENGTH_SHORT).show()
             finish()
@@ -110,26 +135,7 @@ class TerminalActivity : AppCompatActivity() {
 
     private fun adjustTerminalSize() {
         val terminalView = findViewById<EmulatorView>(R.id.terminalView) ?: return
-
-        // 使用EmulatorView的实际可见列数和行数
-        val columns = terminalView.visibleColumns
-        val rows = terminalView.visibleRows
-
-        if (columns > 0 && rows > 0) {
-            // 更新终端大小
-            termSession?.updateSize(columns, rows)
-
-            // 如果SSH连接已建立，更新PTY大小
-            if (sshManager.isConnected()) {
-                lifecycleScope.launch {
-                    try {
-                        sshManager.resizePty(columns, rows)
-                    } catch (e: Exception) {
-                        Log.e(TAG, "Failed to resize PTY", e)
-                    }
-                }
-            }
-        }
+        adjustTerminalSize(terminalView)
     }
 
     private fun showCopyMenu(terminalView: EmulatorView) {
@@ -143,9 +149,142 @@ class TerminalActivity : AppCompatActivity() {
             showKeyboard(terminalView)
             true
         }
+        popup.menu.add("会话保持").setOnMenuItemClickListener {
+            showMultiplexerDialog()
+            true
+        }
+        popup.menu.add("端口转发").setOnMenuItemClickListener {
+            showForwardDialog()
+            true
+        }
         popup.show()
     }
 
+    /**
+     * 端口转发规则列表：点击启停，长按删除
+     */
+    private fun showForwardDialog() {
+        val forwardManager = connection?.forwardManager ?: return
+        lifecycleScope.launch {
+            val rules = forwardManager.rules(hostId).first()
+            val stats = forwardManager.stats.value
+            val labels = rules.map { rule ->
+                val s = stats[rule.id]
+                if (s == null) "${rule.describe()}  [已停止]"
+                else "${rule.describe()}  [${s.activeConnections}连接 ↑${formatRate(s.sendBytesPerSecond)} ↓${formatRate(s.receiveBytesPerSecond)}]" +
+                    s.destinations.take(MAX_SHOWN_DESTINATIONS).joinToString("") {
+                        "\n  ${it.destination} ×${it.activeConnections} ${it.averageOpenMs}ms"
+                    }
+            }.toTypedArray()
+
+            val dialog = AlertDialog.Builder(this@TerminalActivity)
+                .setTitle("端口转发")
+                .setItems(labels) { _, which -> toggleForward(rules[which]) }
+                .setPositiveButton("添加") { _, _ -> showAddForwardDialog() }
+                .setNegativeButton("关闭", null)
+                .create()
+            dialog.listView?.setOnItemLongClickListener { _, _, position, _ ->
+                lifecycleScope.launch { forwardManager.deleteRule(rules[position]) }
+                dialog.dismiss()
+                Toast.makeText(this@TerminalActivity, "已删除", Toast.LENGTH_SHORT).show()
+                true
+            }
+            dialog.show()
+        }
+    }
+
+    private fun toggleForward(rule: ForwardRule) {
+        val forwardManager = connection?.forwardManager ?: return
+        lifecycleScope.launch {
+            if (forwardManager.isActive(rule.id)) {
+                forwardManager.stop(rule.id)
+                forwardManager.saveRule(rule.copy(enabled = false))
+            } else {
+                val result = forwardManager.start(rule)
+                if (result.isSuccess) {
+                    forwardManager.saveRule(rule.copy(enabled = true))
+                } else {
+                    Toast.makeText(this@TerminalActivity, "启动失败: ${result.exceptionOrNull()?.message}", Toast.LENGTH_SHORT).show()
+                }
+            }
+        }
+    }
+
+    /**
+     * 添加转发规则，格式与ssh命令行一致：L 8080:localhost:80、R 9000:localhost:3000 或 D 1080
+     */
+    private fun showAddForwardDialog() {
+        val input = EditText(this).apply { hint = "L 8080:localhost:80" }
+        AlertDialog.Builder(this)
+            .setTitle("添加端口转发")
+            .setView(input)
+            .setPositiveButton("添加") { _, _ ->
+                val rule = parseForwardRule(input.text.toString())
+                if (rule == null) {
+                    Toast.makeText(this, "格式错误", Toast.LENGTH_SHORT).show()
+                    return@setPositiveButton
+                }
+                val forwardManager = connection?.forwardManager ?: return@setPositiveButton
+                lifecycleScope.launch {
+                    val id = forwardManager.saveRule(rule)
+                    toggleForward(rule.copy(id = id, enabled = false))
+                }
+            }
+            .setNegativeButton("取消", null)
+            .show()
+    }
+
+    private fun parseForwardRule(spec: String): ForwardRule? {
+        Regex("^\\s*[Dd]\\s+(\\d+)\\s*$").find(spec)?.let {
+            return ForwardRule(
+                hostId = hostId,
+                type = ForwardRule.Type.DYNAMIC,
+                bindPort = it.groupValues[1].toIntOrNull() ?: return null
+            )
+        }
+        val match = Regex("^\\s*([LlRr])\\s+(\\d+):([^:\\s]+):(\\d+)\\s*$").find(spec) ?: return null
+        val (type, bindPort, destHost, destPort) = match.destructured
+        return ForwardRule(
+            hostId = hostId,
+            type = if (type.equals("L", true)) ForwardRule.Type.LOCAL else ForwardRule.Type.REMOTE,
+            bindPort = bindPort.toIntOrNull() ?: return null,
+            destHost = destHost,
+            destPort = destPort.toIntOrNull() ?: return null
+        )
+    }
+
+    private fun formatRate(bytesPerSecond: Long): String = when {
+        bytesPerSecond >= 1024 * 1024 -> String.format("%.1fMB/s", bytesPerSecond / 1024.0 / 1024.0)
+        bytesPerSecond >= 1024 -> String.format("%.1fKB/s", bytesPerSecond / 1024.0)
+        else -> "${bytesPerSecond}B/s"
+    }
+
+    /**
+     * 选择断线重连后要重新附着的服务器端会话（tmux/screen），按主机保存
+     */
+    private fun showMultiplexerDialog() {
+        val options = TerminalSession.Multiplexer.values()
+        val labels = arrayOf("不使用", "tmux", "screen")
+        val current = getMultiplexer()
+
+        AlertDialog.Builder(this)
+            .setTitle("断线重连后恢复会话")
+            .setSingleChoiceItems(labels, options.indexOf(current)) { dialog, which ->
+                prefs.edit().putString(KEY_MULTIPLEXER_PREFIX + hostId, options[which].name).apply()
+                terminalSession?.multiplexer = options[which]
+                dialog.dismiss()
+                Toast.makeText(this, "下次连接时生效", Toast.LENGTH_SHORT).show()
+            }
+            .setNegativeButton("取消", null)
+            .show()
+    }
+
+    private fun getMultiplexer(): TerminalSession.Multiplexer {
+        val name = prefs.getString(KEY_MULTIPLEXER_PREFIX + hostId, null)
+        return TerminalSession.Multiplexer.values().firstOrNull { it.name == name }
+            ?: TerminalSession.Multiplexer.NONE
+    }
+
     private fun copySelectedText(terminalView: EmulatorView) {
         try {
             val selectedText = terminalView.getSelectedText()
@@ -172,19 +311,10 @@ class TerminalActivity : AppCompatActivity() {
             // 更新终端大小
             termSession?.updateSize(columns, rows)
 
-            // 如果SSH连接已建立，更新PTY大小
-            if (sshManager.isConnected()) {
-                lifecycleScope.launch {
-                    try {
-                        val session = sshManager.getSession()
-                        val channel = session?.openChannel("shell") as? com.jcraft.jsch.ChannelShell
-                        if (channel != null && channel.isConnected) {
-                            channel.setPtySize(columns, rows, 0, 0)
-                        }
-                    } catch (e: Exception) {
-                        Log.e(TAG, "Failed to update PTY size", e)
-                    }
-                }
+            // 调整当前shell通道的PTY大小，尚未连接时记下大小，连接或重连后沿用
+            val terminal = terminalSession ?: return
+            lifecycleScope.launch(Dispatchers.IO) {
+                terminal.resize(columns, rows)
             }
         }
     }
@@ -474,9 +604,16 @@ class TerminalActivity : AppCompatActivity() {
         lifecycleScope.launch {
             findViewById<MaterialButton>(R.id.disconnectButton)?.isEnabled = false
 
-            val result = sshManager.connect(host, password)
+            val result = serviceClient.await().connect(host, password)
             if (result.isSuccess) {
+                val connected = result.getOrThrow()
+                connection = connected
+                currentPassword = password
+                hostDao.updateLastConnected(host.id, System.currentTimeMillis())
                 setupSession()
+                connected.forwardManager.startSaved(host.id)
+            } else if (KnownHostsRepository.isHostKeyMismatch(result.exceptionOrNull())) {
+                showHostKeyChangedDialog(host)
             } else {
                 Toast.makeText(this@TerminalActivity, R.string.connection_failed, Toast.LENGTH_SHORT).show()
                 finish()
@@ -485,105 +622,55 @@ class TerminalActivity : AppCompatActivity() {
         }
     }
 
-    private fun setupSession() {
-        termSession = object : TermSession() {
-            override fun getTitle(): String {
-                return currentHost?.name ?: "SSH Terminal"
-            }
-
-            /**
-             * 处理从SSH服务器接收到的数据（终端输出）
-             */
-            override fun processInput(data: ByteArray?, offset: Int, count: Int) {
-                // 不过滤任何数据，直接传递给终端模拟器
-                super.processInput(data, offset, count)
-
-                // 确保视图刷新
-                runOnUiThread {
-                    findViewById<EmulatorView>(R.id.terminalView)?.invalidate()
-                }
-            }
-
-            /**
-             * 处理键盘输入的字符（字节数组版本）
-             */
-            override fun write(data: ByteArray?, offset: Int, count: Int) {
-                if (data != null && count > 0) {
-                    val str = String(data, offset, count)
-                    // 如果Ctrl被选中且输入的是单个字母，发送组合键
-                    if (isCtrlPressed && str.length == 1 && str[0].isLetter()) {
-                        sendCtrlCombination(str[0])
-                        return
-                    }
-                }
-                super.write(data, offset, count)
-            }
-
-            /**
-             * 处理键盘输入的字符（字符串版本）
-             */
-            override fun write(data: String?) {
-                if (data != null && data.length == 1 && isCtrlPressed && data[0].isLetter()) {
-                    sendCtrlCombination(data[0])
-                    return
-                }
-                super.write(data)
+    /**
+     * 服务器公钥与记录不符：可能是服务器重装，也可能是中间人攻击，由用户决定
+     */
+    private fun showHostKeyChangedDialog(host: Host) {
+        AlertDialog.Builder(this)
+            .setTitle(R.string.host_key_changed)
+            .setMessage(getString(R.string.host_key_changed_message, host.address))
+            .setPositiveButton(R.string.host_key_trust) { _, _ ->
+                serviceClient.service?.forgetHostKey(host)
+                connectToHost(host)
             }
-        }
+            .setNegativeButton(R.string.cancel) { _, _ -> finish() }
+            .setCancelable(false)
+            .show()
+    }
 
-        termSession?.setFinishCallback { _ ->
-            runOnUiThread {
-                Toast.makeText(this@TerminalActivity, R.string.disconnected, Toast.LENGTH_SHORT).show()
-            }
-        }
+    private fun setupSession() {
+        val connected = connection ?: return
+        val emulator = SshTermSession(currentHost?.name ?: "SSH Terminal")
+        val session = TerminalSession(connected.sshManager).apply {
+            multiplexer = getMultiplexer()
+            currentHost?.let { enableAutoReconnect(it, currentPassword) }
+        }
+        // 上一次的终端已结束，连接仍在时复用连接、重建终端
+        connected.terminal?.disconnect()
+        connected.emulator?.finish()
+        connected.emulator = emulator
+        connected.terminal = session
 
         lifecycleScope.launch {
-            val shellChannel = sshManager.openShellDirect()
-            if (shellChannel != null) {
+            val connectResult = session.connect()
+            if (connectResult.isSuccess) {
                 Log.d(TAG, "Shell channel obtained, setting up session")
 
                 // 检查shell通道是否真的连接成功
-                if (shellChannel?.isConnected == true) {
-                    termSession?.setTermIn(shellChannel.inputStream)
-                    termSession?.setTermOut(shellChannel.outputStream)
+                if (session.isSessionConnected()) {
+                    // 使用重连期间保持不变的流，断线重连后模拟器屏幕内容得以保留
+                    emulator.setTermIn(session.getInputStream())
+                    emulator.setTermOut(session.getOutputStream())
 
                     // 设置终端类型以支持颜色
-                    termSession?.setDefaultUTF8Mode(true)
-                    termSession?.setColorScheme(null)  // 使用默认颜色方案
+                    emulator.setDefaultUTF8Mode(true)
+                    emulator.setColorScheme(null)  // 使用默认颜色方案
 
-                    termSession?.initializeEmulator(80, 24)  // 标准终端大小
+                    emulator.initializeEmulator(80, 24)  // 标准终端大小
                     Log.d(TAG, "Emulator initialized")
 
-                    val terminalView = findViewById<EmulatorView>(R.id.terminalView) ?: return@launch
-
-                    // 设置更新回调，确保数据变化时刷新视图
-                    termSession?.setUpdateCallback {
-                        Log.d(TAG, "Terminal data updated")
-                        runOnUiThread {
-                            terminalView.invalidate()
-                        }
-                    }
-
-                    terminalView.attachSession(termSession)
-                    Log.d(TAG, "Session attached to view")
-
-                    // 在 session attach 后设置字体大小
                     currentFontSize = 16
-                    terminalView.setTextSize(currentFontSize)
-                    terminalView.onResume()
-                    Log.d(TAG, "Terminal view resumed")
-
-                    // 定期强制刷新（防止显示不完整）
-                    val handler = android.os.Handler(android.os.Looper.getMainLooper())
-                    val refreshRunnable = object : Runnable {
-                        override fun run() {
-                            if (termSession?.isRunning == true) {
-                                terminalView.invalidate()
-                                handler.postDelayed(this, 500) // 每500ms刷新一次
-                            }
-                        }
-                    }
-                    handler.postDelayed(refreshRunnable, 500)
+                    attachTerminalView()
 
                     // 发送终端初始化命令
 //                    handler.postDelayed({
@@ -598,22 +685,7 @@ class TerminalActivity : AppCompatActivity() {
 //                        }
 //                    }, 1500)
 
-                    // 请求焦点并显示键盘
-                    terminalView.post {
-                        terminalView.requestFocus()
-                        showKeyboard(terminalView)
-                    }
-
                     Log.d(TAG, "Terminal setup complete")
-
-                    // 测试连接 - 发送一个简单的echo测试
-//                    handler.postDelayed({
-//                        try {
-//                            termSession?.write("echo 'Terminal ready'\r")
-//                        } catch (e: Exception) {
-//                            Log.e(TAG, "Failed to send test command", e)
-//                        }
-//                    }, 1000)
                 } else {
                     Log.w(TAG, "Shell channel not connected properly")
                     handleConnectionError(Exception("Failed to establish shell session"))
@@ -625,11 +697,101 @@ class TerminalActivity : AppCompatActivity() {
         }
     }
 
+    /**
+     * 重新附着服务中已有的终端会话（Activity 重建后），不重新握手
+     */
+    private fun reattach(existing: SshTerminalService.HostConnection) {
+        connection = existing
+        currentHost = existing.host
+        currentPassword = existing.password
+        supportActionBar?.title = "${existing.host.name} @ ${existing.host.address}"
+        Log.d(TAG, "Reattaching to held session for ${existing.host.address}")
+        attachTerminalView()
+    }
+
+    /**
+     * 把当前连接的模拟器会话接到本页面的视图上，回调只引用本页面，在 onDestroy 中解除
+     */
+    private fun attachTerminalView() {
+        val emulator = termSession ?: return
+        val session = terminalSession ?: return
+        val terminalView = findViewById<EmulatorView>(R.id.terminalView) ?: return
+
+        emulator.letterInterceptor = { c ->
+            // 如果Ctrl被选中且输入的是单个字母，发送组合键
+            if (isCtrlPressed) {
+                sendCtrlCombination(c)
+                true
+            } else false
+        }
+        emulator.onOutput = {
+            // 确保视图刷新
+            runOnUiThread { terminalView.invalidate() }
+        }
+        emulator.setFinishCallback { _ ->
+            runOnUiThread {
+                Toast.makeText(this@TerminalActivity, R.string.disconnected, Toast.LENGTH_SHORT).show()
+            }
+        }
+        // 设置更新回调，确保数据变化时刷新视图
+        emulator.setUpdateCallback {
+            runOnUiThread {
+                terminalView.invalidate()
+            }
+        }
+
+        lifecycleScope.launch {
+            session.state.collect { state ->
+                supportActionBar?.subtitle = when (state) {
+                    TerminalSession.State.RECONNECTING -> "重新连接中..."
+                    else -> null
+                }
+            }
+        }
+
+        terminalView.attachSession(emulator)
+        Log.d(TAG, "Session attached to view")
+
+        // 在 session attach 后设置字体大小
+        terminalView.setTextSize(currentFontSize)
+        terminalView.onResume()
+
+        // 定期强制刷新（防止显示不完整）
+        val refreshRunnable = object : Runnable {
+            override fun run() {
+                if (termSession?.isRunning == true) {
+                    terminalView.invalidate()
+                    refreshHandler.postDelayed(this, 500) // 每500ms刷新一次
+                }
+            }
+        }
+        refreshHandler.postDelayed(refreshRunnable, 500)
+
+        // 请求焦点并显示键盘
+        terminalView.post {
+            terminalView.requestFocus()
+            showKeyboard(terminalView)
+        }
+    }
+
+    /**
+     * 解除模拟器会话对本页面的引用，会话本身留在服务中
+     */
+    private fun detachTerminalView() {
+        refreshHandler.removeCallbacksAndMessages(null)
+        termSession?.let {
+            it.letterInterceptor = null
+            it.onOutput = null
+            it.setFinishCallback(null)
+            it.setUpdateCallback(null)
+        }
+    }
+
     private fun disconnect() {
-        termSession?.finish()
-        termSession = null
+        detachTerminalView()
         lifecycleScope.launch {
-            sshManager.disconnect()
+            serviceClient.await().closeTerminal(hostId)
+            connection = null
             Toast.makeText(this@TerminalActivity, R.string.disconnected, Toast.LENGTH_SHORT).show()
             finish()
         }
@@ -639,6 +801,8 @@ class TerminalActivity : AppCompatActivity() {
         Log.e(TAG, "Connection error", error)
         runOnUiThread {
             Toast.makeText(this@TerminalActivity, "连接错误: ${error.message}", Toast.LENGTH_LONG).show()
+            serviceClient.service?.closeTerminal(hostId)
+            connection = null
             finish()
         }
     }
@@ -664,5 +828,8 @@ class TerminalActivity : AppCompatActivity() {
 
     override fun onDestroy() {
         super.onDestroy()
+        // 只分离界面，连接由服务继续持有，通过通知栏或返回页面后断开
+        detachTerminalView()
+        serviceClient.unbind()
     }
 }
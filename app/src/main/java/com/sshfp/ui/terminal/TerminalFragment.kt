@@ -13,12 +13,15 @@ import com.sshfp.model.Host
 import com.sshfp.ssh.HostDao
 import com.sshfp.ssh.HostDatabase
 import com.sshfp.ssh.PasswordEncryption
-import com.sshfp.ssh.SshManager
+import com.sshfp.ssh.SshPreconnector
+import com.sshfp.ssh.SshTerminalService
 import com.sshfp.ui.host.HostEditActivity
 import kotlinx.coroutines.launch
 
 /**
  * 终端Fragment
+ *
+ * 连接交给 [SshTerminalService] 持有，打开的终端页直接附着该连接；销毁视图时不断开。
  */
 class TerminalFragment : Fragment() {
 
@@ -27,7 +30,8 @@ class TerminalFragment : Fragment() {
 
     private lateinit var hostDao: HostDao
     private lateinit var passwordEncryption: PasswordEncryption
-    private lateinit var sshManager: SshManager
+    private lateinit var serviceClient: SshTerminalService.Client
+    private lateinit var preconnector: SshPreconnector
 
     private var currentHost: Host? = null
     private var isConnected = false
@@ -46,7 +50,9 @@ class TerminalFragment : Fragment() {
 
         hostDao = HostDatabase.getInstance(requireContext()).hostDao()
         passwordEncryption = PasswordEncryption(requireContext())
-        sshManager = SshManager()
+        serviceClient = SshTerminalService.Client(requireContext())
+        serviceClient.bind()
+        preconnector = SshPreconnector(requireContext())
 
         setupUI()
         lifecycleScope.launch {
@@ -113,7 +119,7 @@ class TerminalFragment : Fragment() {
             binding.connectButton.isEnabled = false
             binding.statusText.text = getString(R.string.connecting)
 
-            val result = sshManager.connect(host, password)
+            val result = serviceClient.await().connect(host, password)
             if (result.isSuccess) {
                 isConnected = true
                 binding.connectButton.text = getString(R.string.disconnect)
@@ -129,7 +135,7 @@ class TerminalFragment : Fragment() {
 
     private fun disconnect() {
         lifecycleScope.launch {
-            sshManager.disconnect()
+            currentHost?.let { serviceClient.await().close(it.id) }
             isConnected = false
             binding.connectButton.text = getString(R.string.connect)
             binding.statusText.text = getString(R.string.disconnected)
@@ -158,16 +164,15 @@ class TerminalFragment : Fragment() {
         super.onResume()
         lifecycleScope.launch {
             loadHosts()
+            if (!isConnected) {
+                preconnector.preconnect(hostDao.getAllHostsList())
+            }
         }
     }
 
     override fun onDestroyView() {
         super.onDestroyView()
-        if (isConnected) {
-            lifecycleScope.launch {
-                sshManager.disconnect()
-            }
-        }
+        serviceClient.unbind()
         _binding = null
     }
 